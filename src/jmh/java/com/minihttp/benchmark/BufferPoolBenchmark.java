@@ -0,0 +1,71 @@
+package com.minihttp.benchmark;
+
+import com.minihttp.util.BufferPool.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquire/release pairs on one pool shared by several threads. "sameThread" is the event loop case,
+ * "handoff" releases each buffer one operation later than it was acquired, and "batch" holds many
+ * buffers at once so the thread caches spill into the shared arena.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class BufferPoolBenchmark {
+    @Param({"1024", "16384"})
+    public int size;
+
+    private final BufferPool pool = new BufferPool();
+
+    @State(Scope.Thread)
+    public static class Held {
+        ByteBuffer previous;
+        final ByteBuffer[] batch = new ByteBuffer[64];
+    }
+
+    @Benchmark
+    public void sameThread(Blackhole bh) {
+        ByteBuffer b = pool.acquire(size);
+        bh.consume(b);
+        pool.release(b);
+    }
+
+    @Benchmark
+    public void handoff(Held held, Blackhole bh) {
+        ByteBuffer b = pool.acquire(size);
+        bh.consume(b);
+        if (held.previous != null) {
+            pool.release(held.previous);
+        }
+        held.previous = b;
+    }
+
+    @Benchmark
+    public void batch(Held held, Blackhole bh) {
+        for (int i = 0; i < held.batch.length; i++) {
+            held.batch[i] = pool.acquire(size);
+        }
+        bh.consume(held.batch);
+        for (int i = 0; i < held.batch.length; i++) {
+            pool.release(held.batch[i]);
+        }
+    }
+}
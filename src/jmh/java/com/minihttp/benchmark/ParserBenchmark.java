@@ -0,0 +1,109 @@
+package com.minihttp.benchmark;
+
+import com.minihttp.http.HttpParser.HttpParser;
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses one complete request per operation, with both the incremental parser the servers use and the
+ * legacy String based one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"smallGet", "manyHeaders", "jsonPost", "formPost"})
+    public String shape;
+
+    private String request;
+    private ByteBuffer bytes;
+    private final IncrementalHttpParser parser = new IncrementalHttpParser();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        request = Requests.of(shape);
+        bytes = ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void incremental(Blackhole bh) {
+        bytes.rewind();
+        parser.reset();
+        bh.consume(parser.parse(bytes));
+        bh.consume(parser.getRequest());
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        bh.consume(HttpParser.parse(request));
+    }
+
+    static final class Requests {
+        private Requests() {
+        }
+
+        static String of(String shape) {
+            switch (shape) {
+                case "smallGet":
+                    return "GET /books/42 HTTP/1.1\r\n"
+                            + "Host: localhost:8090\r\n"
+                            + "\r\n";
+                case "manyHeaders":
+                    return "GET /books?page=2&size=50 HTTP/1.1\r\n"
+                            + "Host: localhost:8090\r\n"
+                            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+                            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                            + "Accept-Language: en-US,en;q=0.5\r\n"
+                            + "Accept-Encoding: gzip, deflate, br\r\n"
+                            + "Connection: keep-alive\r\n"
+                            + "Cookie: session=4f2a9c1e7d; theme=dark; locale=en_US\r\n"
+                            + "Referer: http://localhost:8090/books\r\n"
+                            + "Cache-Control: max-age=0\r\n"
+                            + "If-None-Match: \"a1b2c3d4e5f6\"\r\n"
+                            + "Upgrade-Insecure-Requests: 1\r\n"
+                            + "Sec-Fetch-Dest: document\r\n"
+                            + "Sec-Fetch-Mode: navigate\r\n"
+                            + "Sec-Fetch-Site: same-origin\r\n"
+                            + "\r\n";
+                case "jsonPost":
+                    return withBody("application/json",
+                            "{\"title\":\"The Pragmatic Programmer\",\"author\":\"Hunt, Thomas\",\"year\":1999,"
+                                    + "\"tags\":[\"software\",\"craft\"],\"available\":true}");
+                case "formPost":
+                    return withBody("application/x-www-form-urlencoded",
+                            "title=The+Pragmatic+Programmer&author=Hunt%2C+Thomas&year=1999&tags=software&tags=craft");
+                default:
+                    throw new IllegalArgumentException(shape);
+            }
+        }
+
+        private static String withBody(String contentType, String body) {
+            return "POST /books HTTP/1.1\r\n"
+                    + "Host: localhost:8090\r\n"
+                    + "Content-Type: " + contentType + "; charset=UTF-8\r\n"
+                    + "Accept: application/json\r\n"
+                    + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                    + "\r\n"
+                    + body;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.minihttp.benchmark;
+
+import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
+import com.minihttp.http.HttpResponse.ResponseEncoder;
+import com.minihttp.util.BufferPool.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds and serializes a response, the way a handler and the server do for every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+    @Param({"32", "4096"})
+    public int bodySize;
+
+    private String body;
+    private HttpResponse response;
+    private final BufferPool pool = new BufferPool();
+    private final ResponseCompressor compressor = new ResponseCompressor();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        body = "x".repeat(bodySize);
+        response = build();
+    }
+
+    private HttpResponse build() {
+        return new HttpResponse.Create()
+                .setStatusCode(200)
+                .setContentType("application/json")
+                .setEntity(Optional.of(body))
+                .build();
+    }
+
+    @Benchmark
+    public HttpResponse buildOnly() {
+        return build();
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) {
+        ByteBuffer encoded = ResponseEncoder.encode(response, true, pool);
+        bh.consume(encoded);
+        pool.release(encoded);
+    }
+
+    // Bodies under the compression threshold measure the cost of deciding not to compress
+    @Benchmark
+    public void encodeGzip(Blackhole bh) {
+        ByteBuffer[] encoded = compressor.encode(response, "gzip, deflate", true, pool);
+        bh.consume(encoded);
+        for (ByteBuffer b : encoded) {
+            pool.release(b);
+        }
+    }
+
+    @Benchmark
+    public void buildAndEncode(Blackhole bh) {
+        ByteBuffer encoded = ResponseEncoder.encode(build(), true, pool);
+        bh.consume(encoded);
+        pool.release(encoded);
+    }
+}
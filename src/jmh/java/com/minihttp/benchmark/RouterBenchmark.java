@@ -0,0 +1,94 @@
+package com.minihttp.benchmark;
+
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.routing.Router.RouteMatch;
+import com.minihttp.routing.Router.Router;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up a fixed mix of URIs, half static and half with parameters or wildcards, per operation.
+ * The "main" table is the one Main registers, "synthetic500" adds 500 routes of varying shape.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+    private static final HttpHandler HANDLER = (req, params) -> null;
+
+    private static final String[] MAIN_ROUTES = {
+            "/books", "/books/{id}", "/books/*", "/books/*/h", "/books/*/h/{id}/*", "/books/1", "/libs",
+            "/books/{id}/{name}"
+    };
+
+    private static final String[] LOOKUPS = {
+            "/books", "/books/1", "/books/42", "/books/42/dune", "/books/a/b/h", "/books/a/h/7/x", "/libs",
+            "/libs?page=2", "/api/v3/resource250/items", "/api/v1/resource17/items/99", "/nope"
+    };
+
+    @Param({"main", "synthetic500"})
+    public String table;
+
+    private Router router;
+    private final RouteMatch match = new RouteMatch();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        router = new Router();
+        for (String route : MAIN_ROUTES) {
+            router.add(route, HttpMethod.GET, HANDLER);
+        }
+        router.add("/books", HttpMethod.POST, HANDLER);
+        router.add("/books/{id}", HttpMethod.PUT, HANDLER);
+        router.add("/books/{id}", HttpMethod.DELETE, HANDLER);
+        if (table.equals("synthetic500")) {
+            for (int i = 0; i < 500; i++) {
+                String base = "/api/v" + (i % 4) + "/resource" + i;
+                switch (i % 3) {
+                    case 0:
+                        router.add(base + "/items", HttpMethod.GET, HANDLER);
+                        break;
+                    case 1:
+                        router.add(base + "/items/{id}", HttpMethod.GET, HANDLER);
+                        break;
+                    default:
+                        router.add(base + "/files/*", HttpMethod.GET, HANDLER);
+                        break;
+                }
+            }
+        }
+        router.freeze();
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        for (String uri : LOOKUPS) {
+            bh.consume(router.match(uri, HttpMethod.GET, match));
+            bh.consume(match.getPathParameters());
+        }
+    }
+
+    @Benchmark
+    public void find(Blackhole bh) {
+        for (String uri : LOOKUPS) {
+            bh.consume(router.find(uri, HttpMethod.GET));
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.minihttp.http.HttpRequest.HttpRequest;
 import com.minihttp.http.HttpRequest.RequestBody;
 import com.minihttp.http.HttpResponse.HttpResponse;
 import com.minihttp.server.core.MiniServer;
+import com.minihttp.server.core.ServerConfig;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -15,7 +16,7 @@ public class Main {
         int port = 8090;
 
         try {
-            MiniServer httpServer = new MiniServer();
+            MiniServer httpServer = new MiniServer(new ServerConfig.Create().setPort(port).build());
 
             BookController bookController = new BookController();
             httpServer.addRoute("/books", HttpMethod.GET, bookController::handleGetAll);
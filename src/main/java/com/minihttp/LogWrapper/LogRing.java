@@ -0,0 +1,222 @@
+package com.minihttp.LogWrapper;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The bounded queue between logging threads and the thread that writes the log.
+ * <p>
+ * Producers claim a slot with one CAS on the tail and publish it through a per-slot sequence number, so
+ * they never take a lock and never wait on each other's formatting. The entries are preallocated and
+ * reused, only the message template and its arguments are referenced. A single daemon thread drains
+ * whatever is published, formats it, and hands the whole batch to the output stream in one write.
+ */
+final class LogRing implements Runnable {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern(DATE_FORMAT)
+            .withZone(ZoneId.systemDefault());
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+    private final Entry[] entries;
+    // A slot is free for position p when its sequence is p, and holds the entry for p when it is p + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    // Guarded by this, which only the writer holds until close()
+    private long head;
+    private final StringBuilder batch = new StringBuilder(16 * 1024);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
+
+    LogRing(int capacity, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.entries = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.out = out;
+        this.writer = new Thread(this, "minihttp-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "minihttp-log-flush"));
+    }
+
+    /**
+     * Queues a message. When the ring is full it is dropped, or with {@code block} the caller waits for
+     * the writer to make room.
+     *
+     * @return false if the message was dropped.
+     */
+    boolean offer(LogWrapper.LogLevel level, String template, Object arg1, Object arg2, int args, boolean block) {
+        long millis = System.currentTimeMillis();
+        if (closed) {
+            // The writer is gone, e.g. a shutdown hook logging after ours ran
+            synchronized (this) {
+                batch.setLength(0);
+                append(level, millis, template, arg1, arg2, args);
+                out.print(batch);
+                out.flush();
+            }
+            return true;
+        }
+        long pos;
+        int idx;
+        while (true) {
+            pos = tail.get();
+            idx = (int) (pos & mask);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // Full, the writer has not freed this slot since the last lap
+                if (!block || closed) {
+                    dropped.increment();
+                    return false;
+                }
+                wakeWriter();
+                LockSupport.parkNanos(10_000L);
+            }
+            // Otherwise another producer claimed pos first, retry with the new tail
+        }
+        Entry entry = entries[idx];
+        entry.level = level;
+        entry.millis = millis;
+        entry.template = template;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.args = args;
+        sequences.set(idx, pos + 1);
+        wakeWriter();
+        return true;
+    }
+
+    private void wakeWriter() {
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            if (drain() == 0) {
+                writerParked = true;
+                // Re-check after announcing the park, a producer may have published in between
+                if (!hasPublished() && !closed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    private boolean hasPublished() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    /**
+     * Formats up to {@link #MAX_BATCH} published entries and writes them out together.
+     *
+     * @return the number of entries written.
+     */
+    private synchronized int drain() {
+        batch.setLength(0);
+        int count = 0;
+        while (count < MAX_BATCH && hasPublished()) {
+            int idx = (int) (head & mask);
+            Entry entry = entries[idx];
+            append(entry.level, entry.millis, entry.template, entry.arg1, entry.arg2, entry.args);
+            entry.template = null;
+            entry.arg1 = null;
+            entry.arg2 = null;
+            sequences.set(idx, head + entries.length);
+            head++;
+            count++;
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            append(LogWrapper.LogLevel.WARNING, System.currentTimeMillis(),
+                    "[-] Dropped {} log messages, the log buffer was full", lost, null, 1);
+        }
+        if (batch.length() > 0) {
+            out.print(batch);
+            out.flush();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the writer and writes out everything still queued.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (drain() > 0) {
+            // Entries published before the producers saw closed
+        }
+    }
+
+    private void append(LogWrapper.LogLevel level, long millis, String template, Object arg1, Object arg2, int args) {
+        batch.append('[').append(timestamp(millis)).append("] [").append(level).append("] - ");
+        if (args == 0) {
+            batch.append(template);
+        } else {
+            appendFormatted(template, arg1, arg2, args);
+        }
+        batch.append(System.lineSeparator());
+    }
+
+    // Replaces each "{}" with the next argument, extra placeholders are printed as they are
+    private void appendFormatted(String template, Object arg1, Object arg2, int args) {
+        int used = 0;
+        int from = 0;
+        int at;
+        while (used < args && (at = template.indexOf("{}", from)) >= 0) {
+            batch.append(template, from, at).append(used == 0 ? arg1 : arg2);
+            used++;
+            from = at + 2;
+        }
+        batch.append(template, from, template.length());
+    }
+
+    private String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        if (second != cachedSecond) {
+            cachedTimestamp = dateFormatter.format(Instant.ofEpochSecond(second));
+            cachedSecond = second;
+        }
+        return cachedTimestamp;
+    }
+
+    private static final class Entry {
+        LogWrapper.LogLevel level;
+        long millis;
+        String template;
+        Object arg1;
+        Object arg2;
+        int args;
+    }
+}
@@ -1,29 +1,66 @@
 package com.minihttp.LogWrapper;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
+/**
+ * Asynchronous logging to stdout. Calls only check the level and queue the message, a background thread
+ * formats and prints it, see {@link LogRing}.
+ * <p>
+ * Configured with system properties: {@code minihttp.log.level} (DEBUG, INFO, WARNING or ERROR, default
+ * INFO), {@code minihttp.log.overflow} (DROP or BLOCK, what a full buffer does to callers, default DROP)
+ * and {@code minihttp.log.bufferSize} (default 8192 messages).
+ * <p>
+ * The template overloads replace each "{}" on the writer thread, so a message below the level costs
+ * neither concatenation nor formatting. Arguments are formatted later, so pass values that do not change.
+ */
 public class LogWrapper {
-    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat(DATE_FORMAT);
+    private static volatile LogLevel level = LogLevel.valueOf(System.getProperty("minihttp.log.level", "INFO"));
+    private static volatile Overflow overflow = Overflow.valueOf(System.getProperty("minihttp.log.overflow", "DROP"));
+    private static final LogRing ring = new LogRing(Integer.getInteger("minihttp.log.bufferSize", 8192), System.out);
 
     public static void log(String message) {
-        String logMessage = buildLogMessage(LogLevel.ERROR, message);
-        System.out.println(logMessage);
+        log(LogLevel.ERROR, message);
     }
 
     public static void log(LogLevel level, String message) {
-        String logMessage = buildLogMessage(level, message);
-        System.out.println(logMessage);
+        if (isEnabled(level)) {
+            ring.offer(level, message, null, null, 0, overflow == Overflow.BLOCK);
+        }
+    }
+
+    public static void log(LogLevel level, String template, Object arg) {
+        if (isEnabled(level)) {
+            ring.offer(level, template, arg, null, 1, overflow == Overflow.BLOCK);
+        }
     }
 
-    private static String buildLogMessage(LogLevel level, String message) {
-        String timestamp = dateFormatter.format(new Date());
-        String logLevelStr = level.toString();
-        return String.format("[%s] [%s] - %s", timestamp, logLevelStr, message);
+    public static void log(LogLevel level, String template, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            ring.offer(level, template, arg1, arg2, 2, overflow == Overflow.BLOCK);
+        }
+    }
+
+    /**
+     * For messages that are expensive to build even with a template.
+     */
+    public static boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= LogWrapper.level.ordinal();
+    }
+
+    public static void setLevel(LogLevel level) {
+        LogWrapper.level = level;
+    }
+
+    public static void setOverflow(Overflow overflow) {
+        LogWrapper.overflow = overflow;
     }
 
     public enum LogLevel {
-        INFO, WARNING, ERROR
+        DEBUG, INFO, WARNING, ERROR
+    }
+
+    /**
+     * What a call does when the buffer is full: lose the message, or wait for the writer to catch up.
+     */
+    public enum Overflow {
+        DROP, BLOCK
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,53 @@
 package com.minihttp.PathParameters;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class PathParameters extends HashMap<String, String> {
+    /**
+     * Shared by every route without parameters. It cannot be modified.
+     */
+    public static final PathParameters EMPTY = new PathParameters() {
+        @Override
+        public String put(String key, String value) {
+            throw new UnsupportedOperationException();
+        }
 
+        @Override
+        public void putAll(Map<? extends String, ? extends String> m) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String putIfAbsent(String key, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String remove(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String computeIfAbsent(String key, Function<? super String, ? extends String> f) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String compute(String key, BiFunction<? super String, ? super String, ? extends String> f) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String merge(String key, String value, BiFunction<? super String, ? super String, ? extends String> f) {
+            throw new UnsupportedOperationException();
+        }
+    };
 }
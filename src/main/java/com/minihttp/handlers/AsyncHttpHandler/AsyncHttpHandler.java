@@ -0,0 +1,46 @@
+package com.minihttp.handlers.AsyncHttpHandler;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.HttpResponse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A handler that answers later, e.g. once the backends it calls have replied, without holding a thread
+ * while it waits.
+ * <p>
+ * {@link #handleAsync} is called on the server's I/O thread and must only start the work, never block.
+ * The response is written once the stage completes, from whichever thread completes it; the connection
+ * reads no further requests until then. A stage that fails or completes with null is answered with 500.
+ * Register one with the servers' {@code addAsyncRoute}. Plain {@link HttpHandler}s keep being called
+ * directly, they are not wrapped in a stage.
+ */
+@FunctionalInterface
+public interface AsyncHttpHandler extends HttpHandler {
+    CompletionStage<HttpResponse> handleAsync(HttpRequest req, PathParameters param);
+
+    /**
+     * Waits for {@link #handleAsync}. The servers never call this, it is only here for code that calls
+     * handlers directly.
+     */
+    @Override
+    default HttpResponse handle(HttpRequest req, PathParameters param) {
+        return handleAsync(req, param).toCompletableFuture().join();
+    }
+
+    /**
+     * Calls {@code handler}, turning an exception it throws or a null stage into a failed stage, so the
+     * caller only has to look at how the stage completes.
+     */
+    static CompletionStage<HttpResponse> invoke(AsyncHttpHandler handler, HttpRequest req, PathParameters param) {
+        try {
+            CompletionStage<HttpResponse> stage = handler.handleAsync(req, param);
+            return stage != null ? stage : CompletableFuture.failedFuture(new NullPointerException("handleAsync returned null"));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
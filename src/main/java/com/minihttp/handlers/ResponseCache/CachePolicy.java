@@ -0,0 +1,111 @@
+package com.minihttp.handlers.ResponseCache;
+
+import com.minihttp.http.HttpResponse.ResponseCompressor;
+
+import java.util.List;
+
+/**
+ * How a route's responses are cached by a {@link ResponseCache}. Instances are immutable, use
+ * {@link Create} to build one.
+ */
+public class CachePolicy {
+    public static final long DEFAULT_MAX_BYTES = 16 << 20;
+
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final List<String> queryParameters;
+    private final List<String> varyHeaders;
+    private final ResponseCompressor compressor;
+
+    private CachePolicy(long ttlMillis, long maxBytes, List<String> queryParameters, List<String> varyHeaders,
+                        ResponseCompressor compressor) {
+        this.ttlMillis = ttlMillis;
+        this.maxBytes = maxBytes;
+        this.queryParameters = queryParameters;
+        this.varyHeaders = varyHeaders;
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return how long a response is served from the cache after the handler produced it.
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @return the most memory the route's cached responses may take, heads and bodies together.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the query parameters that select a different response. All others are ignored.
+     */
+    public List<String> getQueryParameters() {
+        return queryParameters;
+    }
+
+    /**
+     * @return the request headers that select a different response, as the handler's Vary would list them.
+     * Accept-Encoding is always taken into account.
+     */
+    public List<String> getVaryHeaders() {
+        return varyHeaders;
+    }
+
+    /**
+     * @return what compresses cached responses for clients that accept it.
+     */
+    public ResponseCompressor getCompressor() {
+        return compressor;
+    }
+
+    public static class Create {
+        private long ttlMillis = 1_000;
+        private long maxBytes = DEFAULT_MAX_BYTES;
+        private List<String> queryParameters = List.of();
+        private List<String> varyHeaders = List.of();
+        private ResponseCompressor compressor = new ResponseCompressor();
+
+        public Create setTtlMillis(long ttlMillis) {
+            if (ttlMillis <= 0) {
+                throw new IllegalArgumentException("ttlMillis must be positive");
+            }
+            this.ttlMillis = ttlMillis;
+            return this;
+        }
+
+        public Create setMaxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Create setQueryParameters(String... queryParameters) {
+            this.queryParameters = List.of(queryParameters);
+            return this;
+        }
+
+        public Create setVaryHeaders(String... varyHeaders) {
+            this.varyHeaders = List.of(varyHeaders);
+            return this;
+        }
+
+        /**
+         * Compresses cached responses like a server with this compressor would, e.g. one built from its
+         * ServerConfig compression settings.
+         */
+        public Create setCompressor(ResponseCompressor compressor) {
+            this.compressor = compressor;
+            return this;
+        }
+
+        public CachePolicy build() {
+            return new CachePolicy(ttlMillis, maxBytes, queryParameters, varyHeaders, compressor);
+        }
+    }
+}
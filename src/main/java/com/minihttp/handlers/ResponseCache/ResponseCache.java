@@ -0,0 +1,276 @@
+package com.minihttp.handlers.ResponseCache;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
+import com.minihttp.http.HttpStatus.HttpStatus;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of one GET route's responses, in front of its handler. See {@link CachePolicy}.
+ * <p>
+ * Responses are stored fully encoded, compressed per negotiated coding, so a hit is sent as views of the
+ * cached buffers without calling the handler or encoding anything. The key is the path, the selected
+ * query parameters, the values of the Vary headers and the coding. Entries expire after the TTL and are
+ * kept in a few access-ordered segments, each locked on its own and trimmed from its least recently
+ * used end when it goes over its share of the memory budget. Only 200 responses with an entity body are
+ * cached, not ones that set a cookie or ask not to be stored.
+ * <p>
+ * Concurrent misses on the same key are coalesced: one request calls the handler and the others wait for
+ * its encoded response instead of calling it too. If that response turns out not to be cacheable, each
+ * waiting request calls the handler for a response of its own.
+ */
+public class ResponseCache implements HttpHandler {
+    private static final int SEGMENTS = 16;
+    private static final char SEPARATOR = '\0';
+
+    private final HttpHandler handler;
+    private final long ttlNanos;
+    private final long segmentBytes;
+    private final String[] queryParameters;
+    private final String[] varyHeaders;
+    private final ResponseCompressor compressor;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // Loads in progress, completed with the cached response, or null if it was not cacheable
+    private final ConcurrentHashMap<String, CompletableFuture<HttpResponse>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(HttpHandler handler, CachePolicy policy) {
+        this.handler = handler;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(policy.getTtlMillis());
+        this.segmentBytes = Math.max(1, policy.getMaxBytes() / SEGMENTS);
+        this.queryParameters = policy.getQueryParameters().toArray(new String[0]);
+        this.varyHeaders = policy.getVaryHeaders().toArray(new String[0]);
+        this.compressor = policy.getCompressor();
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Serves from the cache, or calls the handler and caches what it returns.
+     */
+    @Override
+    public HttpResponse handle(HttpRequest req, PathParameters param) {
+        String key = key(req);
+        HttpResponse cached = lookup(key);
+        return cached != null ? cached : load(key, req, param, false);
+    }
+
+    /**
+     * @return the cached response for {@code key}, from {@link #key(HttpRequest)}, or null. Servers call
+     * this on their I/O thread before dispatching, so a hit never reaches the handler's thread, and hand
+     * the key on to {@link #load} on a miss.
+     */
+    public HttpResponse lookup(String key) {
+        HttpResponse cached = get(key);
+        if (cached != null) {
+            hits.increment();
+        }
+        return cached;
+    }
+
+    private HttpResponse get(String key) {
+        Segment segment = segment(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.entries.get(key);
+            if (entry != null && System.nanoTime() - entry.created >= ttlNanos) {
+                segment.entries.remove(key);
+                segment.bytes -= entry.bytes;
+                entry = null;
+            }
+        }
+        return entry == null ? null : entry.response;
+    }
+
+    /**
+     * Answers a request whose {@code key} was just looked up and missed: calls the handler and caches its
+     * response, or waits for the load of the same key already in progress.
+     */
+    public HttpResponse load(String key, HttpRequest req, PathParameters param) {
+        return load(key, req, param, true);
+    }
+
+    /**
+     * @param lookAgain whether the lookup may be stale, e.g. because the request waited in the handler
+     *                  executor's queue since; a load of this key may have finished and stored it meanwhile.
+     */
+    private HttpResponse load(String key, HttpRequest req, PathParameters param, boolean lookAgain) {
+        CompletableFuture<HttpResponse> mine = new CompletableFuture<>();
+        CompletableFuture<HttpResponse> inProgress = loading.putIfAbsent(key, mine);
+        if (inProgress != null) {
+            HttpResponse shared = inProgress.join();
+            if (shared != null) {
+                hits.increment();
+                return shared;
+            }
+            misses.increment();
+            return handler.handle(req, param);
+        }
+        HttpResponse encoded = null;
+        try {
+            encoded = lookAgain ? lookup(key) : null;
+            if (encoded != null) {
+                return encoded;
+            }
+            misses.increment();
+            HttpResponse response = handler.handle(req, param);
+            if (!isCacheable(response)) {
+                return response;
+            }
+            encoded = store(key, compressor.preEncode(response, req.getHeader("accept-encoding")));
+            return encoded;
+        } finally {
+            loading.remove(key, mine);
+            mine.complete(encoded);
+        }
+    }
+
+    private HttpResponse store(String key, HttpResponse encoded) {
+        Entry entry = new Entry(encoded, System.nanoTime(), key.length() * 2L + size(encoded));
+        if (entry.bytes > segmentBytes) {
+            return encoded;
+        }
+        Segment segment = segment(key);
+        synchronized (segment) {
+            Entry previous = segment.entries.put(key, entry);
+            segment.bytes += entry.bytes - (previous == null ? 0 : previous.bytes);
+            segment.trim();
+        }
+        return encoded;
+    }
+
+    private static boolean isCacheable(HttpResponse response) {
+        if (response == null || response.getStatusCode() != HttpStatus.OK.getCode()) {
+            return false;
+        }
+        if (response.isPreEncoded()) {
+            return true;
+        }
+        if (response.getFileRegion() != null || response.getChunkedBody() != null) {
+            return false;
+        }
+        for (Map.Entry<String, List<String>> header : response.getResponseHeader().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Set-Cookie")) {
+                return false;
+            }
+            if (header.getKey().equalsIgnoreCase("Cache-Control")) {
+                for (String value : header.getValue()) {
+                    String directive = value.toLowerCase();
+                    if (directive.contains("no-store") || directive.contains("private")) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long size(HttpResponse encoded) {
+        long size = 0;
+        for (ByteBuffer part : encoded.preEncodedBuffers(true)) {
+            size += part.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * @return the cache key of {@code req}: its path, the selected query parameters, the Vary headers
+     * and the coding it accepts.
+     */
+    public String key(HttpRequest req) {
+        StringBuilder key = new StringBuilder(req.getURI());
+        if (queryParameters.length > 0) {
+            Map<String, String> params = req.getParams();
+            for (String name : queryParameters) {
+                key.append(SEPARATOR);
+                if (params != null && params.containsKey(name)) {
+                    key.append('=').append(params.get(name));
+                }
+            }
+        }
+        for (String name : varyHeaders) {
+            key.append(SEPARATOR);
+            String value = req.getHeader(name);
+            if (value != null) {
+                key.append('=').append(value);
+            }
+        }
+        ResponseCompressor.Coding coding = ResponseCompressor.negotiate(req.getHeader("accept-encoding"));
+        key.append(SEPARATOR).append(coding == null ? "" : coding.getToken());
+        return key.toString();
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    public HttpHandler getHandler() {
+        return handler;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return how many requests went to the handler, including ones whose response was not cacheable.
+     * Requests that waited for another one's load count as hits.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the memory taken by the cached responses, in bytes.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.bytes;
+            }
+        }
+        return size;
+    }
+
+    private final class Segment {
+        // In access order, least recently used first
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+
+        void trim() {
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > segmentBytes && it.hasNext()) {
+                bytes -= it.next().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final HttpResponse response;
+        final long created;
+        final long bytes;
+
+        Entry(HttpResponse response, long created, long bytes) {
+            this.response = response;
+            this.created = created;
+            this.bytes = bytes;
+        }
+    }
+}
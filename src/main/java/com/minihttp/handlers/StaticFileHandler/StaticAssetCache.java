@@ -0,0 +1,317 @@
+package com.minihttp.handlers.StaticFileHandler;
+
+import com.minihttp.LogWrapper.LogWrapper;
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.DateHeader;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
+import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.http.HttpUtil.HttpUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A bounded in-memory cache in front of a {@link StaticFileHandler}.
+ * <p>
+ * Hot files are kept as pre-serialized responses, with a gzip variant for compressible types, a strong
+ * ETag and a Last-Modified date. Conditional requests are answered with 304 straight from memory, and
+ * hits are sent as views of the cached buffers. A WatchService on the served directories drops entries
+ * as soon as their file changes. Files larger than the per-entry limit keep going through the handler.
+ */
+public class StaticAssetCache implements HttpHandler, Closeable {
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 1 << 20;
+
+    private final StaticFileHandler files;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final WatchService watchService;
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+
+    public StaticAssetCache(StaticFileHandler files, long maxBytes) throws IOException {
+        this(files, maxBytes, Math.min(maxBytes, DEFAULT_MAX_ENTRY_BYTES));
+    }
+
+    public StaticAssetCache(StaticFileHandler files, long maxBytes, long maxEntryBytes) throws IOException {
+        this.files = files;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.watchService = files.getRoot().getFileSystem().newWatchService();
+        Thread watcher = new Thread(this::watch, "static-asset-cache-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest req, PathParameters param) {
+        String uri = req.getURI();
+        Entry entry = entries.get(uri);
+        if (entry == null) {
+            entry = load(uri);
+            if (entry == null) {
+                return files.handle(req, param);
+            }
+        }
+        entry.lastAccess = clock.incrementAndGet();
+
+        if (isNotModified(req, entry)) {
+            return entry.notModified;
+        }
+        // Only a gzip variant is kept, so a client preferring deflate gets the identity body
+        if (entry.gzip != null
+                && ResponseCompressor.negotiate(req.getHeader("accept-encoding")) == ResponseCompressor.Coding.GZIP) {
+            return entry.gzip;
+        }
+        return entry.identity;
+    }
+
+    public long size() {
+        return totalBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        entries.clear();
+        totalBytes.set(0);
+    }
+
+    private Entry load(String uri) {
+        Path file = files.resolve(uri);
+        if (file == null) {
+            return null;
+        }
+        long generation = invalidations.get();
+        try {
+            // Watch before reading, so a change racing with the read still invalidates the entry
+            Path dir = file.getParent();
+            if (watchedDirectories.add(dir)) {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+            if (Files.size(file) > maxEntryBytes) {
+                return null;
+            }
+            Instant lastModified = Files.getLastModifiedTime(file).toInstant();
+            byte[] content = Files.readAllBytes(file);
+            if (content.length > maxEntryBytes) {
+                return null;
+            }
+            Entry entry = new Entry(file, content, lastModified,
+                    HttpUtil.getContentType(HttpUtil.getExtension(file.getFileName().toString())));
+            entry.lastAccess = clock.incrementAndGet();
+
+            Entry previous = entries.put(uri, entry);
+            totalBytes.addAndGet(entry.bytes - (previous == null ? 0 : previous.bytes));
+            if (invalidations.get() != generation) {
+                remove(uri, entry);
+            }
+            evict();
+            return entry;
+        } catch (IOException | ClosedWatchServiceException e) {
+            LogWrapper.log(LogWrapper.LogLevel.WARNING, "[-] Not caching " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void evict() {
+        while (totalBytes.get() > maxBytes) {
+            Map.Entry<String, Entry> coldest = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (coldest == null || e.getValue().lastAccess < coldest.getValue().lastAccess) {
+                    coldest = e;
+                }
+            }
+            if (coldest == null) {
+                return;
+            }
+            remove(coldest.getKey(), coldest.getValue());
+        }
+    }
+
+    private void remove(String uri, Entry entry) {
+        if (entries.remove(uri, entry)) {
+            totalBytes.addAndGet(-entry.bytes);
+        }
+    }
+
+    private void invalidate(Path changed) {
+        invalidations.incrementAndGet();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().file.startsWith(changed)) {
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void invalidateAll() {
+        invalidations.incrementAndGet();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll();
+                    } else {
+                        invalidate(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(dir);
+                    invalidate(dir);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Cache closed
+        }
+    }
+
+    private static boolean isNotModified(HttpRequest req, Entry entry) {
+        String ifNoneMatch = req.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(entry.etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = req.getHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return entry.lastModified.getEpochSecond() <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static final class Entry {
+        final Path file;
+        final String etag;
+        final Instant lastModified;
+        final HttpResponse identity;
+        final HttpResponse gzip;
+        final HttpResponse notModified;
+        final long bytes;
+        volatile long lastAccess;
+
+        Entry(Path file, byte[] content, Instant lastModified, String contentType) throws IOException {
+            this.file = file;
+            this.etag = '"' + digest(content) + '"';
+            this.lastModified = lastModified;
+
+            boolean compressible = HttpUtil.isCompressible(contentType);
+            String vary = compressible ? "Accept-Encoding" : null;
+            String modified = DateHeader.format(lastModified);
+
+            this.identity = HttpResponse.preEncoded(HttpStatus.OK.getCode(),
+                    head(HttpStatus.OK, contentType, content.length, null, vary, modified), direct(content));
+            this.notModified = HttpResponse.preEncoded(HttpStatus.NOT_MODIFIED.getCode(),
+                    head(HttpStatus.NOT_MODIFIED, null, -1, null, vary, modified), ByteBuffer.allocate(0));
+
+            byte[] compressed = compressible ? gzip(content) : null;
+            if (compressed != null && compressed.length < content.length) {
+                this.gzip = HttpResponse.preEncoded(HttpStatus.OK.getCode(),
+                        head(HttpStatus.OK, contentType, compressed.length, "gzip", vary, modified), direct(compressed));
+                this.bytes = content.length + compressed.length;
+            } else {
+                this.gzip = null;
+                this.bytes = content.length;
+            }
+        }
+
+        private ByteBuffer head(HttpStatus status, String contentType, long contentLength, String encoding,
+                                String vary, String modified) {
+            HttpResponse.Create create = new HttpResponse.Create().setStatusCode(status.getCode());
+            if (contentType != null) {
+                create.setContentType(contentType);
+            }
+            Map<String, List<String>> headers = create.build().getResponseHeader();
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(status.getCode()).append(' ').append(status.getMessage()).append("\r\n");
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                String name = header.getKey();
+                if (name.equals("Date") || name.equals("Connection") || (contentType == null && name.equals("Content-Type"))) {
+                    continue;
+                }
+                sb.append(name).append(": ").append(String.join(";", header.getValue())).append("\r\n");
+            }
+            sb.append("ETag: ").append(etag).append("\r\n");
+            sb.append("Last-Modified: ").append(modified).append("\r\n");
+            Optional.ofNullable(vary).ifPresent(v -> sb.append("Vary: ").append(v).append("\r\n"));
+            Optional.ofNullable(encoding).ifPresent(e -> sb.append("Content-Encoding: ").append(e).append("\r\n"));
+            if (contentLength >= 0) {
+                sb.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static ByteBuffer direct(byte[] content) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+            buffer.put(content).flip();
+            return buffer;
+        }
+
+        private static byte[] gzip(byte[] content) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+                gz.write(content);
+            }
+            return out.toByteArray();
+        }
+
+        private static String digest(byte[] content) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                return HexFormat.of().formatHex(hash, 0, 16);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
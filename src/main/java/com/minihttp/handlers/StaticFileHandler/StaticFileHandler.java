@@ -0,0 +1,100 @@
+package com.minihttp.handlers.StaticFileHandler;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.FileRegion;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.http.HttpUtil.HttpUtil;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Serves files below a root directory for every URI under a mount prefix, e.g. {@code /static/css/a.css}
+ * maps to {@code <root>/css/a.css}. The body is a {@link FileRegion}, so the server streams it straight
+ * from the file to the socket.
+ */
+public class StaticFileHandler implements HttpHandler {
+    private static final String INDEX_FILE = "index.html";
+
+    private final String prefix;
+    private final Path root;
+
+    public StaticFileHandler(String prefix, Path root) throws IOException {
+        this.prefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        this.root = root.toRealPath();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest req, PathParameters param) {
+        Path file = resolve(req.getURI());
+        if (file == null) {
+            return error(HttpStatus.NOT_FOUND);
+        }
+        try {
+            long size = Files.size(file);
+            return new HttpResponse.Create()
+                    .setStatusCode(HttpStatus.OK.getCode())
+                    .setContentType(HttpUtil.getContentType(HttpUtil.getExtension(file.getFileName().toString())))
+                    .setFileRegion(new FileRegion(file, 0, size))
+                    .build();
+        } catch (IOException e) {
+            return error(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    /**
+     * Maps a request path to a readable file inside the root, or null if there is none. Paths that
+     * escape the root through "..", encoded separators or symbolic links are rejected.
+     */
+    public Path resolve(String uri) {
+        if (!uri.startsWith(prefix)) {
+            return null;
+        }
+        String relative;
+        try {
+            relative = URI.create(uri.substring(prefix.length())).getPath();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (relative == null || relative.indexOf('\0') >= 0) {
+            return null;
+        }
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+
+        try {
+            Path file = root.resolve(relative).normalize();
+            if (!file.startsWith(root)) {
+                return null;
+            }
+            if (Files.isDirectory(file)) {
+                file = file.resolve(INDEX_FILE);
+            }
+            if (!Files.isRegularFile(file) || !Files.isReadable(file)) {
+                return null;
+            }
+            file = file.toRealPath();
+            return file.startsWith(root) ? file : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static HttpResponse error(HttpStatus status) {
+        return new HttpResponse.Create()
+                .setStatusCode(status.getCode())
+                .setEntity(Optional.of(status.getMessage()))
+                .build();
+    }
+}
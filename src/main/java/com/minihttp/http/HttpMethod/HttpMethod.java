@@ -5,5 +5,32 @@ public enum HttpMethod {
     PUT,
     POST,
     PATCH,
-    DELETE
-}
\ No newline at end of file
+    DELETE;
+
+    /**
+     * Matches a method token straight from request bytes, without building a String.
+     *
+     * @return the matching method, or null if the token is not a supported method.
+     */
+    public static HttpMethod fromBytes(byte[] b, int off, int len) {
+        switch (len) {
+            case 3:
+                if (b[off] == 'G' && b[off + 1] == 'E' && b[off + 2] == 'T') return GET;
+                if (b[off] == 'P' && b[off + 1] == 'U' && b[off + 2] == 'T') return PUT;
+                return null;
+            case 4:
+                if (b[off] == 'P' && b[off + 1] == 'O' && b[off + 2] == 'S' && b[off + 3] == 'T') return POST;
+                return null;
+            case 5:
+                if (b[off] == 'P' && b[off + 1] == 'A' && b[off + 2] == 'T' && b[off + 3] == 'C' && b[off + 4] == 'H')
+                    return PATCH;
+                return null;
+            case 6:
+                if (b[off] == 'D' && b[off + 1] == 'E' && b[off + 2] == 'L' && b[off + 3] == 'E' && b[off + 4] == 'T'
+                        && b[off + 5] == 'E') return DELETE;
+                return null;
+            default:
+                return null;
+        }
+    }
+}
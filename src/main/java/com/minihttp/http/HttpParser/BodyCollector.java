@@ -0,0 +1,212 @@
+package com.minihttp.http.HttpParser;
+
+import com.minihttp.http.HttpRequest.RequestBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the bytes of one request body as they are read. Bodies up to {@code spillThreshold} bytes stay
+ * in an array, larger ones are written to a temp file as they arrive, so an upload of tens of megabytes
+ * costs a connection no more heap than a small one.
+ * <p>
+ * The parser runs on the thread reading the socket, usually an event loop, so creating the temp file and
+ * writing to it are left to a shared writer thread. The reading thread only copies bytes into chunks and
+ * waits for the writer when more than {@link #MAX_BACKLOG} bytes are still queued, and once more in
+ * {@link #finish(String)} for the last few chunks, which bounds both the heap a slow disk costs and how
+ * long it can hold a loop up.
+ */
+final class BodyCollector {
+    private static final int INITIAL_SIZE = 4096;
+    private static final int CHUNK_SIZE = 64 << 10;
+    static final int MAX_BACKLOG = 1 << 20;
+    private static final ExecutorService WRITER = newWriter();
+
+    private final int spillThreshold;
+    private byte[] bytes;
+    private int length;
+    // Set once spilled, the writes queued so far; the writer thread alone touches file and channel
+    private CompletableFuture<Void> pending;
+    private final AtomicInteger backlog = new AtomicInteger();
+    private byte[] chunk;
+    private int chunkLength;
+    private Path file;
+    private FileChannel channel;
+    private long fileLength;
+
+    /**
+     * @param expected the Content-Length, or -1 if the body is chunked and its size unknown.
+     */
+    BodyCollector(long expected, int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        if (expected >= 0 && expected <= spillThreshold) {
+            bytes = new byte[(int) expected];
+        } else {
+            bytes = new byte[Math.min(INITIAL_SIZE, spillThreshold)];
+        }
+    }
+
+    private static ExecutorService newWriter() {
+        ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "minihttp-body-writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        writer.allowCoreThreadTimeOut(true);
+        return writer;
+    }
+
+    long size() {
+        return pending != null ? fileLength : length;
+    }
+
+    /**
+     * Takes the next {@code n} bytes of {@code in}.
+     *
+     * @throws IOException if an earlier write to the temp file failed.
+     */
+    void write(ByteBuffer in, int n) throws IOException {
+        if (pending == null && (long) length + n <= spillThreshold) {
+            if (length + n > bytes.length) {
+                byte[] grown = new byte[(int) Math.min(Math.max((long) bytes.length * 2, length + n), spillThreshold)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            in.get(bytes, length, n);
+            length += n;
+            return;
+        }
+        if (pending == null) {
+            spill();
+        } else if (pending.isCompletedExceptionally()) {
+            await();
+        }
+        fileLength += n;
+        while (n > 0) {
+            int k = Math.min(n, chunk.length - chunkLength);
+            in.get(chunk, chunkLength, k);
+            chunkLength += k;
+            n -= k;
+            if (chunkLength == chunk.length) {
+                submit();
+            }
+        }
+        if (backlog.get() > MAX_BACKLOG) {
+            await();
+        }
+    }
+
+    private void spill() {
+        byte[] collected = bytes;
+        int collectedLength = length;
+        bytes = null;
+        length = 0;
+        fileLength = collectedLength;
+        chunk = new byte[CHUNK_SIZE];
+        backlog.addAndGet(collectedLength);
+        pending = CompletableFuture.runAsync(() -> {
+            try {
+                file = Files.createTempFile("minihttp-body", ".tmp");
+                channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            writeFully(collected, collectedLength);
+        }, WRITER);
+    }
+
+    private void submit() {
+        byte[] full = chunk;
+        int fullLength = chunkLength;
+        chunk = new byte[CHUNK_SIZE];
+        chunkLength = 0;
+        backlog.addAndGet(fullLength);
+        pending = pending.thenRunAsync(() -> writeFully(full, fullLength), WRITER);
+    }
+
+    // Runs on the writer thread
+    private void writeFully(byte[] b, int n) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(b, 0, n);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            backlog.addAndGet(-n);
+        }
+    }
+
+    private void await() throws IOException {
+        try {
+            pending.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof UncheckedIOException u ? u.getCause() : new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the collected body, which owns the temp file from now on.
+     */
+    RequestBody finish(String contentType) throws IOException {
+        if (pending == null) {
+            return RequestBody.of(contentType, bytes, length);
+        }
+        if (chunkLength > 0) {
+            submit();
+        }
+        pending = pending.thenRunAsync(() -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, WRITER);
+        try {
+            await();
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        return RequestBody.ofFile(contentType, file, fileLength);
+    }
+
+    /**
+     * Drops a body that will not be completed. The temp file is deleted by the writer, once the writes
+     * queued before it are done.
+     */
+    void discard() {
+        bytes = null;
+        chunk = null;
+        if (pending != null) {
+            pending.whenCompleteAsync((v, e) -> {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    if (file != null) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException ex) {
+                    // Left for the OS to clean up with the temp directory
+                }
+            }, WRITER);
+            pending = null;
+        }
+    }
+}
@@ -4,15 +4,12 @@ import com.minihttp.http.HttpMethod.HttpMethod;
 import com.minihttp.http.HttpRequest.HttpRequest;
 import com.minihttp.http.HttpRequest.RequestBody;
 import com.minihttp.http.HttpStatus.HttpStatus;
-import com.minihttp.http.HttpUtil.HttpUtil;
 import com.minihttp.util.Pair.Pair;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class HttpParser {
     public static Pair<HttpStatus, HttpRequest> parse(String httpRequestString) {
@@ -77,16 +74,8 @@ public class HttpParser {
                 int requestBodyStart = httpRequestString.indexOf("\r\n\r\n");
                 if (requestBodyStart != -1) {
                     requestBodyStart += 4;
+                    // Kept as sent, RequestBody#asFormValues URL-decodes form bodies
                     requestBody = httpRequestString.substring(requestBodyStart);
-
-
-                    try {
-                        String charset = HttpUtil.parseContentTypeCharset(contentType);
-                        requestBody = HttpUtil.decode(requestBody, charset);
-                    } catch (UnsupportedEncodingException e) {
-                        status = HttpStatus.BAD_REQUEST;
-                        return new Pair<>(status, null);
-                    }
                 }
 
                 if (HttpMethod.valueOf(method) == HttpMethod.POST) {
@@ -123,14 +112,20 @@ public class HttpParser {
             return Collections.emptyMap();
         }
 
-        return Stream.of(cookieHeader.split(";"))
-                .map(String::trim)
-                .map(cookie -> cookie.split("="))
-                .filter(cookieParts -> cookieParts.length == 2)
-                .collect(Collectors.toMap(
-                        cookieParts -> cookieParts[0],
-                        cookieParts -> cookieParts[1],
-                        (oldValue, newValue) -> oldValue
-                ));
+        Map<String, String> cookies = new HashMap<>();
+        for (int start = 0; start < cookieHeader.length(); ) {
+            int end = cookieHeader.indexOf(';', start);
+            if (end < 0) {
+                end = cookieHeader.length();
+            }
+            String cookie = cookieHeader.substring(start, end).trim();
+            int eq = cookie.indexOf('=');
+            // Exactly one '=' and a value, the first cookie of a name wins
+            if (eq >= 0 && eq < cookie.length() - 1 && cookie.indexOf('=', eq + 1) < 0) {
+                cookies.putIfAbsent(cookie.substring(0, eq), cookie.substring(eq + 1));
+            }
+            start = end + 1;
+        }
+        return cookies;
     }
 }
@@ -0,0 +1,490 @@
+package com.minihttp.http.HttpParser;
+
+import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpRequest.RequestBody;
+import com.minihttp.http.HttpRequest.RequestHead;
+import com.minihttp.http.HttpStatus.HttpStatus;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A resumable HTTP/1.1 request parser that works directly on ByteBuffers.
+ * <p>
+ * One instance is kept per connection. Every call to {@link #parse(ByteBuffer)} consumes as many bytes as
+ * it can and remembers where it stopped, so a request split across any number of reads is assembled
+ * correctly. Parsing stops right after a complete message, leaving any following bytes in the buffer.
+ * The request line and headers are copied once, into the {@link RequestHead} the request keeps; header
+ * names and values are only located, and decoded later if a handler asks for them.
+ * <p>
+ * Bodies are read with Content-Length or Transfer-Encoding: chunked and kept as raw bytes; one larger than
+ * the spill threshold goes to a temp file while it is read (see {@link RequestBody}).
+ */
+public class IncrementalHttpParser {
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 << 20;
+    public static final int DEFAULT_SPILL_THRESHOLD = 256 << 10;
+    // Chunk size lines are a few hex digits, plus extensions nobody sends
+    private static final int MAX_CHUNK_LINE = 1024;
+    private static final byte[] HTTP_1_1 = {'H', 'T', 'T', 'P', '/', '1', '.', '1'};
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxHeaderSize;
+    private final long maxBodySize;
+    private final int spillThreshold;
+
+    private State state;
+    private HttpStatus status;
+    // The request line and header lines, with their line breaks, as they arrived
+    private byte[] head = new byte[512];
+    private int headLength;
+    // Chunk size lines and trailers, which are not kept
+    private byte[] line = new byte[64];
+    private int lineLength;
+    // Where the last complete line is, in head or line, without its line break
+    private int lineStart;
+    private int lineEnd;
+    private int trailerBytes;
+    // nameStart, nameEnd, valueStart, valueEnd per header, reused across requests
+    private int[] spans = new int[64];
+    private int headerCount;
+
+    private HttpMethod method;
+    private String path;
+    private int queryStart;
+    private int queryEnd;
+    private long contentLength;
+    private boolean chunked;
+    private BodyCollector body;
+    private long bodyRemaining;
+    private HttpRequest request;
+
+    public IncrementalHttpParser() {
+        this(DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_BODY_SIZE, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public IncrementalHttpParser(int maxHeaderSize, long maxBodySize) {
+        this(maxHeaderSize, maxBodySize, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * @param spillThreshold the largest body kept in memory, larger ones are written to a temp file.
+     */
+    public IncrementalHttpParser(int maxHeaderSize, long maxBodySize, int spillThreshold) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+        this.spillThreshold = spillThreshold;
+        reset();
+    }
+
+    /**
+     * Consumes bytes from {@code in} until the current request is complete, an error is found,
+     * or the buffer runs dry.
+     *
+     * @return {@link State#COMPLETE} once {@link #getRequest()} is available, {@link State#ERROR} once
+     * {@link #getStatus()} describes the failure, or the state to resume from on the next call.
+     */
+    public State parse(ByteBuffer in) {
+        while (in.hasRemaining() && state != State.COMPLETE && state != State.ERROR) {
+            if (state == State.BODY || state == State.CHUNK_DATA) {
+                readBody(in);
+            } else if (readLine(in)) {
+                switch (state) {
+                    case REQUEST_LINE -> onRequestLine();
+                    case HEADERS -> onHeaderLine();
+                    case CHUNK_SIZE -> onChunkSize();
+                    case CHUNK_DATA_END -> onChunkDataEnd();
+                    default -> onTrailerLine();
+                }
+                lineLength = 0;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Prepares the parser for the next request on the same connection. Also called when the connection
+     * closes, to drop a body that was only partly read.
+     */
+    public void reset() {
+        if (body != null) {
+            body.discard();
+        }
+        state = State.REQUEST_LINE;
+        status = HttpStatus.OK;
+        headLength = 0;
+        lineLength = 0;
+        trailerBytes = 0;
+        headerCount = 0;
+        method = null;
+        path = null;
+        queryStart = -1;
+        queryEnd = -1;
+        contentLength = -1;
+        chunked = false;
+        body = null;
+        bodyRemaining = 0;
+        request = null;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return true once any byte of the current request has been consumed.
+     */
+    public boolean isInProgress() {
+        return state != State.REQUEST_LINE || lineLength > 0;
+    }
+
+    /**
+     * @return true while the headers are done and the body is being read.
+     */
+    public boolean isReadingBody() {
+        return state == State.BODY || state == State.CHUNK_SIZE || state == State.CHUNK_DATA
+                || state == State.CHUNK_DATA_END || state == State.TRAILERS;
+    }
+
+    /**
+     * Reads up to the next LF, into {@link #head} for the request line and headers and into {@link #line}
+     * otherwise.
+     *
+     * @return true once a whole line is between {@link #lineStart} and {@link #lineEnd}.
+     */
+    private boolean readLine(ByteBuffer in) {
+        boolean inHead = state == State.REQUEST_LINE || state == State.HEADERS;
+        int base = inHead ? headLength : 0;
+        int limit = switch (state) {
+            case REQUEST_LINE -> maxHeaderSize;
+            case HEADERS -> maxHeaderSize - headLength;
+            case CHUNK_SIZE, CHUNK_DATA_END -> MAX_CHUNK_LINE;
+            default -> maxHeaderSize - trailerBytes;
+        };
+        byte[] buf = inHead ? head : line;
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                lineStart = base;
+                lineEnd = base + lineLength;
+                if (lineLength > 0 && buf[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                if (inHead) {
+                    buf = ensureCapacity(buf, base + lineLength + 1);
+                    buf[base + lineLength] = b;
+                    head = buf;
+                    headLength = base + lineLength + 1;
+                } else {
+                    trailerBytes += lineLength + 1;
+                }
+                return true;
+            }
+            if (lineLength >= limit) {
+                fail(switch (state) {
+                    case REQUEST_LINE -> HttpStatus.REQUEST_URI_TOO_LONG;
+                    case CHUNK_SIZE, CHUNK_DATA_END -> HttpStatus.BAD_REQUEST;
+                    default -> HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE;
+                });
+                return false;
+            }
+            if (base + lineLength == buf.length) {
+                buf = ensureCapacity(buf, base + lineLength + 1);
+                if (inHead) {
+                    head = buf;
+                } else {
+                    line = buf;
+                }
+            }
+            buf[base + lineLength++] = b;
+        }
+        return false;
+    }
+
+    private static byte[] ensureCapacity(byte[] b, int size) {
+        return size <= b.length ? b : Arrays.copyOf(b, Math.max(size, b.length * 2));
+    }
+
+    private void onRequestLine() {
+        if (lineEnd == lineStart) {
+            // Tolerate empty lines ahead of the request line.
+            headLength = 0;
+            return;
+        }
+        int firstSpace = indexOf(head, (byte) ' ', lineStart, lineEnd);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(head, (byte) ' ', firstSpace + 1, lineEnd);
+        if (firstSpace <= lineStart || secondSpace < 0 || secondSpace == firstSpace + 1
+                || indexOf(head, (byte) ' ', secondSpace + 1, lineEnd) >= 0) {
+            fail(HttpStatus.BAD_REQUEST);
+            return;
+        }
+        method = HttpMethod.fromBytes(head, lineStart, firstSpace - lineStart);
+        if (method == null) {
+            fail(HttpStatus.BAD_REQUEST);
+            return;
+        }
+        if (!equalsIgnoreCase(head, secondSpace + 1, lineEnd - secondSpace - 1, HTTP_1_1)) {
+            fail(HttpStatus.HTTP_VERSION_NOT_SUPPORTED);
+            return;
+        }
+        int question = indexOf(head, (byte) '?', firstSpace + 1, secondSpace);
+        int pathEnd = question < 0 ? secondSpace : question;
+        if (question >= 0) {
+            queryStart = question + 1;
+            queryEnd = secondSpace;
+            // The query is decoded only when a handler asks for it, so a bad escape is caught here
+            if (!hasValidEscapes(head, queryStart, queryEnd)) {
+                fail(HttpStatus.BAD_REQUEST);
+                return;
+            }
+        }
+        path = new String(head, firstSpace + 1, pathEnd - firstSpace - 1, StandardCharsets.UTF_8);
+        state = State.HEADERS;
+    }
+
+    private void onHeaderLine() {
+        if (lineEnd == lineStart) {
+            onHeadersComplete();
+            return;
+        }
+        int colonIdx = indexOf(head, (byte) ':', lineStart, lineEnd);
+        if (colonIdx < 0) {
+            fail(HttpStatus.BAD_REQUEST);
+            return;
+        }
+        int nameStart = skipSpaces(lineStart, colonIdx);
+        int nameEnd = trimSpaces(nameStart, colonIdx);
+        if (nameStart == nameEnd) {
+            fail(HttpStatus.BAD_REQUEST);
+            return;
+        }
+        int valueStart = skipSpaces(colonIdx + 1, lineEnd);
+        int valueEnd = trimSpaces(valueStart, lineEnd);
+        if (equalsIgnoreCase(head, nameStart, nameEnd - nameStart, CONTENT_LENGTH)) {
+            long length = parseNumber(head, valueStart, valueEnd, 10);
+            // Repeating the same length is allowed, two different ones could frame the body two ways
+            if (length < 0 || (contentLength >= 0 && length != contentLength)) {
+                fail(HttpStatus.BAD_REQUEST);
+                return;
+            }
+            contentLength = length;
+            if (contentLength > maxBodySize) {
+                fail(HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+        } else if (equalsIgnoreCase(head, nameStart, nameEnd - nameStart, TRANSFER_ENCODING)) {
+            // Only chunked is supported, alone; it may not be combined with another coding
+            if (!equalsIgnoreCase(head, valueStart, valueEnd - valueStart, CHUNKED)) {
+                fail(HttpStatus.NOT_IMPLEMENTED);
+                return;
+            }
+            chunked = true;
+        }
+        if (headerCount * 4 == spans.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+        }
+        int i = headerCount++ * 4;
+        spans[i] = nameStart;
+        spans[i + 1] = nameEnd;
+        spans[i + 2] = valueStart;
+        spans[i + 3] = valueEnd;
+    }
+
+    private int skipSpaces(int from, int to) {
+        while (from < to && (head[from] & 0xFF) <= ' ') from++;
+        return from;
+    }
+
+    private int trimSpaces(int from, int to) {
+        while (to > from && (head[to - 1] & 0xFF) <= ' ') to--;
+        return to;
+    }
+
+    private void onHeadersComplete() {
+        if (chunked) {
+            if (contentLength >= 0) {
+                // Both framings at once is how requests get smuggled past proxies
+                fail(HttpStatus.BAD_REQUEST);
+                return;
+            }
+            body = new BodyCollector(-1, spillThreshold);
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            body = new BodyCollector(contentLength, spillThreshold);
+            bodyRemaining = contentLength;
+            state = State.BODY;
+        } else {
+            complete();
+        }
+    }
+
+    private void readBody(ByteBuffer in) {
+        int n = (int) Math.min(in.remaining(), bodyRemaining);
+        try {
+            body.write(in, n);
+        } catch (IOException e) {
+            fail(HttpStatus.INTERNAL_SERVER_ERROR);
+            return;
+        }
+        bodyRemaining -= n;
+        if (bodyRemaining == 0) {
+            if (state == State.BODY) {
+                complete();
+            } else {
+                state = State.CHUNK_DATA_END;
+            }
+        }
+    }
+
+    private void onChunkSize() {
+        int end = indexOf(line, (byte) ';', lineStart, lineEnd);
+        long size = parseNumber(line, lineStart, end < 0 ? lineEnd : end, 16);
+        if (size < 0) {
+            fail(HttpStatus.BAD_REQUEST);
+        } else if (size == 0) {
+            trailerBytes = 0;
+            state = State.TRAILERS;
+        } else if (body.size() + size > maxBodySize) {
+            fail(HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        } else {
+            bodyRemaining = size;
+            state = State.CHUNK_DATA;
+        }
+    }
+
+    private void onChunkDataEnd() {
+        if (lineEnd != lineStart) {
+            fail(HttpStatus.BAD_REQUEST);
+            return;
+        }
+        state = State.CHUNK_SIZE;
+    }
+
+    private void onTrailerLine() {
+        // Trailer fields are read past but not merged into the headers
+        if (lineEnd == lineStart) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        RequestHead requestHead = new RequestHead(Arrays.copyOf(head, headLength),
+                Arrays.copyOf(spans, headerCount * 4), headerCount, queryStart, queryEnd);
+        String contentType = requestHead.header("content-type");
+        if (contentType == null) {
+            contentType = "text/plain";
+        }
+        RequestBody requestBody;
+        try {
+            requestBody = body != null ? body.finish(contentType) : new RequestBody(contentType, "");
+            body = null;
+        } catch (IOException e) {
+            fail(HttpStatus.INTERNAL_SERVER_ERROR);
+            return;
+        }
+        if (method == HttpMethod.POST && requestBody.length() == 0) {
+            fail(HttpStatus.BAD_REQUEST);
+            return;
+        }
+        try {
+            request = new HttpRequest.Create()
+                    .setHttpMethod(method)
+                    .setHead(requestHead, path)
+                    .setRequestBody(requestBody)
+                    .build();
+            state = State.COMPLETE;
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            requestBody.close();
+            fail(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    private void fail(HttpStatus s) {
+        status = s;
+        state = State.ERROR;
+        if (body != null) {
+            body.discard();
+            body = null;
+        }
+    }
+
+    /**
+     * Parses a non-negative decimal or hex number, ignoring surrounding spaces and tabs.
+     *
+     * @return the value, or -1 if it is malformed or too long to be a sane length.
+     */
+    private static long parseNumber(byte[] b, int from, int to, int radix) {
+        while (from < to && (b[from] == ' ' || b[from] == '\t')) from++;
+        while (to > from && (b[to - 1] == ' ' || b[to - 1] == '\t')) to--;
+        if (from == to || to - from > 15) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(b[i], radix);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * radix + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return whether every '%' is followed by two hex digits, as URL decoding requires.
+     */
+    private static boolean hasValidEscapes(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == '%') {
+                if (i + 2 >= to || Character.digit(b[i + 1], 16) < 0 || Character.digit(b[i + 2], 16) < 0) {
+                    return false;
+                }
+                i += 2;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] b, byte target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] b, int off, int len, byte[] expected) {
+        if (len != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (toLowerCase(b[off + i]) != toLowerCase(expected[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    public enum State {
+        REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, COMPLETE, ERROR
+    }
+}
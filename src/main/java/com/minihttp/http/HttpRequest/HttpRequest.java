@@ -8,51 +8,104 @@ import com.minihttp.util.Pair.Pair;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A parsed request. One built by {@link com.minihttp.http.HttpParser.IncrementalHttpParser} is backed by
+ * the raw {@link RequestHead}: the header map, query parameters and cookies are only built the first
+ * time a handler asks for them, and {@link #getHeader(String)} reads the head in place. A request is used
+ * by one thread at a time, so these are cached without locking.
+ */
 public class HttpRequest {
     private final String uri;
-    private final Map<String, String> requestHeader;
     private final HttpMethod opCode;
     private final RequestBody requestBody;
-    private final String inString;
-    private final Map<String, String> queryParams;
-    private final String accept;
-    private final String contentType;
-    private final Map<String, String> cookies;
+    // Null for requests built from maps by the legacy parser
+    private final RequestHead head;
+    private final String query;
+    private final String cookieHeader;
+    private String inString;
+    private Map<String, String> requestHeader;
+    private Map<String, String> queryParams;
+    private String accept;
+    private String contentType;
+    private Map<String, String> cookies;
 
     private HttpRequest(HttpMethod op, Map<String, String> reqHeader, String u, RequestBody body, String s,
-                        Map<String, String> kv, Map<String, String> cookies, String accept, String contentType) {
+                        RequestHead head, String query, Map<String, String> cookies, String cookieHeader,
+                        String accept, String contentType) {
         this.uri = u;
         this.opCode = op;
         this.requestHeader = reqHeader;
         this.requestBody = body;
         this.inString = s;
-        this.queryParams = kv;
+        this.head = head;
+        this.query = query;
         this.cookies = cookies;
+        this.cookieHeader = cookieHeader;
         this.accept = accept;
         this.contentType = contentType;
     }
 
+    /**
+     * @return the URL-decoded query parameters, or null if the URI has no query string.
+     */
     public Map<String, String> getParams() {
+        if (queryParams == null && query != null) {
+            queryParams = HttpUtil.splitParams(query);
+        }
         return this.queryParams;
     }
 
     public String getAccept() {
+        if (accept == null) {
+            String value = getHeader("accept");
+            accept = value != null ? value : "*/*";
+        }
         return this.accept;
     }
 
     public String getContentType() {
+        if (contentType == null) {
+            String value = getHeader("content-type");
+            contentType = value != null ? value : "text/plain";
+        }
         return this.contentType;
     }
 
+    public Map<String, String> getCookies() {
+        if (cookies == null) {
+            cookies = HttpParser.parseCookies(head != null ? getHeader("cookie") : cookieHeader);
+        }
+        return Collections.unmodifiableMap(cookies);
+    }
+
+    public String getCookie(String name) {
+        return getCookies().get(name);
+    }
+
+    /**
+     * @return the request line and headers as received. Only decoded when asked for, nothing keeps a
+     * copy of the request text otherwise.
+     */
     @Override
     public String toString() {
+        if (inString == null && head != null) {
+            inString = head.toString();
+        }
         return inString;
     }
 
+    /**
+     * @return the value of the header called {@code name}, ignoring case, or null if it was not sent.
+     */
     public String getHeader(String name) {
-        return this.requestHeader.get(name);
+        if (head != null) {
+            return head.header(name);
+        }
+        String value = this.requestHeader.get(name);
+        return value != null ? value : this.requestHeader.get(name.toLowerCase());
     }
 
     public String getURI() {
@@ -63,7 +116,17 @@ public class HttpRequest {
         return this.opCode;
     }
 
+    /**
+     * @return every header by lower-cased name.
+     */
     public Map<String, String> getRequestHeader() {
+        if (requestHeader == null) {
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 0; i < head.headerCount(); i++) {
+                headers.put(head.name(i), head.value(i));
+            }
+            requestHeader = headers;
+        }
         return Collections.unmodifiableMap(requestHeader);
     }
 
@@ -81,6 +144,9 @@ public class HttpRequest {
         private String accept;
         private String contentType;
         private Map<String, String> cookies;
+        private String cookieHeader;
+        private RequestHead head;
+        private String query;
 
         public static Pair<HttpStatus, HttpRequest> processHttpRequest(String httpRequestString) {
             return HttpParser.parse(httpRequestString);
@@ -93,7 +159,7 @@ public class HttpRequest {
 
 
         public Create setCookies(String cookieHeader) {
-            this.cookies = HttpParser.parseCookies(cookieHeader);
+            this.cookieHeader = cookieHeader;
             return this;
         }
 
@@ -136,16 +202,38 @@ public class HttpRequest {
             return this;
         }
 
+        /**
+         * Backs the request with the raw head, in place of the header map, cookies, accept and content
+         * type. {@code path} is the URI up to the query string, which the head points at.
+         */
+        public Create setHead(RequestHead head, String path) {
+            this.head = head;
+            this.uri = path;
+            return this;
+        }
+
         public HttpRequest build() throws UnsupportedEncodingException {
-            String[] pq = this.uri.split("\\?");
+            String path = this.uri;
+            String q = null;
+            if (head != null) {
+                q = head.query();
+            } else {
+                int idx = path.indexOf('?');
+                if (idx >= 0) {
+                    q = path.substring(idx + 1);
+                    path = path.substring(0, idx);
+                }
+            }
             return new HttpRequest(
                     this.opCode,
                     this.requestHeader,
-                    pq[0],
+                    path,
                     this.requestBody,
                     this.inString,
-                    pq.length > 1 ? this.setQueryParams(pq[1]) : null,
+                    this.head,
+                    q,
                     this.cookies,
+                    this.cookieHeader,
                     this.accept,
                     this.contentType
             );
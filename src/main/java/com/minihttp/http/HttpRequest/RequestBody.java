@@ -1,17 +1,78 @@
 package com.minihttp.http.HttpRequest;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
 import com.minihttp.http.HttpUtil.HttpUtil;
+import com.minihttp.http.Json.Json;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
-public class RequestBody {
+/**
+ * The bytes of a request body, kept as they arrived: in memory for small bodies, or in a temp file the
+ * parser spilled a large upload to.
+ * <p>
+ * The text, JSON and form views are only decoded when a handler asks for them, and then cached. Only
+ * {@link #asFormValues()} URL-decodes. JSON is read straight from the bytes, without decoding the text
+ * first, and can be bound to a class with {@link #asJson(Class)}. A spilled body is memory-mapped on the first
+ * {@link #asByteBuffer()}. The server calls {@link #close()} once the response has been handed to it,
+ * which deletes the temp file, so handlers must not keep the body past that.
+ */
+public class RequestBody implements Closeable {
+    private static final byte[] EMPTY = new byte[0];
+
     private String contentType;
-    private String body;
+    private byte[] bytes;
+    private int length;
+    private Path file;
+    private long fileLength;
+    private ByteBuffer mapped;
+    private String text;
+    private JsonObject json;
+    private Map<String, String> form;
 
     public RequestBody(String contentType, String body) {
         this.contentType = contentType;
-        this.body = body;
+        setBody(body);
+    }
+
+    private RequestBody(String contentType, byte[] bytes, int length, Path file, long fileLength) {
+        this.contentType = contentType;
+        this.bytes = bytes;
+        this.length = length;
+        this.file = file;
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * A body held in memory, the first {@code length} bytes of {@code bytes}, which are not copied.
+     */
+    public static RequestBody of(String contentType, byte[] bytes, int length) {
+        return new RequestBody(contentType, bytes, length, null, 0);
+    }
+
+    /**
+     * A body stored in {@code file}, which the body owns and deletes on {@link #close()}.
+     */
+    public static RequestBody ofFile(String contentType, Path file, long length) {
+        return new RequestBody(contentType, null, 0, file, length);
     }
 
     public String getContentType() {
@@ -20,30 +81,178 @@ public class RequestBody {
 
     public void setContentType(String contentType) {
         this.contentType = contentType;
+        this.text = null;
+        this.json = null;
+        this.form = null;
     }
 
+    /**
+     * @return the body decoded as text, same as {@link #asText()}.
+     */
     public String getBody() {
-        return body;
+        return asText();
     }
 
+    /**
+     * Replaces the body with {@code body}, encoded as UTF-8.
+     */
     public void setBody(String body) {
-        this.body = body;
+        close();
+        this.text = body == null ? "" : body;
+        this.bytes = text.isEmpty() ? EMPTY : text.getBytes(StandardCharsets.UTF_8);
+        this.length = bytes.length;
+        this.json = null;
+        this.form = null;
     }
 
-    public JsonObject asJson() {
-        return HttpUtil.asJson(body);
+    /**
+     * @return the body size in bytes.
+     */
+    public long length() {
+        return file != null ? fileLength : length;
+    }
+
+    /**
+     * @return true if the body was spilled to a temp file.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return a read-only view of the raw bytes. A spilled body is memory-mapped, not read into the heap.
+     */
+    public ByteBuffer asByteBuffer() {
+        if (file == null) {
+            return ByteBuffer.wrap(bytes, 0, length).asReadOnlyBuffer();
+        }
+        if (mapped == null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * @return a new stream over the raw bytes, which the caller closes.
+     */
+    public InputStream asInputStream() {
+        if (file == null) {
+            return new ByteArrayInputStream(bytes, 0, length);
+        }
+        try {
+            return Files.newInputStream(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
+    /**
+     * @return a new channel over the raw bytes, which the caller closes.
+     */
+    public ReadableByteChannel asChannel() {
+        if (file == null) {
+            return Channels.newChannel(asInputStream());
+        }
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the body decoded with the charset of its content type, UTF-8 by default.
+     */
     public String asText() {
-        return HttpUtil.asText(body);
+        if (text == null) {
+            Charset charset = charset();
+            text = file == null ? new String(bytes, 0, length, charset) : charset.decode(asByteBuffer()).toString();
+        }
+        return text;
+    }
+
+    public JsonObject asJson() {
+        if (json == null) {
+            json = JsonParser.parseReader(asReader()).getAsJsonObject();
+        }
+        return json;
+    }
+
+    /**
+     * Binds the body to a {@code type} with {@link Json#getDefault()}, reading it as a stream. Unlike
+     * {@link #asJson()} the result is not cached.
+     *
+     * @return the value, or null for an empty body.
+     * @throws com.google.gson.JsonSyntaxException if the body is not a {@code type} in JSON.
+     */
+    public <T> T asJson(Class<T> type) {
+        return Json.getDefault().read(asReader(), type);
+    }
+
+    /**
+     * Like {@link #asJson(Class)}, for generic types such as {@code new TypeToken<List<Book>>() {}}.
+     */
+    public <T> T asJson(TypeToken<T> type) {
+        return Json.getDefault().read(asReader(), type);
+    }
+
+    /**
+     * @return a new reader decoding the body with the charset of its content type, which the caller closes.
+     */
+    public Reader asReader() {
+        if (text != null) {
+            return new StringReader(text);
+        }
+        return new InputStreamReader(asInputStream(), charset());
     }
 
     public Object asRaw() {
-        return body;
+        return asText();
     }
 
+    /**
+     * @return the body parsed as application/x-www-form-urlencoded, names and values URL-decoded.
+     */
     public Map<String, String> asFormValues() {
-        return HttpUtil.asFormValue(body);
+        if (form == null) {
+            form = HttpUtil.asFormValue(asText());
+        }
+        return form;
     }
 
-}
\ No newline at end of file
+    private Charset charset() {
+        String name = HttpUtil.parseContentTypeCharset(contentType).trim();
+        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+            name = name.substring(1, name.length() - 1);
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * Deletes the temp file of a spilled body. Views already handed out stay readable on most platforms,
+     * but new ones cannot be made.
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Left for the OS to clean up with the temp directory
+            }
+            file = null;
+            fileLength = 0;
+            mapped = null;
+            bytes = EMPTY;
+            length = 0;
+        }
+    }
+}
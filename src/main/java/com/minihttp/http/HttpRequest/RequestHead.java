@@ -0,0 +1,112 @@
+package com.minihttp.http.HttpRequest;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The request line and header lines exactly as they were received, with the position of every header
+ * name and value in them. Nothing is decoded up front: a header value becomes a String the first time it
+ * is asked for, and looking a header up compares bytes in place, so a missing header costs no allocation.
+ */
+public final class RequestHead {
+    private final byte[] bytes;
+    // nameStart, nameEnd, valueStart, valueEnd for each header, in arrival order
+    private final int[] spans;
+    private final int headerCount;
+    private final int queryStart;
+    private final int queryEnd;
+    private String[] values;
+
+    /**
+     * @param bytes      the head, request line included, which the head keeps without copying.
+     * @param spans      four offsets per header into {@code bytes}: name start and end, value start and end.
+     * @param queryStart where the query string starts, after the '?', or -1 if the URI has none.
+     */
+    public RequestHead(byte[] bytes, int[] spans, int headerCount, int queryStart, int queryEnd) {
+        this.bytes = bytes;
+        this.spans = spans;
+        this.headerCount = headerCount;
+        this.queryStart = queryStart;
+        this.queryEnd = queryEnd;
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    /**
+     * @return the name of the i-th header, lower-cased.
+     */
+    public String name(int i) {
+        int start = spans[i * 4];
+        int end = spans[i * 4 + 1];
+        char[] name = new char[end - start];
+        for (int j = start; j < end; j++) {
+            name[j - start] = (char) toLowerCase(bytes[j]);
+        }
+        return new String(name);
+    }
+
+    public String value(int i) {
+        if (values == null) {
+            values = new String[headerCount];
+        }
+        String value = values[i];
+        if (value == null) {
+            int start = spans[i * 4 + 2];
+            value = new String(bytes, start, spans[i * 4 + 3] - start, StandardCharsets.UTF_8);
+            values[i] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return the index of the header called {@code name}, ignoring case, or -1. If it was sent more than
+     * once, the last one wins.
+     */
+    public int indexOf(String name) {
+        for (int i = headerCount - 1; i >= 0; i--) {
+            int start = spans[i * 4];
+            if (spans[i * 4 + 1] - start == name.length() && equalsIgnoreCase(start, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of the header called {@code name}, ignoring case, or null if it was not sent.
+     */
+    public String header(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * @return the raw query string, still URL-encoded, or null if the URI has none.
+     */
+    public String query() {
+        return queryStart < 0 ? null : new String(bytes, queryStart, queryEnd - queryStart, StandardCharsets.UTF_8);
+    }
+
+    private boolean equalsIgnoreCase(int start, String name) {
+        for (int j = 0; j < name.length(); j++) {
+            char c = name.charAt(j);
+            if (c > 0x7F || toLowerCase(bytes[start + j]) != toLowerCase((byte) c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * @return the head as it was received, decoded now.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,88 @@
+package com.minihttp.http.HttpResponse;
+
+import com.minihttp.util.BufferPool.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames a {@link ChunkedBody} for the wire, one pooled buffer at a time. Servers send the response head
+ * first, then call {@link #nextChunk(BufferPool)} each time the previous chunk has been written, until
+ * {@link #isDone()}.
+ */
+public final class ChunkEncoder {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // Four hex digits and CRLF, enough for any chunk that fits CHUNK_SIZE
+    private static final int SIZE_LINE = 6;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ChunkedBody body;
+    private boolean done;
+    private boolean closed;
+
+    public ChunkEncoder(ChunkedBody body) {
+        this.body = body;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Asks the body for more data and returns it framed as a chunk, followed by the last chunk once the
+     * body is complete. The buffer comes from {@code pool}, flipped, and the caller releases it once sent.
+     *
+     * @throws IOException if the body fails, the response cannot be completed and the connection should
+     *                     be closed.
+     */
+    public ByteBuffer nextChunk(BufferPool pool) throws IOException {
+        ByteBuffer out = pool.acquire(CHUNK_SIZE);
+        try {
+            int capacity = Math.min(out.capacity(), CHUNK_SIZE);
+            out.position(SIZE_LINE).limit(capacity - CRLF.length - LAST_CHUNK.length);
+            boolean more;
+            try {
+                more = body.next(out);
+            } catch (RuntimeException e) {
+                throw new IOException("Chunked body failed", e);
+            }
+            int size = out.position() - SIZE_LINE;
+            out.limit(capacity);
+            if (size > 0) {
+                for (int i = 3; i >= 0; i--) {
+                    out.put(3 - i, HEX[(size >>> (i * 4)) & 0xF]);
+                }
+                out.put(4, CRLF[0]).put(5, CRLF[1]);
+                out.put(CRLF);
+            }
+            if (!more) {
+                out.put(LAST_CHUNK);
+                done = true;
+                close();
+            }
+            out.flip();
+            if (size == 0) {
+                // Nothing before the last chunk, skip the unused size line
+                out.position(SIZE_LINE);
+            }
+            return out;
+        } catch (IOException e) {
+            pool.release(out);
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lets the body release what it holds. Safe to call more than once.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.minihttp.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A response body produced piece by piece while it is being sent, with Transfer-Encoding: chunked.
+ * <p>
+ * The server pulls: it calls {@link #next(ByteBuffer)} only when the socket can take more, so a slow
+ * client slows the producer down and only one chunk per connection is held in memory. {@code next} runs
+ * on the thread writing the response, usually an event loop, so it must not block.
+ */
+public interface ChunkedBody {
+    /**
+     * Writes the next part of the body into {@code out}, as much as is available and fits. Each call
+     * that returns true must write at least one byte.
+     *
+     * @return false once the body is complete. Bytes written by that last call are still sent.
+     */
+    boolean next(ByteBuffer out) throws IOException;
+
+    /**
+     * Called once the body has been sent or the connection was lost, whichever comes first.
+     */
+    default void close() {
+    }
+
+    /**
+     * A body made of the given parts, sent as UTF-8. The iterator is advanced lazily, so it may generate
+     * the parts, e.g. the rows of an export, as they are needed.
+     */
+    static ChunkedBody of(Iterator<? extends CharSequence> parts) {
+        return new ChunkedBody() {
+            private CharSequence part;
+            private int offset;
+
+            @Override
+            public boolean next(ByteBuffer out) {
+                // A character takes at most 4 bytes as UTF-8, counting a surrogate pair as one
+                while (out.remaining() >= 4) {
+                    if (part == null || offset == part.length()) {
+                        if (!parts.hasNext()) {
+                            return false;
+                        }
+                        part = parts.next();
+                        offset = 0;
+                        continue;
+                    }
+                    int end = Math.min(part.length(), offset + out.remaining() / 4);
+                    if (end < part.length() && end > offset && Character.isHighSurrogate(part.charAt(end - 1))) {
+                        end--;
+                    }
+                    if (end == offset) {
+                        // Only a surrogate pair fits, which needs the two chars together
+                        end = Math.min(part.length(), offset + 2);
+                    }
+                    ResponseEncoder.putUtf8(out, part, offset, end);
+                    offset = end;
+                }
+                return part != null && offset < part.length() || parts.hasNext();
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package com.minihttp.http.HttpResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The value of the HTTP Date header, formatted at most once per second and shared by all threads.
+ */
+public final class DateHeader {
+    // IMF-fixdate (RFC 9110); RFC_1123_DATE_TIME would write "Fri, 2 Oct 2026 ..." without the zero
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final byte[] CONNECTION_KEEP_ALIVE = "\r\nConnection: keep-alive\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static volatile Snapshot current = new Snapshot(Instant.now().getEpochSecond());
+
+    private DateHeader() {
+    }
+
+    /**
+     * @return the current date in IMF-fixdate format, e.g. "Fri, 02 Oct 2026 14:06:38 GMT".
+     */
+    public static String now() {
+        return snapshot().value;
+    }
+
+    /**
+     * Formats an arbitrary instant the same way, e.g. for Last-Modified.
+     */
+    public static String format(Instant instant) {
+        return FORMAT.format(instant);
+    }
+
+    /**
+     * Returns a read-only buffer holding "Date: ...", the Connection header and the blank line that ends
+     * the header block, ready to be written right after a pre-encoded response head.
+     */
+    public static ByteBuffer trailer(boolean keepAlive) {
+        Snapshot s = snapshot();
+        return (keepAlive ? s.keepAliveTrailer : s.closeTrailer).duplicate();
+    }
+
+    /**
+     * Same bytes as {@link #trailer(boolean)} without a buffer view. The array is shared and must not be modified.
+     */
+    static byte[] trailerBytes(boolean keepAlive) {
+        Snapshot s = snapshot();
+        return keepAlive ? s.keepAliveBytes : s.closeBytes;
+    }
+
+    private static Snapshot snapshot() {
+        Snapshot s = current;
+        long second = System.currentTimeMillis() / 1000;
+        if (s.second != second) {
+            // Racing threads may format the same second twice, which is harmless.
+            s = new Snapshot(second);
+            current = s;
+        }
+        return s;
+    }
+
+    private static final class Snapshot {
+        final long second;
+        final String value;
+        final byte[] keepAliveBytes;
+        final byte[] closeBytes;
+        final ByteBuffer keepAliveTrailer;
+        final ByteBuffer closeTrailer;
+
+        Snapshot(long second) {
+            this.second = second;
+            this.value = FORMAT.format(Instant.ofEpochSecond(second));
+            byte[] date = ("Date: " + value).getBytes(StandardCharsets.US_ASCII);
+            this.keepAliveBytes = concat(date, CONNECTION_KEEP_ALIVE);
+            this.closeBytes = concat(date, CONNECTION_CLOSE);
+            this.keepAliveTrailer = ByteBuffer.wrap(keepAliveBytes).asReadOnlyBuffer();
+            this.closeTrailer = ByteBuffer.wrap(closeBytes).asReadOnlyBuffer();
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] bytes = new byte[a.length + b.length];
+            System.arraycopy(a, 0, bytes, 0, a.length);
+            System.arraycopy(b, 0, bytes, a.length, b.length);
+            return bytes;
+        }
+    }
+}
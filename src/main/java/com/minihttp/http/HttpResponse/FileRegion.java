@@ -0,0 +1,104 @@
+package com.minihttp.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A slice of a file used as a response body. The file is only opened once the server starts sending it,
+ * and {@link #transferTo(WritableByteChannel)} lets the kernel move the bytes without copying them
+ * through the Java heap.
+ */
+public class FileRegion {
+    private final Path path;
+    private final long position;
+    private final long count;
+    private FileChannel channel;
+    private long transferred;
+
+    public FileRegion(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.count = count;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isDone() {
+        return transferred == count;
+    }
+
+    /**
+     * Sends as much of the remaining region as {@code target} accepts right now. Closes the file once
+     * the whole region has been sent.
+     *
+     * @return the number of bytes written, possibly zero when the target is not ready.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        long n = channel.transferTo(position + transferred, count - transferred, target);
+        if (n == 0 && channel.size() <= position + transferred) {
+            close();
+            throw new IOException("File truncated while sending: " + path);
+        }
+        transferred += n;
+        if (isDone()) {
+            close();
+        }
+        return n;
+    }
+
+    /**
+     * Maps the remaining region read-only, for engines that cannot hand a file to the socket but can write
+     * a buffer: the bytes go from the page cache to the socket without passing through the Java heap. The
+     * mapping stays valid after this region is closed, until the buffer is garbage collected.
+     */
+    public ByteBuffer map() throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (fc.size() < position + count) {
+                throw new IOException("File truncated before sending: " + path);
+            }
+            ByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, position + transferred, count - transferred);
+            transferred = count;
+            return mapped;
+        }
+    }
+
+    /**
+     * Reads the remaining region into a heap buffer, for engines that cannot hand a file to the socket.
+     */
+    public ByteBuffer readFully() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(count - transferred));
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, position + transferred + buffer.position()) < 0) {
+                    throw new IOException("File truncated while reading: " + path);
+                }
+            }
+        }
+        transferred = count;
+        return buffer.flip();
+    }
+
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing left to release.
+            }
+            channel = null;
+        }
+    }
+}
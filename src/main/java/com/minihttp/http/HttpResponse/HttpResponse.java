@@ -1,23 +1,98 @@
 package com.minihttp.http.HttpResponse;
 
 import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.http.Json.Json;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class HttpResponse {
+    /**
+     * Headers sent with every response unless it sets its own value. Date and Connection are added when
+     * the response is written.
+     */
+    static final Map<String, String> DEFAULT_HEADERS;
+    static final byte[] DEFAULT_HEADER_BYTES;
+
+    static {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("Content-Security-Policy", "default-src 'self'");
+        defaults.put("X-Frame-Options", "deny");
+        defaults.put("X-Content-Type-Options", "nosniff");
+        defaults.put("Referrer-Policy", "origin-when-cross-origin");
+        defaults.put("Server", "MININIO/1.0.0.0");
+        DEFAULT_HEADERS = Collections.unmodifiableMap(defaults);
+
+        StringBuilder sb = new StringBuilder();
+        defaults.forEach((name, value) -> sb.append(name).append(": ").append(value).append("\r\n"));
+        DEFAULT_HEADER_BYTES = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
 
     private final int statusCode;
+    // Only the headers set on this response, the defaults are added by the encoder
     private final Map<String, List<String>> responseHeader;
     private final Optional<Object> entity;
-    private final byte[] httpResponseBytes;
+    // Exactly one of these holds the entity: text is encoded as UTF-8, binary is sent as it is, and a JSON
+    // value is serialized when the response is encoded, or into binary when a caller needs it as bytes
+    private final CharSequence text;
+    private volatile ByteBuffer binary;
+    private final Json json;
+    private final boolean overridesDefaultHeaders;
+    private final FileRegion fileRegion;
+    private final ChunkedBody chunkedBody;
+    private final ByteBuffer preEncodedHead;
+    private final ByteBuffer preEncodedBody;
 
-    private HttpResponse(int statusCode, Map<String, List<String>> responseHeader, Optional<Object> entity) {
+    private HttpResponse(int statusCode, Map<String, List<String>> responseHeader, Optional<Object> entity,
+                         Json json, FileRegion fileRegion, ChunkedBody chunkedBody) {
         this.statusCode = statusCode;
         this.responseHeader = responseHeader;
         this.entity = entity;
-        this.httpResponseBytes = generateHttpResponseBytes();
+        this.json = json;
+        Object value = entity.orElse("");
+        if (json != null) {
+            this.text = null;
+            this.binary = null;
+        } else if (value instanceof byte[] bytes) {
+            this.text = null;
+            this.binary = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        } else if (value instanceof ByteBuffer buffer) {
+            this.text = null;
+            this.binary = buffer.asReadOnlyBuffer();
+        } else {
+            this.text = value instanceof CharSequence chars ? chars : value.toString();
+            this.binary = null;
+        }
+        this.overridesDefaultHeaders = overridesDefaults(responseHeader);
+        this.fileRegion = fileRegion;
+        this.chunkedBody = chunkedBody;
+        this.preEncodedHead = null;
+        this.preEncodedBody = null;
+    }
+
+    private HttpResponse(int statusCode, ByteBuffer preEncodedHead, ByteBuffer preEncodedBody) {
+        this.statusCode = statusCode;
+        this.responseHeader = Collections.emptyMap();
+        this.entity = Optional.empty();
+        this.text = "";
+        this.binary = null;
+        this.json = null;
+        this.overridesDefaultHeaders = false;
+        this.fileRegion = null;
+        this.chunkedBody = null;
+        this.preEncodedHead = preEncodedHead;
+        this.preEncodedBody = preEncodedBody;
+    }
+
+    /**
+     * Wraps an already serialized response so it can be sent any number of times without re-encoding.
+     *
+     * @param head the status line and every header except Date and Connection, each ending in CRLF.
+     * @param body the complete body, matching the Content-Length in {@code head}.
+     */
+    public static HttpResponse preEncoded(int statusCode, ByteBuffer head, ByteBuffer body) {
+        return new HttpResponse(statusCode, head.asReadOnlyBuffer(), body.asReadOnlyBuffer());
     }
 
     public int getStatusCode() {
@@ -26,78 +101,125 @@ public class HttpResponse {
 
     @Override
     public String toString() {
-        return new String(httpResponseBytes, StandardCharsets.UTF_8);
+        if (isPreEncoded()) {
+            StringBuilder sb = new StringBuilder();
+            for (ByteBuffer b : preEncodedBuffers(true)) {
+                sb.append(StandardCharsets.UTF_8.decode(b));
+            }
+            return sb.toString();
+        }
+        return StandardCharsets.UTF_8.decode(ResponseEncoder.encode(this, true)).toString();
+    }
+
+    public boolean isPreEncoded() {
+        return preEncodedHead != null;
+    }
+
+    /**
+     * Returns fresh views of a pre-encoded response, ready for a gathering write: the head, the current
+     * Date and Connection headers, and the body. The underlying bytes are shared, never copied.
+     */
+    public ByteBuffer[] preEncodedBuffers(boolean keepAlive) {
+        return new ByteBuffer[]{preEncodedHead.duplicate(), DateHeader.trailer(keepAlive), preEncodedBody.duplicate()};
     }
 
+    /**
+     * @return every header this response is sent with, defaults included.
+     */
     public Map<String, List<String>> getResponseHeader() {
-        return Collections.unmodifiableMap(responseHeader);
+        Map<String, List<String>> headers = new HashMap<>();
+        DEFAULT_HEADERS.forEach((name, value) -> headers.put(name, List.of(value)));
+        headers.put("Connection", List.of("keep-alive"));
+        headers.put("Date", List.of(DateHeader.now()));
+        headers.putAll(responseHeader);
+        return Collections.unmodifiableMap(headers);
+    }
+
+    private static boolean overridesDefaults(Map<String, List<String>> headers) {
+        for (String name : headers.keySet()) {
+            if (DEFAULT_HEADERS.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Map<String, List<String>> headers() {
+        return responseHeader;
+    }
+
+    /**
+     * @return the text entity, or null when the entity is binary or JSON.
+     */
+    CharSequence text() {
+        return text;
+    }
+
+    /**
+     * @return a read-only view of the binary entity, or null when the entity is text. A JSON entity is
+     * serialized into a new array on the first call. Callers duplicate it before reading, so it can be sent
+     * any number of times.
+     */
+    ByteBuffer binary() {
+        ByteBuffer b = binary;
+        if (b == null && json != null) {
+            b = ByteBuffer.wrap(json.toBytes(entity.orElse(null))).asReadOnlyBuffer();
+            binary = b;
+        }
+        return b;
+    }
+
+    /**
+     * @return what serializes the entity, or null when it is not a JSON value.
+     */
+    Json json() {
+        return json;
+    }
+
+    boolean overridesDefaultHeaders() {
+        return overridesDefaultHeaders;
     }
 
     public Optional<Object> getEntity() {
         return entity;
     }
 
-    private byte[] generateHttpResponseBytes() {
-        StringBuilder sb = new StringBuilder();
-        String statusLine = "HTTP/1.1 " + statusCode + " " + HttpStatus.fromCode(statusCode) + "\r\n";
-        sb.append(statusLine);
-
-        int totalHeadersSize = 0;
-        for (Map.Entry<String, List<String>> entry : responseHeader.entrySet()) {
-            String headerName = entry.getKey();
-            List<String> values = entry.getValue();
-            totalHeadersSize += headerName.length() + values.stream().mapToInt(String::length).sum() + values.size() - 1;
-        }
-
-        // Append headers
-        sb.ensureCapacity(sb.length() + totalHeadersSize);
-        for (Map.Entry<String, List<String>> entry : responseHeader.entrySet()) {
-            String headerName = entry.getKey();
-            List<String> values = entry.getValue();
-            sb.append(headerName).append(": ");
-            int size = values.size();
-            for (int i = 0; i < size; i++) {
-                sb.append(values.get(i));
-                if (i < size - 1) {
-                    sb.append(';');
-                }
-            }
-            sb.append("\r\n");
-        }
-
-        // Append entity if present and not empty
-        entity.ifPresent(obj -> {
-            String entityString = obj.toString();
-            if (!entityString.isEmpty()) {
-                String contentLengthHeader = "Content-Length: " + entityString.length() + "\r\n\r\n";
-                sb.append(contentLengthHeader);
-                sb.append(entityString);
-            } else {
-                sb.append("\r\n");
-            }
-        });
+    /**
+     * @return the file to send after the headers, or null when the body is the entity.
+     */
+    public FileRegion getFileRegion() {
+        return fileRegion;
+    }
+
+    /**
+     * @return the body to stream with chunked transfer encoding, or null when the body is the entity.
+     */
+    public ChunkedBody getChunkedBody() {
+        return chunkedBody;
+    }
 
-        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    /**
+     * Returns a copy of this response with the given header replaced, leaving this instance untouched.
+     * Not supported for pre-encoded responses, whose Connection header is chosen when they are written.
+     */
+    public HttpResponse withHeader(String name, String value) {
+        if (isPreEncoded()) {
+            throw new UnsupportedOperationException("Pre-encoded responses cannot be modified");
+        }
+        Map<String, List<String>> headers = new HashMap<>(responseHeader);
+        headers.put(name, List.of(value));
+        return new HttpResponse(statusCode, headers, entity, json, fileRegion, chunkedBody);
     }
 
     public static class Create {
         private int statusCode = 200;
         private final Map<String, List<String>> responseHeader = new HashMap<>();
         private Optional<Object> entity = Optional.of("");
-        private String contentType = "text/plain";
-
-        public Create() {
-            responseHeader.put("Content-Security-Policy", List.of("default-src 'self'"));
-            responseHeader.put("X-Frame-Options", List.of("deny"));
-            responseHeader.put("X-Content-Type-Options", List.of("nosniff"));
-            responseHeader.put("Referrer-Policy", List.of("origin-when-cross-origin"));
-            responseHeader.put("Server", List.of("MININIO/1.0.0.0"));
-            responseHeader.put("Connection", List.of("keep-alive"));
-            String pattern = "E, dd MMM yyyy HH:mm:ss z";
-            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
-            String date = simpleDateFormat.format(new Date());
-            responseHeader.put("Date", List.of(date));
-        }
+        private Json json;
+        // Null for text/plain, or application/json for a JSON entity
+        private String contentType;
+        private FileRegion fileRegion;
+        private ChunkedBody chunkedBody;
 
         public Create setStatusCode(int statusCode) {
             this.statusCode = statusCode;
@@ -109,8 +231,76 @@ public class HttpResponse {
             return this;
         }
 
+        /**
+         * Sets the body from any object: byte[] and ByteBuffer values are sent as they are, CharSequences are
+         * encoded as UTF-8 and anything else as its toString(). Prefer the typed {@code setBody} variants.
+         */
         public Create setEntity(Optional<Object> entity) {
             this.entity = entity;
+            this.json = null;
+            return this;
+        }
+
+        /**
+         * Sends {@code body} as it is. The array is not copied, so it must not change until the response has
+         * been sent.
+         */
+        public Create setBody(byte[] body) {
+            return setEntity(Optional.of(body));
+        }
+
+        /**
+         * Sends the bytes between the position and the limit of {@code body}, which are not copied: they must
+         * not change until the response has been sent. A direct buffer goes to the socket without any copy.
+         */
+        public Create setBody(ByteBuffer body) {
+            return setEntity(Optional.of(body));
+        }
+
+        /**
+         * Sends {@code body} encoded as UTF-8 straight into the write buffer, without a String or array in
+         * between. A StringBuilder must not change until the response has been sent.
+         */
+        public Create setBody(CharSequence body) {
+            return setEntity(Optional.of(body));
+        }
+
+        /**
+         * Sends {@code value} as JSON, serialized by {@link Json#getDefault()} when the response is encoded:
+         * right after the handler returns on its own thread when handlers are offloaded, or on the I/O thread
+         * when they run inline. The Content-Type is application/json unless set otherwise. The value must not
+         * change until then.
+         */
+        public Create setJson(Object value) {
+            return setJson(value, Json.getDefault());
+        }
+
+        /**
+         * Sends {@code value} as JSON, serialized by {@code json}.
+         */
+        public Create setJson(Object value, Json json) {
+            this.entity = Optional.ofNullable(value);
+            this.json = json;
+            return this;
+        }
+
+        /**
+         * Sends a slice of a file after the headers, see {@link FileRegion}.
+         */
+        public Create setBody(FileRegion body) {
+            return setFileRegion(body);
+        }
+
+        public Create setFileRegion(FileRegion fileRegion) {
+            this.fileRegion = fileRegion;
+            return this;
+        }
+
+        /**
+         * Streams the body with Transfer-Encoding: chunked instead of sending the entity.
+         */
+        public Create setChunkedBody(ChunkedBody chunkedBody) {
+            this.chunkedBody = chunkedBody;
             return this;
         }
 
@@ -120,8 +310,9 @@ public class HttpResponse {
         }
 
         public HttpResponse build() {
-            responseHeader.put("Content-Type", List.of(contentType));
-            return new HttpResponse(statusCode, responseHeader, entity);
+            String type = contentType != null ? contentType : json != null ? Json.CONTENT_TYPE : "text/plain";
+            responseHeader.put("Content-Type", List.of(type));
+            return new HttpResponse(statusCode, responseHeader, entity, json, fileRegion, chunkedBody);
         }
     }
 }
@@ -0,0 +1,454 @@
+package com.minihttp.http.HttpResponse;
+
+import com.minihttp.LogWrapper.LogWrapper;
+import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.http.HttpUtil.HttpUtil;
+import com.minihttp.util.BufferPool.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes responses with a gzip or deflate body when the request's Accept-Encoding allows it.
+ * <p>
+ * Only entity bodies of a compressible content type (see {@link HttpUtil#isCompressible(String)}) and at
+ * least {@code threshold} characters, or bytes for a binary entity, long are compressed; every such
+ * response gets "Vary: Accept-Encoding" whether or not this client is sent the compressed form. A text
+ * body is fed to the Deflater in UTF-8 slices from a pooled buffer, a binary one as it is, and the output
+ * goes into pooled chunks, so a large JSON document is never copied into one array. Each platform thread
+ * reuses its own Deflaters instead of allocating native zlib state per response; a virtual thread, which
+ * usually serves one request, gets a Deflater for the call that is ended right after it.
+ */
+public class ResponseCompressor {
+    public static final int DEFAULT_THRESHOLD = 1024;
+    public static final int DEFAULT_LEVEL = 6;
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    // Output chunks are the 16 KB size class, input slices encode to at most 48 KB and fit the 64 KB one
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int SLICE_CHARS = 16 * 1024;
+    // Magic, CM=deflate, no flags, no mtime, no extra flags, OS unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private static final HttpResponse SERIALIZATION_FAILED = new HttpResponse.Create()
+            .setStatusCode(HttpStatus.INTERNAL_SERVER_ERROR.getCode())
+            .setBody(HttpStatus.INTERNAL_SERVER_ERROR.getMessage())
+            .build();
+
+    private final int threshold;
+    private final int level;
+    private final ThreadLocal<Deflaters> deflaters;
+
+    public ResponseCompressor() {
+        this(DEFAULT_THRESHOLD, DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param threshold the smallest body, in characters or bytes, worth compressing.
+     * @param level     the zlib level from 1 (fastest) to 9 (smallest), or 0 to never compress.
+     */
+    public ResponseCompressor(int threshold, int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        this.threshold = threshold;
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflaters(level));
+    }
+
+    public enum Coding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String token;
+
+        Coding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    /**
+     * Encodes {@code response} into buffers from {@code pool}, flipped and ready for a gathering write:
+     * the head, followed by the compressed body if the response was compressed, or by a view of a large
+     * binary entity, see {@link ResponseEncoder#encodeGathering}. The caller releases every buffer once it
+     * has been sent.
+     *
+     * @param acceptEncoding the request's Accept-Encoding header, or null.
+     */
+    public ByteBuffer[] encode(HttpResponse response, String acceptEncoding, boolean keepAlive, BufferPool pool) {
+        if (response.json() != null && response.getFileRegion() == null && response.getChunkedBody() == null
+                && ResponseEncoder.mayHaveBody(response)) {
+            return encodeJson(response, acceptEncoding, keepAlive, pool);
+        }
+        if (!isCompressible(response)) {
+            return ResponseEncoder.encodeGathering(response, keepAlive, pool, null);
+        }
+        String vary = vary(response);
+        Coding coding = negotiate(acceptEncoding);
+        if (coding == null) {
+            return ResponseEncoder.encodeGathering(response, keepAlive, pool, vary);
+        }
+        List<ByteBuffer> body = compress(response.text(), binary(response), coding, pool);
+        long length = 0;
+        for (ByteBuffer chunk : body) {
+            length += chunk.remaining();
+        }
+        ByteBuffer[] buffers = new ByteBuffer[body.size() + 1];
+        buffers[0] = ResponseEncoder.encodeHead(response, keepAlive, pool, vary, coding.getToken(), length);
+        for (int i = 0; i < body.size(); i++) {
+            buffers[i + 1] = body.get(i);
+        }
+        return buffers;
+    }
+
+    /**
+     * Serializes a JSON entity into pooled buffers and sends them as they are, or compressed when they add
+     * up to the threshold: the length is only known once the value has been written. A value that cannot
+     * be serialized is answered with 500. Servers call this on the handler's thread when handlers are
+     * offloaded, and on the I/O thread for inline handlers.
+     */
+    private ByteBuffer[] encodeJson(HttpResponse response, String acceptEncoding, boolean keepAlive, BufferPool pool) {
+        List<ByteBuffer> body;
+        try {
+            body = response.json().write(response.getEntity().orElse(null), pool);
+        } catch (RuntimeException e) {
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Could not serialize JSON response: {}", e);
+            return ResponseEncoder.encodeGathering(SERIALIZATION_FAILED, keepAlive, pool, null);
+        }
+        long length = 0;
+        for (ByteBuffer chunk : body) {
+            length += chunk.remaining();
+        }
+        String vary = null;
+        Coding coding = null;
+        if (level != Deflater.NO_COMPRESSION && length >= threshold && header(response, "Content-Encoding") == null
+                && HttpUtil.isCompressible(firstValue(header(response, "Content-Type")))) {
+            vary = vary(response);
+            coding = negotiate(acceptEncoding);
+        }
+        if (coding != null) {
+            List<ByteBuffer> compressed;
+            try {
+                compressed = compress(null, body, coding, pool);
+            } finally {
+                body.forEach(pool::release);
+            }
+            body = compressed;
+            length = 0;
+            for (ByteBuffer chunk : body) {
+                length += chunk.remaining();
+            }
+        }
+        ByteBuffer[] buffers = new ByteBuffer[body.size() + 1];
+        buffers[0] = ResponseEncoder.encodeHead(response, keepAlive, pool, vary,
+                coding != null ? coding.getToken() : null, length);
+        for (int i = 0; i < body.size(); i++) {
+            buffers[i + 1] = body.get(i);
+        }
+        return buffers;
+    }
+
+    /**
+     * Encodes {@code response} once the way {@link #encode} would for this {@code acceptEncoding}, into a
+     * pre-encoded response with buffers of its own that can be sent any number of times. Compressed output
+     * goes through plain heap chunks and is copied into one direct buffer; this runs once per cached entry.
+     *
+     * @throws IllegalArgumentException for a response with a file or a streamed body.
+     */
+    public HttpResponse preEncode(HttpResponse response, String acceptEncoding) {
+        if (response.isPreEncoded()) {
+            return response;
+        }
+        if (response.getFileRegion() != null || response.getChunkedBody() != null) {
+            throw new IllegalArgumentException("Only entity bodies can be pre-encoded");
+        }
+        if (!isCompressible(response)) {
+            ByteBuffer body = ResponseEncoder.encodeBody(response);
+            return HttpResponse.preEncoded(response.getStatusCode(), ResponseEncoder.encodePreEncodedHead(response,
+                    null, null, ResponseEncoder.contentLength(response)), body);
+        }
+        String vary = vary(response);
+        Coding coding = negotiate(acceptEncoding);
+        if (coding == null) {
+            ByteBuffer body = ResponseEncoder.encodeBody(response);
+            return HttpResponse.preEncoded(response.getStatusCode(), ResponseEncoder.encodePreEncodedHead(response,
+                    vary, null, body.remaining()), body);
+        }
+        List<ByteBuffer> chunks = compress(response.text(), binary(response), coding, null);
+        int length = 0;
+        for (ByteBuffer chunk : chunks) {
+            length += chunk.remaining();
+        }
+        ByteBuffer body = ByteBuffer.allocateDirect(length);
+        for (ByteBuffer chunk : chunks) {
+            body.put(chunk);
+        }
+        body.flip();
+        return HttpResponse.preEncoded(response.getStatusCode(), ResponseEncoder.encodePreEncodedHead(response,
+                vary, coding.getToken(), length), body);
+    }
+
+    private boolean isCompressible(HttpResponse response) {
+        return level != Deflater.NO_COMPRESSION
+                && !response.isPreEncoded()
+                && response.getFileRegion() == null
+                && ResponseEncoder.contentLength(response) > 0
+                && (response.binary() != null ? response.binary().remaining() : response.text().length()) >= threshold
+                && header(response, "Content-Encoding") == null
+                && HttpUtil.isCompressible(firstValue(header(response, "Content-Type")));
+    }
+
+    /**
+     * Picks the coding the client prefers by q-value, gzip on a tie.
+     *
+     * @return the coding to use, or null to send the body as it is.
+     */
+    public static Coding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // q-values in thousandths, -1 for codings the header does not mention
+        int gzip = -1;
+        int deflate = -1;
+        int any = -1;
+        int n = acceptEncoding.length();
+        for (int start = 0; start < n; ) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = n;
+            }
+            int nameEnd = acceptEncoding.indexOf(';', start);
+            if (nameEnd < 0 || nameEnd > end) {
+                nameEnd = end;
+            }
+            int q = nameEnd < end ? qValue(acceptEncoding, nameEnd + 1, end) : 1000;
+            int nameStart = start;
+            while (nameStart < nameEnd && acceptEncoding.charAt(nameStart) == ' ') {
+                nameStart++;
+            }
+            while (nameEnd > nameStart && acceptEncoding.charAt(nameEnd - 1) == ' ') {
+                nameEnd--;
+            }
+            if (isToken(acceptEncoding, nameStart, nameEnd, "gzip") || isToken(acceptEncoding, nameStart, nameEnd, "x-gzip")) {
+                gzip = q;
+            } else if (isToken(acceptEncoding, nameStart, nameEnd, "deflate")) {
+                deflate = q;
+            } else if (isToken(acceptEncoding, nameStart, nameEnd, "*")) {
+                any = q;
+            }
+            start = end + 1;
+        }
+        if (gzip < 0) {
+            gzip = Math.max(any, 0);
+        }
+        if (deflate < 0) {
+            deflate = Math.max(any, 0);
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return Coding.GZIP;
+        }
+        return deflate > 0 ? Coding.DEFLATE : null;
+    }
+
+    private static boolean isToken(String s, int start, int end, String token) {
+        return end - start == token.length() && s.regionMatches(true, start, token, 0, token.length());
+    }
+
+    // Reads "q=0.5" among the parameters in [start, end), 1000 if there is none and 0 if it is malformed
+    private static int qValue(String s, int start, int end) {
+        for (int i = start; i + 1 < end; i++) {
+            char c = s.charAt(i);
+            if ((c == 'q' || c == 'Q') && s.charAt(i + 1) == '=') {
+                int p = i + 2;
+                if (p >= end || (s.charAt(p) != '0' && s.charAt(p) != '1')) {
+                    return 0;
+                }
+                int value = (s.charAt(p) - '0') * 1000;
+                p++;
+                if (p < end && s.charAt(p) == '.') {
+                    int scale = 100;
+                    for (p++; p < end && scale > 0 && Character.isDigit(s.charAt(p)); p++, scale /= 10) {
+                        value += (s.charAt(p) - '0') * scale;
+                    }
+                }
+                return Math.min(value, 1000);
+            }
+        }
+        return 1000;
+    }
+
+    // The binary entity as the single input of compress, or null for a text one
+    private static List<ByteBuffer> binary(HttpResponse response) {
+        return response.text() == null ? List.of(response.binary().duplicate()) : null;
+    }
+
+    /**
+     * Compresses either {@code body}, encoded as UTF-8, or the bytes of {@code binary} in order, into chunks
+     * from {@code pool}, or heap chunks if it is null. The binary buffers are read to the end but not released.
+     */
+    private List<ByteBuffer> compress(CharSequence body, List<ByteBuffer> binary, Coding coding, BufferPool pool) {
+        Deflaters state = BufferPool.isVirtual(Thread.currentThread()) ? null : deflaters.get();
+        Deflater deflater;
+        CRC32 crc = null;
+        if (state != null) {
+            deflater = coding == Coding.GZIP ? state.gzip : state.deflate;
+            deflater.reset();
+            if (coding == Coding.GZIP) {
+                crc = state.crc;
+                crc.reset();
+            }
+        } else {
+            deflater = new Deflater(level, coding == Coding.GZIP);
+            crc = coding == Coding.GZIP ? new CRC32() : null;
+        }
+        List<ByteBuffer> chunks = new ArrayList<>();
+        // Binary entities are fed to the Deflater directly, text goes through this buffer in UTF-8 slices
+        ByteBuffer input = body != null ? acquire(pool, SLICE_CHARS * 3) : null;
+        try {
+            ByteBuffer chunk = acquire(pool, CHUNK_SIZE);
+            chunks.add(chunk);
+            if (coding == Coding.GZIP) {
+                chunk.put(GZIP_HEADER);
+            }
+            for (int i = 0; body == null && i < binary.size(); i++) {
+                chunk = feed(deflater, crc, binary.get(i), chunk, chunks, pool);
+            }
+            for (int start = 0; body != null && start < body.length(); ) {
+                int end = Math.min(body.length(), start + SLICE_CHARS);
+                if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1))) {
+                    // Keep surrogate pairs together
+                    end--;
+                }
+                input.clear();
+                ResponseEncoder.putUtf8(input, body, start, end);
+                input.flip();
+                chunk = feed(deflater, crc, input, chunk, chunks, pool);
+                start = end;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                chunk = deflate(deflater, chunk, chunks, pool);
+            }
+            if (coding == Coding.GZIP) {
+                if (chunk.remaining() < GZIP_TRAILER_SIZE) {
+                    chunk = acquire(pool, CHUNK_SIZE);
+                    chunks.add(chunk);
+                }
+                putIntLittleEndian(chunk, (int) crc.getValue());
+                putIntLittleEndian(chunk, (int) deflater.getBytesRead());
+            }
+            for (ByteBuffer c : chunks) {
+                c.flip();
+            }
+            return chunks;
+        } catch (RuntimeException e) {
+            chunks.forEach(c -> release(pool, c));
+            throw e;
+        } finally {
+            // Drops the Deflater's reference to the input before it goes back to the pool
+            if (state != null) {
+                deflater.reset();
+            } else {
+                deflater.end();
+            }
+            if (input != null) {
+                release(pool, input);
+            }
+        }
+    }
+
+    // A null pool stands for plain heap buffers, which are simply dropped
+    private static ByteBuffer acquire(BufferPool pool, int size) {
+        return pool != null ? pool.acquire(size) : ByteBuffer.allocate(size);
+    }
+
+    private static void release(BufferPool pool, ByteBuffer b) {
+        if (pool != null) {
+            pool.release(b);
+        }
+    }
+
+    /**
+     * Deflates all of {@code input}, updating {@code crc} unless it is null.
+     *
+     * @return the chunk the output goes on in.
+     */
+    private static ByteBuffer feed(Deflater deflater, CRC32 crc, ByteBuffer input, ByteBuffer chunk,
+                                   List<ByteBuffer> chunks, BufferPool pool) {
+        if (crc != null) {
+            input.mark();
+            crc.update(input);
+            input.reset();
+        }
+        deflater.setInput(input);
+        while (!deflater.needsInput()) {
+            chunk = deflate(deflater, chunk, chunks, pool);
+        }
+        return chunk;
+    }
+
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer chunk, List<ByteBuffer> chunks, BufferPool pool) {
+        if (!chunk.hasRemaining()) {
+            chunk = acquire(pool, CHUNK_SIZE);
+            chunks.add(chunk);
+        }
+        deflater.deflate(chunk);
+        return chunk;
+    }
+
+    private static void putIntLittleEndian(ByteBuffer out, int value) {
+        out.put((byte) value);
+        out.put((byte) (value >>> 8));
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 24));
+    }
+
+    /**
+     * @return the Vary value for a response whose body depends on Accept-Encoding, keeping any the
+     * handler set.
+     */
+    private static String vary(HttpResponse response) {
+        List<String> values = header(response, "Vary");
+        if (values == null) {
+            return ACCEPT_ENCODING;
+        }
+        String joined = String.join(", ", values);
+        String lower = joined.toLowerCase();
+        if (lower.contains("accept-encoding") || lower.trim().equals("*")) {
+            return joined;
+        }
+        return joined + ", " + ACCEPT_ENCODING;
+    }
+
+    private static List<String> header(HttpResponse response, String name) {
+        for (Map.Entry<String, List<String>> header : response.headers().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String firstValue(List<String> values) {
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static final class Deflaters {
+        // Raw deflate with the gzip framing written here, and zlib-wrapped deflate as HTTP defines it
+        final Deflater gzip;
+        final Deflater deflate;
+        final CRC32 crc = new CRC32();
+
+        Deflaters(int level) {
+            gzip = new Deflater(level, true);
+            deflate = new Deflater(level, false);
+        }
+    }
+}
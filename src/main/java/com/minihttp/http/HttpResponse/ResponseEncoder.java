@@ -0,0 +1,339 @@
+package com.minihttp.http.HttpResponse;
+
+import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.util.BufferPool.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes an {@link HttpResponse} straight into a ByteBuffer.
+ * <p>
+ * Status lines and the default headers are encoded once, the Date and Connection lines come from
+ * {@link DateHeader}, and header values and the entity are written as UTF-8 without intermediate
+ * Strings or arrays. The exact size is computed first so the whole response fits one pooled buffer.
+ * Binary entities of at least {@link #GATHER_THRESHOLD} bytes are not copied at all when encoded with
+ * {@link #encodeGathering}, they follow the head as a view for a gathering write. Responses with a
+ * {@link ChunkedBody} only get their head encoded here, see {@link ChunkEncoder}.
+ */
+public final class ResponseEncoder {
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String VARY = "Vary";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final byte[] NO_TRAILER = {};
+    // Smaller binary bodies are cheaper to copy behind the head than to send as a buffer of their own
+    public static final int GATHER_THRESHOLD = 4096;
+
+    static {
+        for (HttpStatus status : HttpStatus.values()) {
+            STATUS_LINES[status.getCode()] = statusLine(status.getCode(), status.getMessage());
+        }
+    }
+
+    private ResponseEncoder() {
+    }
+
+    /**
+     * Encodes the status line, headers and entity into a buffer from {@code pool}, flipped and ready to be
+     * written. The caller releases it to the pool once it has been sent. For a response with a FileRegion
+     * only the head is encoded and the file follows it.
+     */
+    public static ByteBuffer encode(HttpResponse response, boolean keepAlive, BufferPool pool) {
+        return encode(response, keepAlive, pool, null);
+    }
+
+    /**
+     * Encodes into a new heap buffer, for callers without a pool.
+     */
+    public static ByteBuffer encode(HttpResponse response, boolean keepAlive) {
+        byte[] trailer = DateHeader.trailerBytes(keepAlive);
+        long contentLength = contentLength(response);
+        ByteBuffer out = ByteBuffer.allocate(encodedLength(response, trailer, null, null, contentLength, true));
+        encode(response, trailer, out, null, null, contentLength, true);
+        return out.flip();
+    }
+
+    /**
+     * Like {@link #encode(HttpResponse, boolean, BufferPool)}, with a Vary header of {@code vary} replacing
+     * the response's own, if it is not null.
+     */
+    static ByteBuffer encode(HttpResponse response, boolean keepAlive, BufferPool pool, String vary) {
+        byte[] trailer = DateHeader.trailerBytes(keepAlive);
+        long contentLength = contentLength(response);
+        ByteBuffer out = pool.acquire(encodedLength(response, trailer, vary, null, contentLength, true));
+        encode(response, trailer, out, vary, null, contentLength, true);
+        return out.flip();
+    }
+
+    /**
+     * Like {@link #encode(HttpResponse, boolean, BufferPool, String)}, except that a binary entity of at
+     * least {@link #GATHER_THRESHOLD} bytes is not copied: the result is then the pooled head followed by a
+     * read-only view of the entity, which {@link BufferPool#release} ignores.
+     */
+    static ByteBuffer[] encodeGathering(HttpResponse response, boolean keepAlive, BufferPool pool, String vary) {
+        ByteBuffer binary = response.binary();
+        long contentLength = contentLength(response);
+        if (binary == null || response.getFileRegion() != null || contentLength < GATHER_THRESHOLD) {
+            return new ByteBuffer[]{encode(response, keepAlive, pool, vary)};
+        }
+        return new ByteBuffer[]{encodeHead(response, keepAlive, pool, vary, null, contentLength), binary.duplicate()};
+    }
+
+    /**
+     * Encodes only the status line and headers, for a body the caller sends separately in
+     * {@code contentEncoding}, e.g. compressed to {@code contentLength} bytes.
+     */
+    static ByteBuffer encodeHead(HttpResponse response, boolean keepAlive, BufferPool pool, String vary,
+                                 String contentEncoding, long contentLength) {
+        byte[] trailer = DateHeader.trailerBytes(keepAlive);
+        ByteBuffer out = pool.acquire(encodedLength(response, trailer, vary, contentEncoding, contentLength, false));
+        encode(response, trailer, out, vary, contentEncoding, contentLength, false);
+        return out.flip();
+    }
+
+    /**
+     * Encodes the head of a pre-encoded response, see {@link HttpResponse#preEncoded}: the status line and
+     * headers without Date and Connection, which are added every time it is sent, into a new buffer.
+     */
+    static ByteBuffer encodePreEncodedHead(HttpResponse response, String vary, String contentEncoding,
+                                           long contentLength) {
+        ByteBuffer out = ByteBuffer.allocate(encodedLength(response, NO_TRAILER, vary, contentEncoding, contentLength, false));
+        encode(response, NO_TRAILER, out, vary, contentEncoding, contentLength, false);
+        return out.flip();
+    }
+
+    /**
+     * Encodes only the entity into a new direct buffer, for a pre-encoded response. A binary entity is
+     * copied, so the pre-encoded response does not depend on the caller's buffer.
+     */
+    static ByteBuffer encodeBody(HttpResponse response) {
+        long contentLength = contentLength(response);
+        ByteBuffer out = ByteBuffer.allocateDirect((int) Math.max(contentLength, 0));
+        if (contentLength > 0) {
+            putBody(out, response);
+        }
+        return out.flip();
+    }
+
+    private static int encodedLength(HttpResponse response, byte[] trailer, String vary, String contentEncoding,
+                                     long contentLength, boolean withBody) {
+        int length = statusLine(response.getStatusCode()).length;
+        if (!response.overridesDefaultHeaders()) {
+            length += HttpResponse.DEFAULT_HEADER_BYTES.length;
+        } else {
+            for (Map.Entry<String, String> header : HttpResponse.DEFAULT_HEADERS.entrySet()) {
+                if (!response.headers().containsKey(header.getKey())) {
+                    length += headerLength(header.getKey(), header.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> header : response.headers().entrySet()) {
+            if (isWritten(header.getKey(), vary)) {
+                length += headerLength(header.getKey(), header.getValue());
+            }
+        }
+        if (vary != null) {
+            length += headerLength(VARY, vary);
+        }
+        if (contentEncoding != null) {
+            length += headerLength(CONTENT_ENCODING, contentEncoding);
+        }
+        if (response.getChunkedBody() != null) {
+            length += TRANSFER_ENCODING_CHUNKED.length;
+        } else if (contentLength >= 0) {
+            length += CONTENT_LENGTH.length + decimalLength(contentLength) + CRLF.length;
+        }
+        length += trailer.length;
+        if (withBody && response.getFileRegion() == null && contentLength > 0) {
+            length += (int) contentLength;
+        }
+        return length;
+    }
+
+    private static void encode(HttpResponse response, byte[] trailer, ByteBuffer out, String vary,
+                               String contentEncoding, long contentLength, boolean withBody) {
+        out.put(statusLine(response.getStatusCode()));
+        if (!response.overridesDefaultHeaders()) {
+            out.put(HttpResponse.DEFAULT_HEADER_BYTES);
+        } else {
+            for (Map.Entry<String, String> header : HttpResponse.DEFAULT_HEADERS.entrySet()) {
+                if (!response.headers().containsKey(header.getKey())) {
+                    putHeader(out, header.getKey(), header.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> header : response.headers().entrySet()) {
+            if (isWritten(header.getKey(), vary)) {
+                putHeader(out, header.getKey(), header.getValue());
+            }
+        }
+        if (vary != null) {
+            putHeader(out, VARY, vary);
+        }
+        if (contentEncoding != null) {
+            putHeader(out, CONTENT_ENCODING, contentEncoding);
+        }
+        if (response.getChunkedBody() != null) {
+            out.put(TRANSFER_ENCODING_CHUNKED);
+        } else if (contentLength >= 0) {
+            out.put(CONTENT_LENGTH);
+            putDecimal(out, contentLength);
+            out.put(CRLF);
+        }
+        out.put(trailer);
+        if (withBody && response.getFileRegion() == null && contentLength > 0) {
+            putBody(out, response);
+        }
+    }
+
+    private static void putBody(ByteBuffer out, HttpResponse response) {
+        if (response.binary() != null) {
+            out.put(response.binary().duplicate());
+        } else {
+            putUtf8(out, response.text());
+        }
+    }
+
+    /**
+     * @return the body length in bytes, or -1 for statuses that must not carry a body and chunked bodies.
+     */
+    static long contentLength(HttpResponse response) {
+        if (!mayHaveBody(response) || response.getChunkedBody() != null) {
+            return -1;
+        }
+        if (response.getFileRegion() != null) {
+            return response.getFileRegion().getCount();
+        }
+        return response.binary() != null ? response.binary().remaining() : utf8Length(response.text());
+    }
+
+    /**
+     * @return false for statuses that must not carry a body.
+     */
+    static boolean mayHaveBody(HttpResponse response) {
+        int code = response.getStatusCode();
+        return code >= 200 && code != HttpStatus.NO_CONTENT.getCode() && code != HttpStatus.NOT_MODIFIED.getCode();
+    }
+
+    // Date, Connection, Content-Length and Transfer-Encoding are always written by the encoder itself, Vary
+    // when it is given one
+    private static boolean isWritten(String name, String vary) {
+        return !name.equalsIgnoreCase("Date") && !name.equalsIgnoreCase("Connection")
+                && !name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Transfer-Encoding")
+                && (vary == null || !name.equalsIgnoreCase(VARY));
+    }
+
+    private static byte[] statusLine(int code) {
+        byte[] line = code >= 0 && code < STATUS_LINES.length ? STATUS_LINES[code] : null;
+        return line != null ? line : statusLine(code, "");
+    }
+
+    private static byte[] statusLine(int code, String message) {
+        return ("HTTP/1.1 " + code + " " + message + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int headerLength(String name, String value) {
+        return utf8Length(name) + HEADER_SEPARATOR.length + utf8Length(value) + CRLF.length;
+    }
+
+    private static int headerLength(String name, List<String> values) {
+        int length = utf8Length(name) + HEADER_SEPARATOR.length + CRLF.length + Math.max(0, values.size() - 1);
+        for (int i = 0; i < values.size(); i++) {
+            length += utf8Length(values.get(i));
+        }
+        return length;
+    }
+
+    private static void putHeader(ByteBuffer out, String name, String value) {
+        putUtf8(out, name);
+        out.put(HEADER_SEPARATOR);
+        putUtf8(out, value);
+        out.put(CRLF);
+    }
+
+    private static void putHeader(ByteBuffer out, String name, List<String> values) {
+        putUtf8(out, name);
+        out.put(HEADER_SEPARATOR);
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                out.put((byte) ';');
+            }
+            putUtf8(out, values.get(i));
+        }
+        out.put(CRLF);
+    }
+
+    static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static void putUtf8(ByteBuffer out, CharSequence s) {
+        putUtf8(out, s, 0, s.length());
+    }
+
+    // Lone surrogates become '?', which is also what String.getBytes does
+    static void putUtf8(ByteBuffer out, CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    private static void putDecimal(ByteBuffer out, long value) {
+        int length = decimalLength(value);
+        int end = out.position() + length;
+        for (int i = end - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(end);
+    }
+}
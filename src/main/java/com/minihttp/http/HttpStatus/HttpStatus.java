@@ -33,6 +33,7 @@ public enum HttpStatus {
     UNSUPPORTED_MEDIA_TYPE(415, "Unsupported Media Type"),
     REQUESTED_RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
     EXPECTATION_FAILED(417, "Expectation Failed"),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
     INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
     NOT_IMPLEMENTED(501, "Not Implemented"),
     BAD_GATEWAY(502, "Bad Gateway"),
@@ -40,6 +41,14 @@ public enum HttpStatus {
     GATEWAY_TIMEOUT(504, "Gateway Timeout"),
     HTTP_VERSION_NOT_SUPPORTED(505, "HTTP Version Not Supported");
 
+    private static final HttpStatus[] BY_CODE = new HttpStatus[600];
+
+    static {
+        for (HttpStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
     private final int code;
     private final String message;
 
@@ -49,12 +58,7 @@ public enum HttpStatus {
     }
 
     public static HttpStatus fromCode(int code) {
-        for (HttpStatus status : values()) {
-            if (status.getCode() == code) {
-                return status;
-            }
-        }
-        return null; // or throw an IllegalArgumentException
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
     }
 
     public int getCode() {
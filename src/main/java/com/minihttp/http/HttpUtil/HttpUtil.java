@@ -97,6 +97,25 @@ public class HttpUtil {
         };
     }
 
+    /**
+     * Tells whether a body of the given content type is worth compressing: text, and the JSON, JavaScript
+     * and XML types {@link #getContentType(String)} hands out. Images, PDFs and archives already are compressed.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        String type = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase();
+        return type.startsWith("text/")
+                || type.equals("application/json")
+                || type.equals("application/javascript")
+                || type.equals("application/xml")
+                || type.equals("image/svg+xml")
+                || type.endsWith("+json")
+                || type.endsWith("+xml");
+    }
+
     public static String getExtension(String fileName) {
         int dotIdx = fileName.lastIndexOf(".");
         if (dotIdx != -1) {
@@ -0,0 +1,253 @@
+package com.minihttp.http.Json;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.minihttp.util.BufferPool.BufferPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binds JSON to typed objects with Gson, without building a JsonElement tree or a String in between.
+ * <p>
+ * The TypeAdapter of each class is looked up once and cached, so binding a request body or serializing a
+ * response costs no reflection after the first time. Reading streams from a Reader over the body bytes;
+ * writing goes through a JsonWriter that encodes UTF-8 straight into pooled buffers, which the server
+ * sends and releases. Use {@link #getDefault()}, or a Json of your own Gson for custom adapters.
+ */
+public final class Json {
+    public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    // Output goes into buffers of the pool's 16 KB size class
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final Json DEFAULT = new Json(new Gson());
+
+    private final Gson gson;
+    private final ClassValue<TypeAdapter<?>> adapters;
+
+    public Json(Gson gson) {
+        this.gson = gson;
+        this.adapters = new ClassValue<>() {
+            @Override
+            protected TypeAdapter<?> computeValue(Class<?> type) {
+                return gson.getAdapter(type);
+            }
+        };
+    }
+
+    /**
+     * @return the instance with Gson's default settings, used by {@code RequestBody.asJson(Class)} and
+     * {@code HttpResponse.Create.setJson(Object)}.
+     */
+    public static Json getDefault() {
+        return DEFAULT;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> adapter(Class<T> type) {
+        return (TypeAdapter<T>) adapters.get(type);
+    }
+
+    /**
+     * Reads one JSON document from {@code reader} as a {@code type}.
+     *
+     * @return the value, or null for an empty document.
+     * @throws JsonSyntaxException if the document is malformed, does not match the type or is followed
+     *                             by more content.
+     */
+    public <T> T read(Reader reader, Class<T> type) {
+        return read(reader, adapter(type));
+    }
+
+    /**
+     * Like {@link #read(Reader, Class)}, for generic types such as {@code new TypeToken<List<Book>>() {}}.
+     * Gson caches these adapters itself.
+     */
+    public <T> T read(Reader reader, TypeToken<T> type) {
+        return read(reader, gson.getAdapter(type));
+    }
+
+    private <T> T read(Reader reader, TypeAdapter<T> adapter) {
+        JsonReader in = gson.newJsonReader(reader);
+        try {
+            if (in.peek() == JsonToken.END_DOCUMENT) {
+                return null;
+            }
+            T value = adapter.read(in);
+            if (in.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+            return value;
+        } catch (EOFException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Serializes {@code value} as UTF-8 into buffers from {@code pool}, flipped and ready for a gathering
+     * write. The caller releases every buffer once it has been sent.
+     */
+    public List<ByteBuffer> write(Object value, BufferPool pool) {
+        PooledWriter out = new PooledWriter(pool);
+        try {
+            write(value, out);
+            return out.finish();
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Serializes {@code value} as UTF-8 into a new array, for callers without a pool.
+     */
+    public byte[] toBytes(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        write(value, out);
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Object value, Writer out) {
+        try {
+            JsonWriter writer = gson.newJsonWriter(out);
+            if (value == null) {
+                writer.nullValue();
+            } else {
+                adapter((Class<Object>) value.getClass()).write(writer, value);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 into pooled buffers, taking a new one whenever the current one is full.
+     * Lone surrogates become '?', like in String.getBytes.
+     */
+    private static final class PooledWriter extends Writer {
+        private final BufferPool pool;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer chunk;
+        // A high surrogate whose low half has not been written yet, 0 if none
+        private char pendingHigh;
+
+        PooledWriter(BufferPool pool) {
+            this.pool = pool;
+            this.chunk = pool.acquire(CHUNK_SIZE);
+            chunks.add(chunk);
+        }
+
+        @Override
+        public void write(int c) {
+            put((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                put(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                put(str.charAt(i));
+            }
+        }
+
+        private void put(char c) {
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    room(4);
+                    chunk.put((byte) (0xF0 | (cp >> 18)));
+                    chunk.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    chunk.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    chunk.put((byte) (0x80 | (cp & 0x3F)));
+                    return;
+                }
+                room(1);
+                chunk.put((byte) '?');
+            }
+            if (c < 0x80) {
+                room(1);
+                chunk.put((byte) c);
+            } else if (c < 0x800) {
+                room(2);
+                chunk.put((byte) (0xC0 | (c >> 6)));
+                chunk.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isSurrogate(c)) {
+                room(1);
+                chunk.put((byte) '?');
+            } else {
+                room(3);
+                chunk.put((byte) (0xE0 | (c >> 12)));
+                chunk.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                chunk.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        // A character's bytes never straddle two buffers
+        private void room(int bytes) {
+            if (chunk.remaining() < bytes) {
+                chunk = pool.acquire(CHUNK_SIZE);
+                chunks.add(chunk);
+            }
+        }
+
+        List<ByteBuffer> finish() {
+            if (pendingHigh != 0) {
+                pendingHigh = 0;
+                room(1);
+                chunk.put((byte) '?');
+            }
+            for (ByteBuffer c : chunks) {
+                c.flip();
+            }
+            return chunks;
+        }
+
+        void release() {
+            chunks.forEach(pool::release);
+            chunks.clear();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
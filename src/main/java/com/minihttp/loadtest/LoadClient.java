@@ -0,0 +1,295 @@
+package com.minihttp.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * One client thread driving a set of connections from a single selector.
+ * <p>
+ * Each connection keeps {@code pipeline} requests in flight: it writes them back to back, reads the
+ * responses, and writes the next batch once all of them have arrived. Without keep-alive every request
+ * goes on a fresh connection that the server closes after answering. Latency is measured from the write
+ * of a batch to the end of each response, and only counted while {@link #recording} is set.
+ */
+class LoadClient implements Runnable {
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "connection: close".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int pipeline;
+    private final boolean keepAlive;
+    private final byte[][] mix;
+    private final Selector selector;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private volatile boolean running = true;
+    volatile boolean recording;
+    private int nextRequest;
+
+    long completed;
+    long connectErrors;
+    long ioErrors;
+    long statusErrors;
+    // Why this client stopped before the run ended, reported in the summary
+    IOException failure;
+
+    LoadClient(InetSocketAddress address, int connections, int pipeline, boolean keepAlive, byte[][] mix, int offset)
+            throws IOException {
+        this.address = address;
+        this.connections = connections;
+        this.pipeline = keepAlive ? pipeline : 1;
+        this.keepAlive = keepAlive;
+        this.mix = mix;
+        this.nextRequest = offset % mix.length;
+        this.selector = Selector.open();
+    }
+
+    LatencyHistogram histogram() {
+        return histogram;
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < connections; i++) {
+                connect();
+            }
+            while (running) {
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connection.finishConnect();
+                        } else if (key.isWritable()) {
+                            connection.write();
+                        } else if (key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        if (running) {
+                            if (connection.connected) {
+                                ioErrors += recording ? 1 : 0;
+                            } else {
+                                connectErrors += recording ? 1 : 0;
+                            }
+                        }
+                        connection.close();
+                        if (running) {
+                            connect();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Already stopping
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        if (channel.connect(address)) {
+            connection.key = channel.register(selector, 0, connection);
+            connection.finishConnect();
+        } else {
+            connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+        }
+    }
+
+    private byte[] nextRequest() {
+        byte[] request = mix[nextRequest];
+        nextRequest = (nextRequest + 1) % mix.length;
+        return request;
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        long sentAt;
+        int outstanding;
+        // -1 while reading a response head, otherwise the body bytes still to skip
+        long bodyRemaining = -1;
+        int status;
+        boolean serverClosing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            connected = true;
+            sendBatch();
+        }
+
+        void sendBatch() throws IOException {
+            out.clear();
+            for (int i = 0; i < pipeline; i++) {
+                byte[] request = nextRequest();
+                if (out.remaining() < request.length) {
+                    break;
+                }
+                out.put(request);
+                outstanding++;
+            }
+            out.flip();
+            sentAt = System.nanoTime();
+            write();
+        }
+
+        void write() throws IOException {
+            channel.write(out);
+            key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                if (outstanding > 0 && !serverClosing) {
+                    throw new IOException("Connection closed with " + outstanding + " responses outstanding");
+                }
+                close();
+                connect();
+                return;
+            }
+            in.flip();
+            while (outstanding > 0 && parse()) {
+                long latency = System.nanoTime() - sentAt;
+                outstanding--;
+                if (recording) {
+                    completed++;
+                    histogram.record(latency);
+                    if (status < 200 || status >= 400) {
+                        statusErrors++;
+                    }
+                }
+            }
+            in.compact();
+            if (outstanding == 0 && running && keepAlive && !serverClosing) {
+                sendBatch();
+            }
+            // Otherwise wait for the server to close, then reconnect
+        }
+
+        /**
+         * Consumes as much of the next response from {@link #in} as is there.
+         *
+         * @return true once a whole response has been consumed.
+         */
+        boolean parse() throws IOException {
+            if (bodyRemaining < 0) {
+                int headEnd = headEnd();
+                if (headEnd < 0) {
+                    if (in.position() == 0 && in.limit() == in.capacity()) {
+                        throw new IOException("Response head larger than " + in.capacity() + " bytes");
+                    }
+                    return false;
+                }
+                status = parseStatus();
+                bodyRemaining = parseLongHeader(CONTENT_LENGTH, headEnd);
+                // e.g. MiniServer's per-connection request limit, the rest of the batch will not be answered
+                serverClosing |= findHeader(CONNECTION_CLOSE, headEnd) >= 0;
+                in.position(headEnd);
+            }
+            long skip = Math.min(bodyRemaining, in.remaining());
+            in.position(in.position() + (int) skip);
+            bodyRemaining -= skip;
+            if (bodyRemaining > 0) {
+                return false;
+            }
+            bodyRemaining = -1;
+            return true;
+        }
+
+        private int headEnd() {
+            for (int i = in.position(); i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        // "HTTP/1.1 200 ..."
+        private int parseStatus() throws IOException {
+            int p = in.position() + 9;
+            if (p + 3 > in.limit()) {
+                throw new IOException("Malformed status line");
+            }
+            return (in.get(p) - '0') * 100 + (in.get(p + 1) - '0') * 10 + (in.get(p + 2) - '0');
+        }
+
+        /**
+         * @return the offset right after {@code name} at the start of a header line, or -1.
+         */
+        private int findHeader(byte[] name, int headEnd) {
+            for (int line = in.position(); line < headEnd; ) {
+                boolean match = line + name.length < headEnd;
+                for (int j = 0; match && j < name.length; j++) {
+                    match = Character.toLowerCase(in.get(line + j)) == name[j];
+                }
+                if (match) {
+                    return line + name.length;
+                }
+                while (line < headEnd && in.get(line) != '\n') {
+                    line++;
+                }
+                line++;
+            }
+            return -1;
+        }
+
+        private long parseLongHeader(byte[] name, int headEnd) {
+            int p = findHeader(name, headEnd);
+            long value = 0;
+            for (int j = p; p >= 0 && j < headEnd; j++) {
+                byte b = in.get(j);
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                } else if (b != ' ') {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
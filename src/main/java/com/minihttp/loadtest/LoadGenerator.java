@@ -0,0 +1,380 @@
+package com.minihttp.loadtest;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.server.core.DispatchMode;
+import com.minihttp.server.core.ListenerMode;
+import com.minihttp.server.core.MiniHttpServer;
+import com.minihttp.server.core.MiniServer;
+import com.minihttp.server.core.ServerConfig;
+import com.minihttp.server.core.Zzz;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Starts one of the server engines in-process and drives it over loopback.
+ * <p>
+ * Usage: {@code java -cp target/classes com.minihttp.loadtest.LoadGenerator [options]}
+ * <pre>
+ *   --engine multi|single|async|none  MiniServer, MiniHttpServer, Zzz, or an already running server
+ *   --port N                          port of the engine (default 8091)
+ *   --listener ACCEPTOR|REUSE_PORT    how MiniServer accepts connections
+ *   --dispatch INLINE|VIRTUAL_THREADS|WORKER_POOL
+ *   --connections N                   concurrent connections (default 64)
+ *   --threads N                       client selector threads (default 2)
+ *   --pipeline N                      requests in flight per connection (default 1)
+ *   --close                           one request per connection instead of keep-alive
+ *   --mix "GET /plaintext=8,GET /books/42=1,POST /books=1"
+ *   --warmup S --duration S           seconds (default 5 and 15)
+ * </pre>
+ * Prints requests/sec, latency percentiles, errors and the GC time spent during the measurement. The
+ * client runs in the same JVM, so the GC figures cover both sides.
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_MIX = "GET /plaintext=8,GET /books/42=1,POST /books=1";
+    private static final String JSON_BODY = "{\"title\":\"Dune\",\"author\":\"Frank Herbert\",\"year\":1965}";
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        Engine engine = Engine.start(options);
+        try {
+            waitForPort(options.port);
+            run(options);
+        } finally {
+            engine.stop();
+        }
+    }
+
+    private static void run(Options options) throws IOException, InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port);
+        byte[][] mix = buildMix(options.mix, options.keepAlive);
+
+        List<LoadClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.threads; i++) {
+            int connections = options.connections / options.threads + (i < options.connections % options.threads ? 1 : 0);
+            LoadClient client = new LoadClient(address, connections, options.pipeline, options.keepAlive, mix, i);
+            Thread thread = new Thread(client, "load-client-" + i);
+            clients.add(client);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread.sleep(options.warmupSeconds * 1000L);
+        long gcTime = gcTime();
+        long gcCount = gcCount();
+        long start = System.nanoTime();
+        clients.forEach(c -> c.recording = true);
+        Thread.sleep(options.durationSeconds * 1000L);
+        clients.forEach(c -> c.recording = false);
+        long elapsed = System.nanoTime() - start;
+        gcTime = gcTime() - gcTime;
+        gcCount = gcCount() - gcCount;
+
+        for (LoadClient client : clients) {
+            client.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(options, clients, elapsed, gcTime, gcCount);
+    }
+
+    private static void report(Options options, List<LoadClient> clients, long elapsedNanos, long gcMillis, long gcCount) {
+        LatencyHistogram latency = new LatencyHistogram();
+        long completed = 0;
+        long connectErrors = 0;
+        long ioErrors = 0;
+        long statusErrors = 0;
+        List<String> failures = new ArrayList<>();
+        for (LoadClient client : clients) {
+            if (client.failure != null) {
+                failures.add(client.failure.toString());
+            }
+            latency.merge(client.histogram());
+            completed += client.completed;
+            connectErrors += client.connectErrors;
+            ioErrors += client.ioErrors;
+            statusErrors += client.statusErrors;
+        }
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "engine=%s dispatch=%s connections=%d pipeline=%d keepAlive=%s mix=\"%s\"%n",
+                options.engine, options.dispatch, options.connections, options.pipeline, options.keepAlive, options.mix);
+        System.out.printf(Locale.ROOT, "requests      %d in %.1fs%n", completed, seconds);
+        System.out.printf(Locale.ROOT, "requests/sec  %.0f%n", completed / seconds);
+        System.out.printf(Locale.ROOT, "latency       p50=%s p99=%s p999=%s max=%s%n",
+                millis(latency.percentile(50)), millis(latency.percentile(99)), millis(latency.percentile(99.9)),
+                millis(latency.max()));
+        System.out.printf(Locale.ROOT, "errors        connect=%d io=%d status=%d%n", connectErrors, ioErrors, statusErrors);
+        for (String failure : failures) {
+            System.out.printf(Locale.ROOT, "client failed %s%n", failure);
+        }
+        System.out.printf(Locale.ROOT, "gc            %d collections, %d ms (%.1f%% of wall time)%n",
+                gcCount, gcMillis, gcMillis / (seconds * 10));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Expands "METHOD /path=weight,..." into the request bytes, each repeated by its weight and
+     * interleaved so the clients cycle through the mix evenly. The weight follows the last '=', so a path
+     * whose query ends in a number, like "/search?page=2", needs a weight of its own.
+     */
+    static byte[][] buildMix(String mix, boolean keepAlive) {
+        List<byte[]> requests = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String target = entry.trim();
+            int weight = 1;
+            int eq = target.lastIndexOf('=');
+            if (eq >= 0 && isNumber(target.substring(eq + 1).trim())) {
+                weight = Integer.parseInt(target.substring(eq + 1).trim());
+                target = target.substring(0, eq);
+            }
+            String[] parts = target.trim().split("\\s+");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected \"METHOD /path[=weight]\": " + entry);
+            }
+            requests.add(request(HttpMethod.valueOf(parts[0].toUpperCase(Locale.ROOT)), parts[1], keepAlive));
+            weights.add(weight);
+        }
+
+        List<byte[]> expanded = new ArrayList<>();
+        int[] left = weights.stream().mapToInt(Integer::intValue).toArray();
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (int i = 0; i < left.length; i++) {
+                if (left[i]-- > 0) {
+                    expanded.add(requests.get(i));
+                    added = true;
+                }
+            }
+        }
+        return expanded.toArray(new byte[0][]);
+    }
+
+    private static boolean isNumber(String s) {
+        return !s.isEmpty() && s.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    private static byte[] request(HttpMethod method, String path, boolean keepAlive) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: localhost\r\n");
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        if (method == HttpMethod.POST || method == HttpMethod.PUT || method == HttpMethod.PATCH) {
+            sb.append("Content-Type: application/json\r\n");
+            sb.append("Content-Length: ").append(JSON_BODY.getBytes(StandardCharsets.UTF_8).length).append("\r\n\r\n");
+            sb.append(JSON_BODY);
+        } else {
+            sb.append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void waitForPort(int port) throws InterruptedException, IOException {
+        for (int i = 0; i < 50; i++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Nothing is listening on port " + port);
+    }
+
+    private static HttpResponse text(String body) {
+        return new HttpResponse.Create()
+                .setStatusCode(200)
+                .setEntity(Optional.of(body))
+                .build();
+    }
+
+    /**
+     * The routes every engine serves during a run.
+     */
+    private static final class Routes {
+        static final HttpHandler PLAINTEXT = (req, params) -> text("Hello, World!");
+        static final HttpHandler BOOK = (req, params) -> new HttpResponse.Create()
+                .setJson(new Book(params.get("id"), "Dune"))
+                .build();
+        static final HttpHandler CREATE_BOOK = Routes::createBook;
+
+        private static HttpResponse createBook(HttpRequest req, PathParameters params) {
+            NewBook book = req.getRequestBody().asJson(NewBook.class);
+            return new HttpResponse.Create()
+                    .setStatusCode(201)
+                    .setJson(new Created(book != null && book.title() != null))
+                    .build();
+        }
+
+        record Book(String id, String title) {
+        }
+
+        record NewBook(String title, String author, int year) {
+        }
+
+        record Created(boolean created) {
+        }
+    }
+
+    private interface Engine {
+        void stop() throws Exception;
+
+        static Engine start(Options options) throws Exception {
+            switch (options.engine) {
+                case "multi": {
+                    MiniServer server = new MiniServer(new ServerConfig.Create()
+                            .setDispatchMode(options.dispatch)
+                            .setPort(options.port)
+                            .setListenerMode(options.listener)
+                            .build());
+                    server.addRoute("/plaintext", HttpMethod.GET, Routes.PLAINTEXT);
+                    server.addRoute("/books/{id}", HttpMethod.GET, Routes.BOOK);
+                    server.addRoute("/books", HttpMethod.POST, Routes.CREATE_BOOK);
+                    server.start();
+                    return server::stop;
+                }
+                case "single": {
+                    MiniHttpServer server = new MiniHttpServer(options.port, options.dispatch);
+                    server.addRoute("/plaintext", HttpMethod.GET, Routes.PLAINTEXT);
+                    server.addRoute("/books/{id}", HttpMethod.GET, Routes.BOOK);
+                    server.addRoute("/books", HttpMethod.POST, Routes.CREATE_BOOK);
+                    Thread loop = new Thread(server::start, "mini-http-server");
+                    loop.setDaemon(true);
+                    loop.start();
+                    return () -> {
+                        server.stop();
+                        loop.join(5000);
+                    };
+                }
+                case "async": {
+                    Zzz server = new Zzz(options.port);
+                    server.addRoute("/plaintext", HttpMethod.GET, Routes.PLAINTEXT);
+                    server.addRoute("/books/{id}", HttpMethod.GET, Routes.BOOK);
+                    server.addRoute("/books", HttpMethod.POST, Routes.CREATE_BOOK);
+                    server.start();
+                    return server::shutdown;
+                }
+                case "none":
+                    return () -> {
+                    };
+                default:
+                    throw new IllegalArgumentException("Unknown engine " + options.engine);
+            }
+        }
+    }
+
+    private static final class Options {
+        String engine = "multi";
+        int port = 8091;
+        DispatchMode dispatch = DispatchMode.INLINE;
+        ListenerMode listener = ListenerMode.ACCEPTOR;
+        int connections = 64;
+        int threads = 2;
+        int pipeline = 1;
+        boolean keepAlive = true;
+        String mix = DEFAULT_MIX;
+        int warmupSeconds = 5;
+        int durationSeconds = 15;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--close":
+                        o.keepAlive = false;
+                        continue;
+                    case "--engine":
+                    case "--port":
+                    case "--dispatch":
+                    case "--listener":
+                    case "--connections":
+                    case "--threads":
+                    case "--pipeline":
+                    case "--mix":
+                    case "--warmup":
+                    case "--duration":
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException(arg + " needs a value");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--engine":
+                        o.engine = value;
+                        break;
+                    case "--port":
+                        o.port = Integer.parseInt(value);
+                        break;
+                    case "--dispatch":
+                        o.dispatch = DispatchMode.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--listener":
+                        o.listener = ListenerMode.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--connections":
+                        o.connections = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        o.threads = Integer.parseInt(value);
+                        break;
+                    case "--pipeline":
+                        o.pipeline = Integer.parseInt(value);
+                        break;
+                    case "--mix":
+                        o.mix = value;
+                        break;
+                    case "--warmup":
+                        o.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    default:
+                        o.durationSeconds = Integer.parseInt(value);
+                        break;
+                }
+            }
+            if (o.connections < 1 || o.pipeline < 1 || o.threads < 1) {
+                throw new IllegalArgumentException("--connections, --threads and --pipeline must be positive");
+            }
+            o.threads = Math.min(o.threads, o.connections);
+            return o;
+        }
+    }
+}
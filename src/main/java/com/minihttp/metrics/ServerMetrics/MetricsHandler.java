@@ -0,0 +1,30 @@
+package com.minihttp.metrics.ServerMetrics;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.HttpResponse;
+
+import java.util.Optional;
+
+/**
+ * Serves a {@link ServerMetrics} snapshot for Prometheus to scrape.
+ */
+public class MetricsHandler implements HttpHandler {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ServerMetrics metrics;
+
+    public MetricsHandler(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest req, PathParameters param) {
+        return new HttpResponse.Create()
+                .setStatusCode(200)
+                .setContentType(CONTENT_TYPE)
+                .setEntity(Optional.of(metrics.render()))
+                .build();
+    }
+}
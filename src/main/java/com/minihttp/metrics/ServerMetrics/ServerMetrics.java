@@ -0,0 +1,190 @@
+package com.minihttp.metrics.ServerMetrics;
+
+import com.minihttp.http.HttpMethod.HttpMethod;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges for one server, rendered in the Prometheus text format by
+ * {@link MetricsHandler}.
+ * <p>
+ * Recording is lock-free and allocation-free: counters are LongAdders, per-route statistics are created
+ * the first time a route is hit and looked up by its pattern afterwards. Gauges are read only on scrape.
+ */
+public final class ServerMetrics {
+    private static final String PREFIX = "minihttp_";
+
+    private final Histogram parse = new Histogram();
+    private final Histogram route = new Histogram();
+    private final Histogram write = new Histogram();
+    private final LongAdder[] statuses = new LongAdder[600];
+    private final Map<HttpMethod, Map<String, RouteStats>> routes = new EnumMap<>(HttpMethod.class);
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public ServerMetrics() {
+        for (int i = 100; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+        for (HttpMethod method : HttpMethod.values()) {
+            routes.put(method, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * @return time spent parsing each request, summed over the reads it arrived in.
+     */
+    public Histogram parse() {
+        return parse;
+    }
+
+    public Histogram route() {
+        return route;
+    }
+
+    /**
+     * @return time spent in socket writes, per flush.
+     */
+    public Histogram write() {
+        return write;
+    }
+
+    /**
+     * @param pattern the route as registered, see {@link com.minihttp.routing.Router.RouteMatch#getRoute()}.
+     */
+    public RouteStats route(HttpMethod method, String pattern) {
+        Map<String, RouteStats> byPattern = routes.get(method);
+        RouteStats stats = byPattern.get(pattern);
+        if (stats == null) {
+            stats = byPattern.computeIfAbsent(pattern, p -> new RouteStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Counts a response. Codes outside 100-599 are not valid HTTP and are ignored.
+     */
+    public void recordStatus(int code) {
+        if (code >= 100 && code < statuses.length) {
+            statuses[code].increment();
+        }
+    }
+
+    /**
+     * Registers a value read on every scrape. Series registered under the same name share one family and
+     * must differ in {@code labels}.
+     *
+     * @param type   "gauge" or "counter".
+     * @param labels labels without braces, e.g. {@code loop="0"}, or an empty string.
+     */
+    public synchronized void register(String name, String type, String help, String labels, LongSupplier value) {
+        Family family = families.computeIfAbsent(PREFIX + name, n -> new Family(type, help));
+        family.series.add(new Series(labels, value));
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public synchronized String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, PREFIX + "requests_total", "counter", "Requests dispatched to a handler, by route.");
+        for (HttpMethod method : HttpMethod.values()) {
+            routes.get(method).forEach((pattern, stats) ->
+                    out.append(PREFIX).append("requests_total{").append(routeLabels(method, pattern)).append("} ")
+                            .append(stats.requests.sum()).append('\n'));
+        }
+
+        header(out, PREFIX + "responses_total", "counter", "Responses written, by status code.");
+        for (int code = 100; code < statuses.length; code++) {
+            long count = statuses[code].sum();
+            if (count > 0) {
+                out.append(PREFIX).append("responses_total{code=\"").append(code).append("\"} ")
+                        .append(count).append('\n');
+            }
+        }
+
+        histogram(out, "parse_seconds", "Time spent parsing a request.", parse);
+        histogram(out, "route_seconds", "Time spent matching a request to a route.", route);
+        histogram(out, "write_seconds", "Time spent writing responses to the socket, per flush.", write);
+
+        header(out, PREFIX + "handle_seconds", "histogram", "Time spent in the route's handler.");
+        for (HttpMethod method : HttpMethod.values()) {
+            routes.get(method).forEach((pattern, stats) ->
+                    stats.handle.writeTo(out, PREFIX + "handle_seconds", routeLabels(method, pattern)));
+        }
+
+        families.forEach((name, family) -> {
+            header(out, name, family.type, family.help);
+            for (Series series : family.series) {
+                out.append(name);
+                if (!series.labels.isEmpty()) {
+                    out.append('{').append(series.labels).append('}');
+                }
+                out.append(' ').append(series.value.getAsLong()).append('\n');
+            }
+        });
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, Histogram histogram) {
+        header(out, PREFIX + name, "histogram", help);
+        histogram.writeTo(out, PREFIX + name, "");
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String routeLabels(HttpMethod method, String pattern) {
+        return "method=\"" + method.name() + "\",route=\"" + escape(pattern) + "\"";
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Request count and handler latency for one route.
+     */
+    public static final class RouteStats {
+        private final LongAdder requests = new LongAdder();
+        private final Histogram handle = new Histogram();
+
+        public void recordRequest() {
+            requests.increment();
+        }
+
+        public Histogram handle() {
+            return handle;
+        }
+    }
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static final class Series {
+        final String labels;
+        final LongSupplier value;
+
+        Series(String labels, LongSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+}
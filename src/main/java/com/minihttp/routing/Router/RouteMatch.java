@@ -0,0 +1,92 @@
+package com.minihttp.routing.Router;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+
+import java.util.Arrays;
+
+/**
+ * The result of {@link Router#match}. Path parameters are kept as offsets into the request URI and only
+ * turned into strings when asked for, so one instance can be reused for every request on a connection
+ * or thread.
+ */
+public final class RouteMatch {
+    private String uri;
+    private HttpHandler handler;
+    private String[] paramNames;
+    private String route;
+    private int[] bounds = new int[16];
+    private int paramCount;
+
+    void reset(String uri) {
+        this.uri = uri;
+        this.handler = null;
+        this.paramNames = null;
+        this.route = null;
+        this.paramCount = 0;
+    }
+
+    void pushParam(int start, int end) {
+        if (paramCount * 2 == bounds.length) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        bounds[paramCount * 2] = start;
+        bounds[paramCount * 2 + 1] = end;
+        paramCount++;
+    }
+
+    int mark() {
+        return paramCount;
+    }
+
+    void rewind(int mark) {
+        paramCount = mark;
+    }
+
+    void found(HttpHandler handler, String[] paramNames, String route) {
+        this.handler = handler;
+        this.paramNames = paramNames;
+        this.route = route;
+    }
+
+    /**
+     * @return the matched handler, or null if nothing matched.
+     */
+    public HttpHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return the pattern of the matched route as registered, e.g. "/books/{id}", or null if nothing matched.
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    public int getParameterCount() {
+        return handler == null ? 0 : paramCount;
+    }
+
+    public String getParameterName(int i) {
+        return paramNames[i];
+    }
+
+    public String getParameterValue(int i) {
+        return uri.substring(bounds[i * 2], bounds[i * 2 + 1]);
+    }
+
+    /**
+     * @return the parameters as a map for the handler, {@link PathParameters#EMPTY} for routes without any.
+     */
+    public PathParameters getPathParameters() {
+        int count = getParameterCount();
+        if (count == 0) {
+            return PathParameters.EMPTY;
+        }
+        PathParameters params = new PathParameters();
+        for (int i = 0; i < count; i++) {
+            params.put(getParameterName(i), getParameterValue(i));
+        }
+        return params;
+    }
+}
@@ -1,96 +1,214 @@
 package com.minihttp.routing.Router;
 
+import com.minihttp.LogWrapper.LogWrapper;
 import com.minihttp.PathParameters.PathParameters;
 import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.handlers.ResponseCache.CachePolicy;
+import com.minihttp.handlers.ResponseCache.ResponseCache;
+import com.minihttp.handlers.StaticFileHandler.StaticAssetCache;
+import com.minihttp.handlers.StaticFileHandler.StaticFileHandler;
 import com.minihttp.http.HttpMethod.HttpMethod;
 import com.minihttp.routing.URLTrieNode.URLTrieNode;
 import com.minihttp.util.Pair.Pair;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Maps a method and path to a handler, with one segment tree per HttpMethod.
+ * <p>
+ * Route segments are literals, {name} parameters or *, which swallows one or more segments (none when it
+ * ends the route, so "/static/*" also serves "/static/"). When several routes fit, a literal segment is
+ * preferred over a parameter and a parameter over *, backtracking if the preferred branch dead-ends.
+ * Empty segments and the query string are ignored.
+ * <p>
+ * The table is frozen by {@link #freeze()}, which servers call on start, or by the first lookup.
+ * Lookups after that are lock-free and allocate nothing for routes without parameters.
+ * <p>
+ * Handlers that are {@link Closeable}, like a {@link StaticAssetCache} with its watcher thread, are closed
+ * by {@link #close()} when the server stops.
+ */
 public class Router {
-    private final URLTrieNode node;
+    private final URLTrieNode[] roots = new URLTrieNode[HttpMethod.values().length];
+    private final List<Closeable> closeables = new ArrayList<>();
+    private volatile boolean frozen;
 
     public Router() {
-        node = new URLTrieNode(null);
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = new URLTrieNode();
+        }
     }
 
-    public void add(String _u, HttpMethod r, HttpHandler h) {
-        String[] pathQuery = _u.split("\\?");
-        String u = pathQuery[0];
-        String[] parts = u.substring(1).split("/");
-        URLTrieNode temp = node;
-        for (String part : parts) {
-            URLTrieNode n = temp.getChildren().get(new Pair<>(part, r));
-            if (n == null) {
-                n = new URLTrieNode(h);
-                if (part.startsWith("{")) {
-                    temp.setPathParam(part);
-                } else if (part.startsWith("*")) {
-                    temp.setIsWildcard(true);
-                }
-                temp.getChildren().put(new Pair<>(part, r), n);
+    public synchronized void add(String _u, HttpMethod r, HttpHandler h) {
+        int end = pathEnd(_u);
+        URLTrieNode temp = roots[r.ordinal()];
+        List<String> paramNames = new ArrayList<>();
+        for (String part : _u.substring(0, end).split("/")) {
+            if (part.isEmpty()) {
+                continue;
             }
-            temp = n;
+            if (part.startsWith("{")) {
+                paramNames.add(part.substring(1, part.length() - 1));
+                temp = temp.paramChild();
+            } else if (part.startsWith("*")) {
+                temp = temp.wildcardChild();
+            } else {
+                temp = temp.child(part);
+            }
+        }
+        temp.setHandler(h, paramNames.toArray(new String[0]), _u.substring(0, end));
+        if (h instanceof Closeable closeable && !closeables.contains(closeable)) {
+            closeables.add(closeable);
         }
     }
 
-    public Pair<PathParameters, HttpHandler> find(String u, HttpMethod r) {
-        PathParameters mp = new PathParameters();
-        u = u.split("\\?")[0];
-        String[] parts = u.substring(1).split("/");
-        URLTrieNode temp = node;
-        URLTrieNode wildcardNode = null;
-        boolean wilcardOccured = false;
-        for (String part : parts) {
-            URLTrieNode n = temp.getChildren().get(new Pair<>(part, r));
-            if (n == null) {
-
-                if (wilcardOccured) n = temp;
-                else if (temp.isWildcard()) {
-                    n = temp.getChildren().get(new Pair<>("*", r));
-                    wilcardOccured = true;
-                } else if (temp.getPathParam() != null) {
-                    n = temp.getChildren().get(new Pair<>(temp.getPathParam(), r));
-                    mp.put(temp.getPathParam().substring(1, temp.getPathParam().length() - 1), part);
-                }
+    /**
+     * Like {@link #add(String, HttpMethod, HttpHandler)}, with a {@link ResponseCache} in front of the handler.
+     * Only GET routes can be cached.
+     */
+    public void add(String _u, HttpMethod r, HttpHandler h, CachePolicy cache) {
+        if (r != HttpMethod.GET) {
+            throw new IllegalArgumentException("Only GET routes can be cached");
+        }
+        add(_u, r, new ResponseCache(h, cache));
+    }
 
-            } else wilcardOccured = false;
-            temp = n;
-            if (temp == null) return null;
+    /**
+     * Mounts a {@link StaticFileHandler} so that GET requests below {@code prefix} serve files from {@code root}.
+     */
+    public void addStatic(String prefix, Path root) throws IOException {
+        String mount = prefix.endsWith("/") ? prefix : prefix + "/";
+        add(mount + "*", HttpMethod.GET, new StaticFileHandler(prefix, root));
+    }
+
+    /**
+     * Like {@link #addStatic(String, Path)}, with a {@link StaticAssetCache} of up to {@code cacheBytes} in front.
+     */
+    public void addStatic(String prefix, Path root, long cacheBytes) throws IOException {
+        String mount = prefix.endsWith("/") ? prefix : prefix + "/";
+        add(mount + "*", HttpMethod.GET, new StaticAssetCache(new StaticFileHandler(prefix, root), cacheBytes));
+    }
+
+    /**
+     * Compiles the route table. Adding routes afterwards throws IllegalStateException.
+     */
+    public synchronized void freeze() {
+        if (frozen) {
+            return;
+        }
+        for (URLTrieNode root : roots) {
+            root.freeze();
         }
-        return new Pair<>(mp, temp.getHandler());
+        frozen = true;
     }
-}
 
-/*
-public Pair<PathParameters, HttpHandler> find(String u, HttpMethod r) {
-        PathParameters mp = new PathParameters();
-        u = u.split("\\?")[0];
-        String[] parts = u.substring(1).split("/");
-        URLTrieNode temp = node;
-        URLTrieNode wildcard = null;
-        if (temp == null) return null;
-        boolean wilcardOccured = false;
-        for (String part : parts) {
-            URLTrieNode n = temp.getChildren().get(new Pair<>(part, r));
-            if (n == null) {
-                LogWrapper.log(part + ":null");
-                if (temp.getPathParam() != null) {
-                    n = temp.getChildren().get(new Pair<>(temp.getPathParam(), r));
-                    mp.put(temp.getPathParam().substring(1, temp.getPathParam().length() - 1), part);
+    /**
+     * Closes the handlers that hold resources of their own. Routes still match afterwards.
+     */
+    public synchronized void close() {
+        for (Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LogWrapper.log(LogWrapper.LogLevel.WARNING, "[-] Failed to close a handler: {}", e);
+            }
+        }
+        closeables.clear();
+    }
+
+    /**
+     * Looks up the route for {@code uri} into {@code match}, which the caller may reuse across requests.
+     *
+     * @return true if a route matched.
+     */
+    public boolean match(String uri, HttpMethod method, RouteMatch match) {
+        if (!frozen) {
+            freeze();
+        }
+        match.reset(uri);
+        int end = pathEnd(uri);
+        return match(roots[method.ordinal()], uri, skipSlashes(uri, 0, end), end, match);
+    }
+
+    public Pair<PathParameters, HttpHandler> find(String u, HttpMethod r) {
+        RouteMatch match = new RouteMatch();
+        if (!match(u, r, match)) {
+            return null;
+        }
+        return new Pair<>(match.getPathParameters(), match.getHandler());
+    }
+
+    private static boolean match(URLTrieNode node, String uri, int pos, int end, RouteMatch match) {
+        if (pos >= end) {
+            if (node.getHandler() != null) {
+                match.found(node.getHandler(), node.getParamNames(), node.getRoute());
+                return true;
+            }
+            URLTrieNode wildcard = node.getWildcard();
+            if (wildcard != null && wildcard.getHandler() != null) {
+                match.found(wildcard.getHandler(), wildcard.getParamNames(), wildcard.getRoute());
+                return true;
+            }
+            return false;
+        }
+
+        int segmentEnd = segmentEnd(uri, pos, end);
+        int next = skipSlashes(uri, segmentEnd, end);
+
+        URLTrieNode child = node.findStatic(uri, pos, segmentEnd);
+        if (child != null && match(child, uri, next, end, match)) {
+            return true;
+        }
+        if (node.getParam() != null) {
+            int mark = match.mark();
+            match.pushParam(pos, segmentEnd);
+            if (match(node.getParam(), uri, next, end, match)) {
+                return true;
+            }
+            match.rewind(mark);
+        }
+        URLTrieNode wildcard = node.getWildcard();
+        if (wildcard != null) {
+            // Let * take the fewest segments that still lead to a route
+            while (true) {
+                int mark = match.mark();
+                if (match(wildcard, uri, next, end, match)) {
+                    return true;
                 }
-                if(wilcardOccured) n = temp;
-                else if(temp.isWildcard()) {
-                    LogWrapper.log(part + " wildcard");
-                    n = temp.getChildren().get(new Pair<>("*", r));
-                    wilcardOccured = true;
+                match.rewind(mark);
+                if (next >= end) {
+                    break;
                 }
+                next = skipSlashes(uri, segmentEnd(uri, next, end), end);
+            }
+        }
+        return false;
+    }
 
-            }else wilcardOccured = false;
-            temp = n;
-            if (temp == null) return null;
+    private static int pathEnd(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
         }
-        return new Pair<>(mp, temp.getHandler());
+        return uri.length();
     }
- */
 
+    private static int segmentEnd(String uri, int pos, int end) {
+        while (pos < end && uri.charAt(pos) != '/') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipSlashes(String uri, int pos, int end) {
+        while (pos < end && uri.charAt(pos) == '/') {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -1,52 +1,142 @@
 package com.minihttp.routing.URLTrieNode;
 
 import com.minihttp.handlers.HttpHandler.HttpHandler;
-import com.minihttp.http.HttpMethod.HttpMethod;
-import com.minihttp.util.Pair.Pair;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * One path segment of a route tree. A node has static children keyed by their literal segment, at most
+ * one {param} child and at most one * child.
+ * <p>
+ * While routes are being added the static children live in a map. {@link #freeze()} turns them into a
+ * sorted array that is searched directly against a region of the request URI, so matching never has to
+ * cut the URI into substrings.
+ */
 public class URLTrieNode {
-    final Map<Pair<String, HttpMethod>, URLTrieNode> children;
-    HttpHandler handler;
-    String pathParam;
-    boolean wildcard;
+    private Map<String, URLTrieNode> staticChildren = new TreeMap<>();
+    private String[] keys;
+    private URLTrieNode[] children;
+    private URLTrieNode param;
+    private URLTrieNode wildcard;
+    private HttpHandler handler;
+    private String[] paramNames;
+    private String route;
 
+    public URLTrieNode child(String segment) {
+        checkNotFrozen();
+        return staticChildren.computeIfAbsent(segment, s -> new URLTrieNode());
+    }
 
-    public URLTrieNode(HttpHandler handler) {
-        children = new HashMap<>();
-        this.handler = handler;
-        pathParam = null;
-        this.wildcard = false;
+    public URLTrieNode paramChild() {
+        checkNotFrozen();
+        if (param == null) {
+            param = new URLTrieNode();
+        }
+        return param;
     }
 
-    public boolean isWildcard() {
-        return this.wildcard;
+    public URLTrieNode wildcardChild() {
+        checkNotFrozen();
+        if (wildcard == null) {
+            wildcard = new URLTrieNode();
+        }
+        return wildcard;
     }
 
-    public void setIsWildcard(boolean x) {
-        this.wildcard = x;
+    /**
+     * Makes this node the end of a route. The first registration of a route wins.
+     *
+     * @param paramNames the names of the route's {param} segments, in path order.
+     * @param route      the route as it was registered, e.g. "/books/{id}".
+     */
+    public void setHandler(HttpHandler handler, String[] paramNames, String route) {
+        checkNotFrozen();
+        if (this.handler == null) {
+            this.handler = handler;
+            this.paramNames = paramNames;
+            this.route = route;
+        }
     }
 
-    public String getPathParam() {
-        return this.pathParam;
+    public HttpHandler getHandler() {
+        return handler;
     }
 
-    public void setPathParam(String x) {
-        this.pathParam = x;
+    public String[] getParamNames() {
+        return paramNames;
     }
 
-    public Map<Pair<String, HttpMethod>, URLTrieNode> getChildren() {
-        return children;
+    public String getRoute() {
+        return route;
     }
 
-    public HttpHandler getHandler() {
-        return handler;
+    public URLTrieNode getParam() {
+        return param;
+    }
+
+    public URLTrieNode getWildcard() {
+        return wildcard;
+    }
+
+    /**
+     * Compiles this node and everything below it. No routes can be added afterwards.
+     */
+    public void freeze() {
+        if (staticChildren == null) {
+            return;
+        }
+        keys = staticChildren.keySet().toArray(new String[0]);
+        children = staticChildren.values().toArray(new URLTrieNode[0]);
+        staticChildren = null;
+        for (URLTrieNode child : children) {
+            child.freeze();
+        }
+        if (param != null) {
+            param.freeze();
+        }
+        if (wildcard != null) {
+            wildcard.freeze();
+        }
     }
 
-    public void setHandler(HttpHandler h) {
-        this.handler = h;
+    /**
+     * @return the static child whose segment equals {@code s.substring(start, end)}, or null.
+     */
+    public URLTrieNode findStatic(String s, int start, int end) {
+        int lo = 0;
+        int hi = keys.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(keys[mid], s, start, end);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return children[mid];
+            }
+        }
+        return null;
     }
 
+    // Same ordering as String.compareTo, which is what the TreeMap sorted the keys by
+    private static int compare(String key, String s, int start, int end) {
+        int len = end - start;
+        int n = Math.min(key.length(), len);
+        for (int i = 0; i < n; i++) {
+            char a = key.charAt(i);
+            char b = s.charAt(start + i);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return key.length() - len;
+    }
+
+    private void checkNotFrozen() {
+        if (staticChildren == null) {
+            throw new IllegalStateException("Routes cannot be added once the router is frozen");
+        }
+    }
 }
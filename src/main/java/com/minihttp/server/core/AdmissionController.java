@@ -0,0 +1,158 @@
+package com.minihttp.server.core;
+
+import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpStatus.HttpStatus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which connections and requests {@link MiniServer} takes on, and answers the rest with a
+ * pre-encoded 503 before they reach the router or a handler.
+ * <p>
+ * Connections are capped by {@link ServerConfig#getMaxConnections()}. Requests are admitted while fewer
+ * than the concurrency limit are between dispatch and their handler returning. The limit is either fixed,
+ * {@link ServerConfig#getMaxInFlight()}, or adapted to the observed latency when a latency target is set:
+ * it grows by one while requests finish within the target and the limit is in use, and is cut by a tenth,
+ * at most once per target interval, when they do not (AIMD). Latency is counted from dispatch, so time
+ * spent queued for a handler thread counts too, which is what grows first under overload.
+ */
+final class AdmissionController {
+    // The adaptive limit never goes below this, so a few requests always get through to be measured
+    static final int MIN_LIMIT = 4;
+    // Where the adaptive limit starts when there is no maxInFlight to start from
+    static final int INITIAL_LIMIT = 64;
+    private static final double BACKOFF = 0.9;
+
+    private final int maxConnections;
+    private final int maxLimit;
+    private final long targetNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger limit;
+    private final AtomicLong lastDecrease;
+    private final HttpResponse rejection;
+    final LongAdder shedConnections = new LongAdder();
+    final LongAdder shedRequests = new LongAdder();
+
+    AdmissionController(ServerConfig config) {
+        this.maxConnections = config.getMaxConnections();
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(config.getAdaptiveLatencyTargetMillis());
+        if (config.getMaxInFlight() > 0) {
+            this.maxLimit = config.getMaxInFlight();
+            this.limit = new AtomicInteger(maxLimit);
+        } else {
+            this.maxLimit = Integer.MAX_VALUE;
+            this.limit = new AtomicInteger(targetNanos > 0 ? INITIAL_LIMIT : Integer.MAX_VALUE);
+        }
+        this.lastDecrease = new AtomicLong(System.nanoTime());
+
+        byte[] body = HttpStatus.SERVICE_UNAVAILABLE.getMessage().getBytes(StandardCharsets.UTF_8);
+        String head = head(config.getRetryAfterSeconds(), body.length);
+        this.rejection = HttpResponse.preEncoded(HttpStatus.SERVICE_UNAVAILABLE.getCode(),
+                ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)), ByteBuffer.wrap(body));
+    }
+
+    private static String head(int retryAfterSeconds, int contentLength) {
+        Map<String, List<String>> headers = new HttpResponse.Create()
+                .setStatusCode(HttpStatus.SERVICE_UNAVAILABLE.getCode())
+                .setResponseHeader(Map.of("Retry-After", List.of(String.valueOf(retryAfterSeconds))))
+                .build()
+                .getResponseHeader();
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(HttpStatus.SERVICE_UNAVAILABLE.getCode()).append(' ')
+                .append(HttpStatus.SERVICE_UNAVAILABLE.getMessage()).append("\r\n");
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (name.equals("Date") || name.equals("Connection")) {
+                continue;
+            }
+            sb.append(name).append(": ").append(String.join(";", header.getValue())).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return whether a server with {@code open} connections may take one more. Counts a refusal.
+     */
+    boolean admitConnection(int open) {
+        if (maxConnections > 0 && open >= maxConnections) {
+            shedConnections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a slot for a request if one is free. Every successful call must be paired with
+     * {@link #release(long)}. Counts a refusal.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit.get()) {
+                shedRequests.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a slot taken by {@link #tryAcquire()}.
+     *
+     * @param latencyNanos how long the request took from dispatch, or a negative value to not count it
+     *                     towards the adaptive limit, e.g. when no handler ran.
+     */
+    void release(long latencyNanos) {
+        int current = inFlight.getAndDecrement();
+        if (targetNanos > 0 && latencyNanos >= 0) {
+            adapt(latencyNanos, current);
+        }
+    }
+
+    // Lock-free: concurrent releases race on the atomics, and an increase that loses its race is dropped
+    private void adapt(long latencyNanos, int inFlightAtRelease) {
+        if (latencyNanos > targetNanos) {
+            long now = System.nanoTime();
+            long last = lastDecrease.get();
+            // One cut per target interval, made by whoever claims it; the requests still in flight mostly
+            // reflect the old limit
+            if (now - last >= targetNanos && lastDecrease.compareAndSet(last, now)) {
+                int floor = Math.min(MIN_LIMIT, maxLimit);
+                limit.updateAndGet(current -> Math.max(floor, (int) (current * BACKOFF)));
+            }
+        } else {
+            int current = limit.get();
+            if (inFlightAtRelease * 2 >= current && current < maxLimit) {
+                limit.compareAndSet(current, current + 1);
+            }
+        }
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the current concurrency limit, Integer.MAX_VALUE when there is none.
+     */
+    int limit() {
+        return limit.get();
+    }
+
+    /**
+     * @return the shared 503 for requests and connections that were not admitted.
+     */
+    HttpResponse rejection() {
+        return rejection;
+    }
+}
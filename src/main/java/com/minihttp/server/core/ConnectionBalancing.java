@@ -0,0 +1,38 @@
+package com.minihttp.server.core;
+
+/**
+ * How {@link MiniServer}'s acceptor picks the event loop for a new connection.
+ */
+public enum ConnectionBalancing {
+    /**
+     * Each loop in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The loop with the fewest open connections, the next one in turn on a tie. Keeps loops even when
+     * some connections live much longer than others.
+     */
+    LEAST_CONNECTIONS;
+
+    /**
+     * @param next where round-robin is up to, for this pick and for breaking ties.
+     * @return the index of the chosen loop.
+     */
+    int select(EventLoop[] loops, int next) {
+        int start = Math.floorMod(next, loops.length);
+        if (this == ROUND_ROBIN) {
+            return start;
+        }
+        int best = start;
+        int fewest = loops[start].connections.get();
+        for (int i = 1; i < loops.length && fewest > 0; i++) {
+            int candidate = (start + i) % loops.length;
+            int count = loops[candidate].connections.get();
+            if (count < fewest) {
+                best = candidate;
+                fewest = count;
+            }
+        }
+        return best;
+    }
+}
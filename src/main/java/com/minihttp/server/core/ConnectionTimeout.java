@@ -0,0 +1,98 @@
+package com.minihttp.server.core;
+
+import com.minihttp.util.TimingWheel.TimingWheel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The single timeout of one connection on a selector loop's {@link TimingWheel}, moved along as the
+ * connection goes from one {@link Phase} to the next. Only used on the loop thread.
+ */
+final class ConnectionTimeout {
+    private final TimingWheel wheel;
+    private final ServerConfig config;
+    private final TimingWheel.Timeout timeout;
+    private Phase phase;
+    private long bodyStart;
+    private long bodyBytes;
+
+    /**
+     * @param onTimeout closes the connection, given the phase it timed out in.
+     */
+    ConnectionTimeout(TimingWheel wheel, ServerConfig config, Consumer<Phase> onTimeout) {
+        this.wheel = wheel;
+        this.config = config;
+        this.timeout = new TimingWheel.Timeout(() -> {
+            Phase expired = phase;
+            phase = null;
+            onTimeout.accept(expired);
+        });
+    }
+
+    /**
+     * What a connection is waiting for, each with its own deadline.
+     */
+    enum Phase {
+        // The next request on a persistent connection
+        IDLE,
+        // The rest of the request line and headers, counted from the first byte
+        HEADERS,
+        // The body, which must keep arriving at the minimum rate
+        BODY,
+        // The client reading the response
+        WRITE
+    }
+
+    /**
+     * Counts bytes read from the socket towards the minimum body rate.
+     */
+    void onRead(int bytes) {
+        if (phase == Phase.BODY && bytes > 0) {
+            bodyBytes += bytes;
+        }
+    }
+
+    /**
+     * Moves the deadline to the phase the connection is in now. IDLE and HEADERS keep their deadline
+     * while the phase does not change; BODY and WRITE treat every call as progress and move it out.
+     *
+     * @param next the current phase, or null while there is no deadline, e.g. a handler is running.
+     */
+    void update(Phase next) {
+        long now = System.nanoTime();
+        long delayMillis;
+        if (next == Phase.WRITE) {
+            delayMillis = config.getWriteTimeoutMillis();
+        } else if (next == Phase.BODY) {
+            if (phase != Phase.BODY) {
+                bodyStart = now;
+                bodyBytes = 0;
+            }
+            delayMillis = 0;
+            if (config.getMinBodyRate() > 0) {
+                long allowedMillis = ServerConfig.BODY_RATE_GRACE_MILLIS + bodyBytes * 1000 / config.getMinBodyRate();
+                delayMillis = Math.max(1, allowedMillis - TimeUnit.NANOSECONDS.toMillis(now - bodyStart));
+            }
+        } else if (next == phase) {
+            return;
+        } else if (next == Phase.HEADERS) {
+            delayMillis = config.getHeaderTimeoutMillis();
+        } else if (next == Phase.IDLE) {
+            delayMillis = config.getIdleTimeoutMillis();
+        } else {
+            delayMillis = 0;
+        }
+        phase = next;
+        if (delayMillis > 0) {
+            wheel.schedule(timeout, TimeUnit.MILLISECONDS.toNanos(delayMillis), now);
+        } else {
+            wheel.cancel(timeout);
+        }
+    }
+
+    void cancel() {
+        wheel.cancel(timeout);
+        phase = null;
+    }
+}
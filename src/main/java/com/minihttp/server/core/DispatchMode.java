@@ -0,0 +1,70 @@
+package com.minihttp.server.core;
+
+import com.minihttp.LogWrapper.LogWrapper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where HttpHandler.handle runs. Parsing, routing and writing always stay on the selector thread, and so
+ * does starting an AsyncHttpHandler, which must not block anyway.
+ */
+public enum DispatchMode {
+    /**
+     * On the selector thread itself. Cheapest, but one slow handler stalls every connection on that loop.
+     */
+    INLINE,
+    /**
+     * On a new virtual thread per request. Needs a JDK with virtual threads and falls back to
+     * {@link #WORKER_POOL} otherwise.
+     */
+    VIRTUAL_THREADS,
+    /**
+     * On a bounded pool of platform threads. Requests that do not fit in its queue are rejected.
+     */
+    WORKER_POOL;
+
+    private static final int QUEUE_PER_THREAD = 1024;
+
+    /**
+     * @return the executor handlers should run on, or null for {@link #INLINE}.
+     */
+    ExecutorService newExecutor(int threads) {
+        switch (this) {
+            case INLINE:
+                return null;
+            case VIRTUAL_THREADS:
+                try {
+                    return (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    LogWrapper.log(LogWrapper.LogLevel.WARNING,
+                            "[-] Virtual threads are not available on this JDK, using a worker pool");
+                    return newWorkerPool(threads);
+                }
+            default:
+                return newWorkerPool(threads);
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), new HandlerThreadFactory());
+    }
+
+    private static class HandlerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "http-handler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.minihttp.server.core;
+
+import com.minihttp.LogWrapper.LogWrapper;
+import com.minihttp.util.MpscQueue.MpscQueue;
+import com.minihttp.util.TimingWheel.TimingWheel;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+class EventLoop implements Runnable {
+    // 100 ms ticks, a turn of the wheel is about 51 s
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SIZE = 512;
+    final AtomicReference<Selector> selectorRef = new AtomicReference<>();
+    private final MpscQueue<Runnable> tasks = new MpscQueue<>();
+    // Set by the first task since the loop last woke up, so a burst of tasks costs one wakeup()
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Connections assigned to this loop, counted by the acceptor and closed on the loop
+    final AtomicInteger connections = new AtomicInteger();
+    // Only written by the loop thread
+    volatile long iterations;
+    private volatile Thread thread;
+    // Connection timeouts, only used on the loop thread
+    final TimingWheel wheel = new TimingWheel(TICK_NANOS, WHEEL_SIZE, System.nanoTime());
+    // Connections closed by a timeout, per phase
+    final LongAdder[] timeouts = new LongAdder[ConnectionTimeout.Phase.values().length];
+
+    /**
+     * A key attachment that serves one connection, dropped when running it fails unexpectedly.
+     */
+    interface Connection extends Runnable {
+        void closeChannel();
+    }
+
+    public EventLoop() throws IOException {
+        selectorRef.set(Selector.open());
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Runs {@code task} on this loop's thread, e.g. to register a new connection or hand back a response
+     * computed elsewhere. Only the first task since the loop last woke up wakes it; called from the loop
+     * itself, the task runs before the next select, without a wake-up.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selectorRef.get().wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        Selector selector = selectorRef.get();
+        try {
+            while (!Thread.interrupted()) {
+                if (tasks.isEmpty()) {
+                    // Wakes up for the next tick of the wheel, or only for I/O when no timeout is pending
+                    selector.select(wheel.pollTimeoutMillis(System.nanoTime()));
+                } else {
+                    selector.selectNow();
+                }
+                // Tasks offered from here on need a new wakeup, the ones before are drained below
+                wakeupPending.set(false);
+                iterations++;
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selectionKey = iterator.next();
+                    runKey(selectionKey);
+                    iterator.remove();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Event loop task failed: {}", e);
+                    }
+                }
+                wheel.advance(System.nanoTime());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the key's attachment. An unexpected failure is logged and only closes that key's connection,
+     * the loop and its other connections carry on.
+     */
+    private static void runKey(SelectionKey key) {
+        Runnable attachment = (Runnable) key.attachment();
+        try {
+            attachment.run();
+        } catch (RuntimeException e) {
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Closing connection after an unexpected error: {}", e);
+            if (attachment instanceof Connection connection) {
+                connection.closeChannel();
+            }
+        }
+    }
+
+    /**
+     * Closes every channel registered with this loop and its selector. Only called once the loop has exited.
+     */
+    void close() {
+        Selector selector = selectorRef.get();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.minihttp.server.core;
+
+/**
+ * How {@link MiniServer} accepts connections.
+ */
+public enum ListenerMode {
+    /**
+     * One listening socket and one acceptor thread, which hands connections to the event loops as
+     * {@link ConnectionBalancing} picks them.
+     */
+    ACCEPTOR,
+    /**
+     * A listening socket per event loop, all bound to the port with SO_REUSEPORT, each loop accepting its
+     * own connections. The kernel spreads new connections across the sockets, so there is no acceptor
+     * thread to saturate. Needs Linux 3.9 or later, elsewhere the option either is missing, in which case
+     * the server falls back to {@link #ACCEPTOR}, or does not balance.
+     */
+    REUSE_PORT
+}
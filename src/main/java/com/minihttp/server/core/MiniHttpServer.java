@@ -1,14 +1,24 @@
 package com.minihttp.server.core;
 
+import com.minihttp.LogWrapper.LogWrapper;
 import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.AsyncHttpHandler.AsyncHttpHandler;
 import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.handlers.ResponseCache.CachePolicy;
+import com.minihttp.handlers.ResponseCache.ResponseCache;
 import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
 import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.ChunkEncoder;
+import com.minihttp.http.HttpResponse.FileRegion;
 import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
+import com.minihttp.http.HttpResponse.ResponseEncoder;
 import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.routing.Router.RouteMatch;
 import com.minihttp.routing.Router.Router;
 import com.minihttp.util.BufferPool.BufferPool;
-import com.minihttp.util.Pair.Pair;
+import com.minihttp.util.TimingWheel.TimingWheel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -18,32 +28,54 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 
 public class MiniHttpServer {
+    // Chunks of a streamed body sent per flush before the selector moves on to the other connections
+    private static final int MAX_CHUNKS_PER_FLUSH = 16;
     private final Selector selector;
     private final ServerSocketChannel serverSocketChannel;
     private final BufferPool pool;
+    private final ResponseCompressor compressor = new ResponseCompressor();
     private final ExecutorService executor;
+    // Work handed back to the selector thread, e.g. responses computed on the executor
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 
     private final Router router;
+    // Only used on the selector thread
+    private final RouteMatch route = new RouteMatch();
+    private ByteBuffer[] batch = new ByteBuffer[8];
+    // Idle, header and body timeouts of the connections, with ServerConfig's default durations
+    private final ServerConfig config = new ServerConfig.Create().build();
+    private final TimingWheel wheel = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(100), 512, System.nanoTime());
+    private volatile boolean running;
 
 
     public MiniHttpServer(Integer port) throws IOException {
+        this(port, DispatchMode.INLINE);
+    }
+
+    public MiniHttpServer(Integer port, DispatchMode dispatchMode) throws IOException {
         selector = Selector.open();
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.bind(new InetSocketAddress("localhost", port));
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         pool = new BufferPool();
-        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());// Adjust the thread pool size as needed
+        executor = dispatchMode.newExecutor(Runtime.getRuntime().availableProcessors() * 4);
         router = new Router();
     }
 
@@ -51,40 +83,283 @@ public class MiniHttpServer {
         this.router.add(uri, method, handler);
     }
 
+    /**
+     * Adds a GET route whose responses are cached as {@code cache} describes.
+     */
+    public void addRoute(String uri, HttpMethod method, HttpHandler handler, CachePolicy cache) throws URISyntaxException {
+        this.router.add(uri, method, handler, cache);
+    }
+
+    public void addAsyncRoute(String uri, HttpMethod method, AsyncHttpHandler handler) throws URISyntaxException {
+        this.router.add(uri, method, handler);
+    }
+
+    public void addStaticRoute(String prefix, Path directory) throws IOException {
+        this.router.addStatic(prefix, directory);
+    }
+
+    public void addStaticRoute(String prefix, Path directory, long cacheBytes) throws IOException {
+        this.router.addStatic(prefix, directory, cacheBytes);
+    }
+
     public void sendErrorResponse(SocketChannel client, HttpStatus status) throws IOException {
         sendErrorResponse(client, status.getCode(), status.getMessage());
     }
 
-    public void requestHandler(String reqData, SocketChannel client) throws Exception {
-        Pair<HttpStatus, HttpRequest> req_status_handler = HttpRequest.Create.processHttpRequest(reqData);
-        if (req_status_handler.getKey() != HttpStatus.OK) {
-            sendErrorResponse(client, req_status_handler.getKey());
-            return;
+    public void requestHandler(HttpRequest req, SocketChannel client) throws IOException {
+        try {
+            if (this.router.match(req.getURI(), req.getHttpMethod(), route)) {
+                SelectionKey key = client.keyFor(selector);
+                respond(req, key, (Connection) key.attachment(), route.getHandler(), route.getPathParameters());
+            } else {
+                sendErrorResponse(client, HttpStatus.NOT_FOUND);
+            }
+        } finally {
+            req.getRequestBody().close();
         }
+    }
+
+    private void respond(HttpRequest req, SelectionKey key, Connection connection, HttpHandler handler,
+                         PathParameters kv) throws IOException {
+        try {
+            writeResponse(key, connection, handler.handle(req, kv), req, isKeepAliveRequested(req));
+        } catch (Exception e) {
+            sendErrorResponse((SocketChannel) key.channel(), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
 
-        HttpRequest req = req_status_handler.getValue();
-        Pair<PathParameters, HttpHandler> xv = this.router.find(req.getURI(), req.getHttpMethod());
-        if (xv != null) {
-            HttpHandler handler = xv.getValue();
-            PathParameters kv = xv.getKey();
-            try {
-                HttpResponse r = handler.handle(req, kv);
-                boolean keepAlive = isKeepAliveRequested(req);
+    /**
+     * Runs the handler on the executor, or starts an {@link AsyncHttpHandler} right here. Reading from the
+     * connection is paused until the response has been handed back to the selector thread and written,
+     * which keeps responses in request order.
+     */
+    private void offloadRequest(HttpRequest req, SelectionKey key, Connection connection, HttpHandler handler,
+                                PathParameters params) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        key.interestOps(0);
+        if (handler instanceof AsyncHttpHandler async) {
+            AsyncHttpHandler.invoke(async, req, params).whenComplete((r, e) -> {
+                if (e != null) {
+                    LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Async handler failed: {}", e);
+                }
+                HttpResponse response = e == null ? r : null;
+                ByteBuffer[] encoded = encodeOffloaded(req, response);
+                tasks.add(() -> resumeAfterHandler(key, connection, req, response, encoded));
+                selector.wakeup();
+            });
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                HttpResponse r;
                 try {
-                    client.write(ByteBuffer.wrap(r.toString().getBytes(StandardCharsets.UTF_8)));
-                    if (!keepAlive) {
-                        client.close();
-                        System.out.println("[+] Connection to client closed");
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    r = handler.handle(req, params);
+                } catch (Exception e) {
+                    r = null;
                 }
-            } catch (Exception e) {
+                HttpResponse response = r;
+                ByteBuffer[] encoded = encodeOffloaded(req, response);
+                tasks.add(() -> resumeAfterHandler(key, connection, req, response, encoded));
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            req.getRequestBody().close();
+            sendErrorResponse(client, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Encodes the response of an offloaded handler on the thread that ran it, so that serializing a JSON
+     * entity and compressing the body happen there rather than on the selector thread.
+     *
+     * @return pooled buffers to send as they are, or null to leave the response to the selector thread.
+     */
+    private ByteBuffer[] encodeOffloaded(HttpRequest req, HttpResponse r) {
+        if (r == null || r.isPreEncoded()) {
+            return null;
+        }
+        try {
+            return compressor.encode(r, req.getHeader("accept-encoding"), isKeepAliveRequested(req), pool);
+        } catch (RuntimeException e) {
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Could not encode response: {}", e);
+            return null;
+        }
+    }
+
+    private void resumeAfterHandler(SelectionKey key, Connection connection, HttpRequest req, HttpResponse r,
+                                    ByteBuffer[] encoded) {
+        SocketChannel client = (SocketChannel) key.channel();
+        try {
+            if (!client.isOpen()) {
+                release(encoded);
+                return;
+            }
+            if (r == null) {
                 sendErrorResponse(client, HttpStatus.INTERNAL_SERVER_ERROR);
+                return;
+            }
+            writeResponse(key, connection, r, req, isKeepAliveRequested(req), encoded);
+            if (client.isOpen() && connection.writes.isEmpty()) {
+                resumeReading(key, connection);
+            }
+        } catch (IOException e) {
+            closeClientSocket(client);
+        } finally {
+            req.getRequestBody().close();
+            updateTimeout(key, connection);
+        }
+    }
+
+    /**
+     * Answers the requests that arrived while the connection was busy, then goes back to reading unless
+     * another handler is running or another response is being written.
+     */
+    private void resumeReading(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer pending = connection.pending;
+        connection.pending = null;
+        if ((pending == null || processInput(key, connection, pending)) && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void release(ByteBuffer[] buffers) {
+        if (buffers != null) {
+            for (ByteBuffer b : buffers) {
+                pool.release(b);
             }
+        }
+    }
+
+    private void writeResponse(SelectionKey key, Connection connection, HttpResponse r, HttpRequest req,
+                               boolean keepAlive) {
+        writeResponse(key, connection, r, req, keepAlive, null);
+    }
+
+    /**
+     * Queues the response on the connection and writes as much of it as the socket takes now. The rest
+     * goes out on OP_WRITE, see {@link #flush}.
+     *
+     * @param encoded the response already encoded into pooled buffers, or null to encode it here.
+     */
+    private void writeResponse(SelectionKey key, Connection connection, HttpResponse r, HttpRequest req,
+                               boolean keepAlive, ByteBuffer[] encoded) {
+        if (r.isPreEncoded()) {
+            Collections.addAll(connection.writes, r.preEncodedBuffers(keepAlive));
         } else {
-            sendErrorResponse(client, HttpStatus.NOT_FOUND);
+            if (encoded == null) {
+                encoded = compressor.encode(r, req.getHeader("accept-encoding"), keepAlive, pool);
+            }
+            for (ByteBuffer b : encoded) {
+                connection.writes.add(b);
+                connection.pooled.add(b);
+            }
+            if (r.getFileRegion() != null) {
+                connection.writes.add(r.getFileRegion());
+            }
+            if (r.getChunkedBody() != null) {
+                connection.writes.add(new ChunkEncoder(r.getChunkedBody()));
+            }
         }
+        connection.keepAlive = keepAlive;
+        flush(key, connection);
+    }
+
+    /**
+     * Writes queued buffers with gathering writes, file bodies with transferTo and streamed bodies chunk
+     * by chunk, as long as the socket takes them. Once it stops, the connection waits for OP_WRITE, with
+     * the write timeout running, instead of holding up the selector thread. Once everything is written,
+     * the connection is closed unless it is kept alive.
+     *
+     * @return true once nothing is left to write.
+     */
+    private boolean flush(SelectionKey key, Connection connection) {
+        SocketChannel client = (SocketChannel) key.channel();
+        try {
+            while (!connection.writes.isEmpty() && writePending(client, connection)) {
+                // Keep going while the socket accepts everything we hand it
+            }
+        } catch (IOException e) {
+            closeClientSocket(client);
+            connection.release(pool);
+            return false;
+        }
+        if (!connection.writes.isEmpty()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        if (!connection.keepAlive) {
+            closeClientSocket(client);
+            LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[+] Connection to client closed");
+        }
+        return true;
+    }
+
+    /**
+     * Writes the run of items at the head of the queue.
+     *
+     * @return false once the socket send buffer is full.
+     */
+    private boolean writePending(SocketChannel client, Connection connection) throws IOException {
+        if (connection.writes.peekFirst() instanceof ChunkEncoder body) {
+            return writeChunks(client, connection, body);
+        }
+        if (connection.writes.peekFirst() instanceof FileRegion region) {
+            region.transferTo(client);
+            if (!region.isDone()) {
+                return false;
+            }
+            connection.writes.pollFirst();
+            return true;
+        }
+
+        int count = 0;
+        for (Object item : connection.writes) {
+            if (!(item instanceof ByteBuffer buffer)) {
+                break;
+            }
+            if (count == batch.length) {
+                batch = Arrays.copyOf(batch, batch.length * 2);
+            }
+            batch[count++] = buffer;
+        }
+        client.write(batch, 0, count);
+        Arrays.fill(batch, 0, count, null);
+        while (connection.writes.peekFirst() instanceof ByteBuffer buffer && !buffer.hasRemaining()) {
+            connection.writes.pollFirst();
+            if (connection.pooled.peekFirst() == buffer) {
+                pool.release(connection.pooled.pollFirst());
+            }
+        }
+        return !(connection.writes.peekFirst() instanceof ByteBuffer);
+    }
+
+    /**
+     * Produces and writes chunks of a streamed body only while the socket takes them, so a slow client
+     * holds back the producer and at most one chunk per connection is buffered.
+     *
+     * @return false once the socket send buffer is full or this flush has sent its share of chunks.
+     */
+    private boolean writeChunks(SocketChannel client, Connection connection, ChunkEncoder body) throws IOException {
+        for (int i = 0; i < MAX_CHUNKS_PER_FLUSH; i++) {
+            if (connection.chunk == null) {
+                if (body.isDone()) {
+                    connection.writes.pollFirst();
+                    return true;
+                }
+                connection.chunk = body.nextChunk(pool);
+            }
+            client.write(connection.chunk);
+            if (connection.chunk.hasRemaining()) {
+                return false;
+            }
+            pool.release(connection.chunk);
+            connection.chunk = null;
+        }
+        if (body.isDone()) {
+            connection.writes.pollFirst();
+            return true;
+        }
+        return false;
     }
 
     private HttpResponse createErrorResponse(HttpStatus status, String message) {
@@ -100,7 +375,12 @@ public class MiniHttpServer {
     }
 
     private void sendErrorResponse(SocketChannel client, int statusCode, String message) throws IOException {
-        client.write(ByteBuffer.wrap(createErrorResponse(Objects.requireNonNull(HttpStatus.fromCode(statusCode)), message).toString().getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer response = ResponseEncoder.encode(createErrorResponse(Objects.requireNonNull(HttpStatus.fromCode(statusCode)), message), false, pool);
+        try {
+            client.write(response);
+        } finally {
+            pool.release(response);
+        }
         client.close();
     }
 
@@ -108,6 +388,8 @@ public class MiniHttpServer {
     public void handleReadKey(SelectionKey key) throws IOException {
         ByteBuffer buffer = pool.acquireBuffer();
         SocketChannel clientChannel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        boolean keepReading = true;
 
         try {
             // Read data from the client channel
@@ -117,48 +399,116 @@ public class MiniHttpServer {
             if (bytesRead == -1) {
                 // Connection closed by the client, handle this scenario
                 pool.release(buffer);
+                connection.parser.reset();
+                connection.timeout.cancel();
                 clientChannel.close();
                 return;
             } else if (bytesRead > 0) {
+                connection.timeout.onRead(bytesRead);
                 buffer.flip();
-                String message = StandardCharsets.UTF_8.decode(buffer).toString();
-                this.requestHandler(message, clientChannel);
+                keepReading = processInput(key, connection, buffer);
+                pool.release(buffer);
+                if (!clientChannel.isOpen()) {
+                    connection.timeout.cancel();
+                    return;
+                }
+            } else {
                 pool.release(buffer);
             }
 
         } catch (Exception e) {
             // Handle IO error, such as network issues
-            e.printStackTrace();
+            LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[-] Failed to read from client: {}", e);
             pool.release(buffer);
+            connection.parser.reset();
+            connection.timeout.cancel();
             clientChannel.close();
             return;
         }
 
-        // If everything is successful, clear the buffer and register the channel back for reading.
-        buffer.clear();
+        // If everything is successful, keep reading unless a handler runs or a response is being written.
         try {
-            clientChannel.register(key.selector(), SelectionKey.OP_READ);
+            if (keepReading) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            updateTimeout(key, connection);
         } catch (Exception e) {
-            pool.release(buffer);
+            connection.timeout.cancel();
             clientChannel.close();
         }
     }
 
+    /**
+     * Answers the complete requests in {@code buffer}. The parser keeps partial requests between reads,
+     * so every byte read can be handed to it.
+     *
+     * @return false if a handler was offloaded or a response is still being written, and reading must
+     * wait for it.
+     */
+    private boolean processInput(SelectionKey key, Connection connection, ByteBuffer buffer) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        IncrementalHttpParser parser = connection.parser;
+        while (buffer.hasRemaining() && clientChannel.isOpen()) {
+            if (!connection.writes.isEmpty()) {
+                // The next response waits for this one to be written, and so do the requests after it
+                connection.pending = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                return false;
+            }
+            IncrementalHttpParser.State state = parser.parse(buffer);
+            if (state == IncrementalHttpParser.State.COMPLETE) {
+                HttpRequest req = parser.getRequest();
+                parser.reset();
+                if (!this.router.match(req.getURI(), req.getHttpMethod(), route)) {
+                    req.getRequestBody().close();
+                    sendErrorResponse(clientChannel, HttpStatus.NOT_FOUND);
+                    continue;
+                }
+                HttpHandler handler = route.getHandler();
+                if (executor == null && !(handler instanceof AsyncHttpHandler)) {
+                    try {
+                        respond(req, key, connection, handler, route.getPathParameters());
+                    } finally {
+                        req.getRequestBody().close();
+                    }
+                    continue;
+                }
+                if (handler instanceof ResponseCache cache) {
+                    String cacheKey = cache.key(req);
+                    HttpResponse hit = cache.lookup(cacheKey);
+                    if (hit != null) {
+                        // Cached, no need to go through the executor
+                        req.getRequestBody().close();
+                        writeResponse(key, connection, hit, req, isKeepAliveRequested(req));
+                        continue;
+                    }
+                    handler = (r, p) -> cache.load(cacheKey, r, p);
+                }
+                if (buffer.hasRemaining()) {
+                    // Keep the pipelined bytes, the pooled read buffer goes back right away
+                    connection.pending = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                }
+                offloadRequest(req, key, connection, handler, route.getPathParameters());
+                return !clientChannel.isOpen();
+            } else if (state == IncrementalHttpParser.State.ERROR) {
+                sendErrorResponse(clientChannel, parser.getStatus());
+            }
+        }
+        return connection.writes.isEmpty();
+    }
 
+
+    /**
+     * Continues writing a connection's responses once the socket takes more, then answers the requests
+     * that queued up meanwhile.
+     */
     void handleWriteKey(SelectionKey key) throws IOException {
-        SocketChannel clientSocket = (SocketChannel) key.channel();
-        ByteBuffer responseBuffer = (ByteBuffer) key.attachment();
+        Connection connection = (Connection) key.attachment();
         try {
-            clientSocket.write(responseBuffer);
-            if (responseBuffer.remaining() == 0) {
-                clientSocket.close();
-            } else {
-                // Not all data has been written, register for write interest again
-                clientSocket.register(selector, SelectionKey.OP_WRITE, responseBuffer);
+            if (flush(key, connection) && key.isValid()) {
+                resumeReading(key, connection);
             }
-        } catch (IOException e) {
-            // Handle error while writing
-            clientSocket.close();
+        } finally {
+            updateTimeout(key, connection);
         }
     }
 
@@ -166,14 +516,41 @@ public class MiniHttpServer {
         ServerSocketChannel serverSocket = (ServerSocketChannel) key.channel();
         SocketChannel client = serverSocket.accept();
         client.configureBlocking(false);
-        client.register(selector, SelectionKey.OP_READ, null);
+        Connection connection = new Connection();
+        connection.timeout = new ConnectionTimeout(wheel, config, phase -> {
+            connection.parser.reset();
+            connection.release(pool);
+            closeClientSocket(client);
+        });
+        updateTimeout(client.register(selector, SelectionKey.OP_READ, connection), connection);
+    }
+
+    /**
+     * Moves the connection's timeout to what it waits for now, nothing while its handler runs.
+     */
+    private void updateTimeout(SelectionKey key, Connection connection) {
+        if (!key.isValid() || !key.channel().isOpen()) {
+            connection.timeout.cancel();
+        } else if (!connection.writes.isEmpty()) {
+            connection.timeout.update(ConnectionTimeout.Phase.WRITE);
+        } else if (key.interestOps() == 0) {
+            connection.timeout.update(null);
+        } else if (connection.parser.isReadingBody()) {
+            connection.timeout.update(ConnectionTimeout.Phase.BODY);
+        } else if (connection.parser.isInProgress()) {
+            connection.timeout.update(ConnectionTimeout.Phase.HEADERS);
+        } else {
+            connection.timeout.update(ConnectionTimeout.Phase.IDLE);
+        }
     }
 
 
     public void start() {
+        router.freeze();
+        running = true;
         try {
-            while (true) {
-                selector.select();
+            while (running) {
+                selector.select(wheel.pollTimeoutMillis(System.nanoTime()));
                 Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
                 while (selectedKeys.hasNext()) {
                     SelectionKey key = selectedKeys.next();
@@ -191,32 +568,55 @@ public class MiniHttpServer {
                     } catch (IOException e) {
                         // Handle IO exception while handling a key
                         closeClientSocket((SocketChannel) key.channel());
-                        System.err.println("[+] Connection to client closed 209");
+                        LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[-] Connection to client closed: {}", e);
                     } catch (Exception e) {
                         // Handle URISyntaxException
-                        e.printStackTrace();
+                        LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Failed to handle a selected key: {}", e);
                     }
                 }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                wheel.advance(System.nanoTime());
             }
         } catch (IOException e) {
             // Handle IOException while selecting keys
-            e.printStackTrace();
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Selector failed: {}", e);
         } finally {
-            this.stop();
+            this.close();
         }
     }
 
+    /**
+     * Stops the server. When {@link #start()} is running, its loop closes everything on its way out.
+     */
     public void stop() {
+        if (running) {
+            running = false;
+            selector.wakeup();
+        } else if (selector.isOpen()) {
+            close();
+        }
+    }
+
+    private void close() {
         try {
             for (SelectionKey key : selector.keys()) {
-                closeClientSocket((SocketChannel) key.channel());
+                if (key.channel() instanceof SocketChannel client) {
+                    closeClientSocket(client);
+                    ((Connection) key.attachment()).release(pool);
+                }
             }
             selector.close();
             serverSocketChannel.close();
-            executor.shutdown();
-            System.err.println("[+] Closing Server");
+            if (executor != null) {
+                executor.shutdown();
+            }
+            router.close();
+            LogWrapper.log(LogWrapper.LogLevel.INFO, "[+] Closing Server");
         } catch (IOException e) {
-            e.printStackTrace();
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Failed to close the server: {}", e);
         }
     }
 
@@ -227,4 +627,42 @@ public class MiniHttpServer {
             // Handle if any error occurs while closing the channel
         }
     }
-}
\ No newline at end of file
+
+    private static class Connection {
+        final IncrementalHttpParser parser = new IncrementalHttpParser();
+        ConnectionTimeout timeout;
+        // Bytes that arrived after a request whose handler is still running or whose response is still
+        // being written
+        ByteBuffer pending;
+        // Response heads and entities as ByteBuffers, file bodies as FileRegions, streamed bodies as
+        // ChunkEncoders, not written yet, in send order
+        final ArrayDeque<Object> writes = new ArrayDeque<>();
+        // The queued buffers that came from the pool, in the same order, released once written
+        final ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+        // The chunk of the streamed body at the head of the queue that is being written
+        ByteBuffer chunk;
+        boolean keepAlive = true;
+
+        /**
+         * Drops whatever is still queued, once the connection is closed.
+         */
+        void release(BufferPool pool) {
+            for (Object item : writes) {
+                if (item instanceof FileRegion region) {
+                    region.close();
+                } else if (item instanceof ChunkEncoder body) {
+                    body.close();
+                }
+            }
+            writes.clear();
+            if (chunk != null) {
+                pool.release(chunk);
+                chunk = null;
+            }
+            for (ByteBuffer buffer : pooled) {
+                pool.release(buffer);
+            }
+            pooled.clear();
+        }
+    }
+}
@@ -3,151 +3,551 @@ package com.minihttp.server.core;
 
 import com.minihttp.LogWrapper.LogWrapper;
 import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.AsyncHttpHandler.AsyncHttpHandler;
 import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.handlers.ResponseCache.CachePolicy;
+import com.minihttp.handlers.ResponseCache.ResponseCache;
 import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
 import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.ChunkEncoder;
+import com.minihttp.http.HttpResponse.FileRegion;
 import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
 import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.metrics.ServerMetrics.MetricsHandler;
+import com.minihttp.metrics.ServerMetrics.ServerMetrics;
+import com.minihttp.routing.Router.RouteMatch;
 import com.minihttp.routing.Router.Router;
-import com.minihttp.util.Pair.Pair;
+import com.minihttp.util.BufferPool.BufferPool;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
-class EventLoop implements Runnable {
-    final AtomicReference<Selector> selectorRef = new AtomicReference<>();
-
-    public EventLoop() throws IOException {
-        selectorRef.set(Selector.open());
-    }
-
-    @Override
-    public void run() {
-        Selector selector = selectorRef.get();
-        try {
-            while (!Thread.interrupted()) {
-                selector.select();
-                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                while (iterator.hasNext()) {
-                    SelectionKey selectionKey = iterator.next();
-                    ((Runnable) selectionKey.attachment()).run();
-                    iterator.remove();
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-}
-
 public class MiniServer {
     static public Router router;
+    // Null when every worker accepts on its own listener
     private final EventLoop mainAcceptor;
     private final EventLoop[] workers;
     private final ExecutorService pool;
-    private final ServerSocketChannel serverSocketChannel;
+    private final ServerSocketChannel[] listeners;
+    private final int port;
+    private final ServerConfig config;
+    private final ExecutorService handlerExecutor;
+    private final BufferPool bufferPool = new BufferPool();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final ResponseCompressor compressor;
+    private final AdmissionController admission;
 
 
     public MiniServer() throws IOException {
+        this(new ServerConfig.Create().build());
+    }
+
+    public MiniServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.compressor = new ResponseCompressor(config.getCompressionThreshold(), config.getCompressionLevel());
+        this.admission = new AdmissionController(config);
         router = new Router();
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.bind(new InetSocketAddress(8090));
-        int cpus = Runtime.getRuntime().availableProcessors() * 2;
-        workers = new EventLoop[cpus - 1];
-        for (int i = 0; i < cpus - 1; i++) {
+        workers = new EventLoop[config.getWorkerThreads()];
+        for (int i = 0; i < workers.length; i++) {
             workers[i] = new EventLoop();
         }
-        mainAcceptor = new EventLoop();
-        pool = Executors.newFixedThreadPool(cpus);
-        serverSocketChannel.register(mainAcceptor.selectorRef.get(), SelectionKey.OP_ACCEPT, new Acceptor());
+        boolean reusePort = config.getListenerMode() == ListenerMode.REUSE_PORT;
+        if (reusePort && !supportsReusePort()) {
+            LogWrapper.log(LogWrapper.LogLevel.WARNING, "[-] SO_REUSEPORT is not supported, falling back to {}",
+                    ListenerMode.ACCEPTOR);
+            reusePort = false;
+        }
+        if (reusePort) {
+            listeners = new ServerSocketChannel[workers.length];
+            int bindPort = config.getPort();
+            for (int i = 0; i < workers.length; i++) {
+                listeners[i] = openListener(bindPort, true);
+                // The others share the port the system picked for the first one
+                bindPort = ((InetSocketAddress) listeners[i].getLocalAddress()).getPort();
+                listeners[i].register(workers[i].selectorRef.get(), SelectionKey.OP_ACCEPT,
+                        new Acceptor(listeners[i], workers[i]));
+            }
+            mainAcceptor = null;
+        } else {
+            listeners = new ServerSocketChannel[]{openListener(config.getPort(), false)};
+            mainAcceptor = new EventLoop();
+            listeners[0].register(mainAcceptor.selectorRef.get(), SelectionKey.OP_ACCEPT,
+                    new Acceptor(listeners[0], null));
+        }
+        port = ((InetSocketAddress) listeners[0].getLocalAddress()).getPort();
+        pool = Executors.newFixedThreadPool(workers.length + (mainAcceptor == null ? 0 : 1));
+        handlerExecutor = config.getDispatchMode().newExecutor(config.getHandlerThreads());
+        registerGauges();
+        if (config.getMetricsPath() != null) {
+            router.add(config.getMetricsPath(), HttpMethod.GET, new MetricsHandler(metrics));
+        }
+    }
+
+    private ServerSocketChannel openListener(int bindPort, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            // Accepted sockets inherit it, and it has to be set before the handshake to affect the window scale
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        channel.bind(new InetSocketAddress(bindPort), config.getBacklog());
+        return channel;
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private void registerGauges() {
+        for (int i = 0; i < workers.length; i++) {
+            EventLoop worker = workers[i];
+            String labels = "loop=\"" + i + "\"";
+            metrics.register("open_connections", "gauge", "Open connections per event loop.", labels,
+                    worker.connections::get);
+            metrics.register("selector_iterations_total", "counter", "Selector wake-ups per event loop.", labels,
+                    () -> worker.iterations);
+        }
+        for (ConnectionTimeout.Phase phase : ConnectionTimeout.Phase.values()) {
+            metrics.register("connection_timeouts_total", "counter", "Connections closed by a timeout.",
+                    "phase=\"" + phase.name().toLowerCase() + "\"", () -> {
+                        long total = 0;
+                        for (EventLoop worker : workers) {
+                            total += worker.timeouts[phase.ordinal()].sum();
+                        }
+                        return total;
+                    });
+        }
+        metrics.register("requests_shed_total", "counter", "Connections and requests answered with 503 by admission control.",
+                "reason=\"connections\"", admission.shedConnections::sum);
+        metrics.register("requests_shed_total", "counter", "Connections and requests answered with 503 by admission control.",
+                "reason=\"concurrency\"", admission.shedRequests::sum);
+        metrics.register("requests_in_flight", "gauge", "Requests dispatched whose handler has not returned yet.", "",
+                admission::inFlight);
+        if (config.getMaxInFlight() > 0 || config.getAdaptiveLatencyTargetMillis() > 0) {
+            metrics.register("concurrency_limit", "gauge", "Requests admitted at once before shedding.", "",
+                    admission::limit);
+        }
+        metrics.register("buffer_pool_allocated_bytes", "gauge", "Direct memory allocated by the buffer pool.", "",
+                bufferPool::getAllocatedBytes);
+        metrics.register("buffer_pool_outstanding_buffers", "gauge", "Pooled buffers currently acquired.", "",
+                bufferPool::getOutstandingBuffers);
+    }
+
+    /**
+     * @return the port the server listens on, the one the system picked if {@link ServerConfig#getPort()} is 0.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the metrics this server records, also served on {@link ServerConfig#getMetricsPath()}.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
     public void addRoute(String uri, HttpMethod method, HttpHandler handler) throws URISyntaxException {
         this.router.add(uri, method, handler);
     }
 
+    /**
+     * Adds a GET route whose responses are cached as {@code cache} describes.
+     */
+    public void addRoute(String uri, HttpMethod method, HttpHandler handler, CachePolicy cache) throws URISyntaxException {
+        router.add(uri, method, handler, cache);
+    }
+
+    public void addAsyncRoute(String uri, HttpMethod method, AsyncHttpHandler handler) throws URISyntaxException {
+        router.add(uri, method, handler);
+    }
+
+    public void addStaticRoute(String prefix, Path directory) throws IOException {
+        router.addStatic(prefix, directory);
+    }
+
+    public void addStaticRoute(String prefix, Path directory, long cacheBytes) throws IOException {
+        router.addStatic(prefix, directory, cacheBytes);
+    }
+
 
     public void start() {
-        pool.submit(mainAcceptor);
+        router.freeze();
+        if (mainAcceptor != null) {
+            pool.submit(mainAcceptor);
+        }
         for (EventLoop ev : workers) {
             pool.submit(ev);
         }
     }
 
+    /**
+     * Interrupts the event loops, waits for them to exit and closes the listener and every connection.
+     */
+    public void stop() {
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                LogWrapper.log(LogWrapper.LogLevel.WARNING, "[-] Event loops did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (mainAcceptor != null) {
+            mainAcceptor.close();
+        }
+        for (EventLoop ev : workers) {
+            ev.close();
+        }
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
+        router.close();
+    }
+
+    /**
+     * Accepts every pending connection on each OP_ACCEPT. On the shared acceptor loop each one is handed to
+     * a worker loop, which registers it with its own selector on its own thread; a worker with a listener
+     * of its own registers them right away.
+     */
     class Acceptor implements Runnable {
+        private final ServerSocketChannel listener;
+        // The worker owning the listener, null for the shared acceptor
+        private final EventLoop home;
+        // Only used on the acceptor loop
+        private int next;
+
+        Acceptor(ServerSocketChannel listener, EventLoop home) {
+            this.listener = listener;
+            this.home = home;
+        }
 
         @Override
         public void run() {
             try {
-                SocketChannel socketChannel = serverSocketChannel.accept();
-
-                if (socketChannel != null) {
-                    int workerIdx = socketChannel.hashCode() % workers.length;
+                SocketChannel socketChannel;
+                while ((socketChannel = listener.accept()) != null) {
+                    if (!admission.admitConnection(openConnections())) {
+                        refuse(socketChannel);
+                        continue;
+                    }
+                    if (home != null) {
+                        home.connections.incrementAndGet();
+                        register(home, socketChannel);
+                        continue;
+                    }
+                    int workerIdx = config.getConnectionBalancing().select(workers, next);
+                    next = workerIdx + 1;
                     EventLoop worker = workers[workerIdx];
-                    new ReaderWriter(worker, socketChannel, router);
+                    // Counted right away, so the next pick already sees it
+                    worker.connections.incrementAndGet();
+                    SocketChannel accepted = socketChannel;
+                    worker.execute(() -> register(worker, accepted));
                 }
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+            }
+        }
+
+        private void register(EventLoop worker, SocketChannel socketChannel) {
+            try {
+                if (config.isTcpNoDelay()) {
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                if (config.getSendBufferSize() > 0) {
+                    socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+                }
+                new ReaderWriter(worker, socketChannel, router, config, handlerExecutor, bufferPool, metrics,
+                        compressor, admission);
+            } catch (IOException e) {
+                LogWrapper.log(LogWrapper.LogLevel.WARNING, "[-] Could not register connection: {}", e.getMessage());
+                worker.connections.decrementAndGet();
+                try {
+                    socketChannel.close();
+                } catch (IOException ignored) {
+                    // Already failing
+                }
+            }
+        }
+
+        private int openConnections() {
+            int open = 0;
+            for (EventLoop worker : workers) {
+                open += worker.connections.get();
+            }
+            return open;
+        }
+
+        /**
+         * Answers a connection over the limit with the shared 503 and closes it, without reading the
+         * request. The send buffer of a new socket is empty, so the single non-blocking write fits.
+         */
+        private void refuse(SocketChannel socketChannel) {
+            metrics.recordStatus(HttpStatus.SERVICE_UNAVAILABLE.getCode());
+            try (socketChannel) {
+                socketChannel.configureBlocking(false);
+                socketChannel.write(admission.rejection().preEncodedBuffers(false));
+                socketChannel.shutdownOutput();
+            } catch (IOException e) {
+                LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[-] Could not refuse connection: {}", e.getMessage());
             }
         }
     }
 }
 
-class ReaderWriter implements Runnable {
+class ReaderWriter implements EventLoop.Connection {
     private final SocketChannel socketChannel;
     private final SelectionKey key;
     private final Writer writer;
-    private final ByteBuffer input = ByteBuffer.allocate(1024);
+    private final BufferPool bufferPool;
+    private final ServerMetrics metrics;
+    private final ResponseCompressor compressor;
+    // Pooled read buffer, only held while it has unparsed bytes so idle connections cost no buffer
+    private ByteBuffer input;
+    private static final int MAX_PIPELINED_RESPONSES = 64;
+    private final IncrementalHttpParser parser;
+    private final ServerConfig config;
+    private final EventLoop eventLoop;
+    private final ExecutorService handlerExecutor;
+    // Requests in arrival order whose responses have not been queued for writing yet
+    private final ArrayDeque<Exchange> inFlight = new ArrayDeque<>();
+    private final RouteMatch route = new RouteMatch();
+    private boolean closing = false;
+    private int requestsServed = 0;
+    // Time spent parsing the request being read so far, it may take several reads
+    private long parseNanos;
+    private final ConnectionTimeout timeout;
+    private final AdmissionController admission;
     Router router = null;
-    ReaderWriter(EventLoop ev, SocketChannel socketChannel, Router router) throws IOException, InterruptedException {
+    ReaderWriter(EventLoop ev, SocketChannel socketChannel, Router router, ServerConfig config,
+                 ExecutorService handlerExecutor, BufferPool bufferPool, ServerMetrics metrics,
+                 ResponseCompressor compressor, AdmissionController admission) throws IOException {
         this.router = router;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+        this.compressor = compressor;
+        this.admission = admission;
+        this.config = config;
+        this.parser = new IncrementalHttpParser(IncrementalHttpParser.DEFAULT_MAX_HEADER_SIZE,
+                config.getMaxBodySize(), config.getBodySpillThreshold());
+        this.eventLoop = ev;
+        this.timeout = new ConnectionTimeout(ev.wheel, config, this::onTimeout);
+        this.handlerExecutor = handlerExecutor;
         this.writer = new Writer();
         this.socketChannel = socketChannel;
         socketChannel.configureBlocking(false);
-        ev.selectorRef.get().wakeup();
-        key = socketChannel.register(ev.selectorRef.get(), 0);
-        key.attach(this);
-        key.interestOps(SelectionKey.OP_READ);
-        key.selector().wakeup();
+        // Constructed on the loop's own thread, so registering cannot race with its select
+        key = socketChannel.register(ev.selectorRef.get(), SelectionKey.OP_READ, this);
+        updateTimeout();
     }
 
-    public Pair<HttpStatus, Pair<Boolean, HttpResponse>> requestHandler(String reqData) {
-        Pair<HttpStatus, HttpRequest> req_status_handler = HttpRequest.Create.processHttpRequest(reqData);
-        HttpRequest req = req_status_handler.getValue();
-        Boolean isAlive = isKeepAliveRequested(req);
-        if (req_status_handler.getKey() != HttpStatus.OK) {
-            return new Pair<>(req_status_handler.getKey(), new Pair<>(isAlive, null));
+    /**
+     * Moves the connection's timeout to the phase it is in now. Called on the loop after every read,
+     * flush and completed handler. There is no deadline while a handler runs.
+     */
+    void updateTimeout() {
+        if (!socketChannel.isOpen()) {
+            timeout.cancel();
+        } else if (writer.pendingResponses() > 0) {
+            timeout.update(ConnectionTimeout.Phase.WRITE);
+        } else if (!inFlight.isEmpty()) {
+            timeout.update(null);
+        } else if (parser.isReadingBody()) {
+            timeout.update(ConnectionTimeout.Phase.BODY);
+        } else if (parser.isInProgress()) {
+            timeout.update(ConnectionTimeout.Phase.HEADERS);
+        } else {
+            timeout.update(ConnectionTimeout.Phase.IDLE);
         }
-        Pair<PathParameters, HttpHandler> xv = this.router.find(req.getURI(), req.getHttpMethod());
-        if (xv != null) {
+    }
 
-            HttpHandler handler = xv.getValue();
-            PathParameters kv = xv.getKey();
-            try {
-                HttpResponse r = handler.handle(req, kv);
-                return new Pair<>(req_status_handler.getKey(), new Pair<>(isAlive, r));
-            } catch (Exception e) {
-                LogWrapper.log(e.getMessage());
-                return new Pair<>(HttpStatus.INTERNAL_SERVER_ERROR, new Pair<>(isAlive, null));
+    private void onTimeout(ConnectionTimeout.Phase phase) {
+        eventLoop.timeouts[phase.ordinal()].increment();
+        LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[-] Closing connection after {} timeout", phase);
+        closeChannel();
+    }
+
+    /**
+     * Routes the request on the loop and runs its handler either inline or on the handler executor.
+     * Offloaded responses come back through {@link EventLoop#execute(Runnable)}, so the exchange and
+     * the socket are only ever touched by the loop thread. An {@link AsyncHttpHandler} is started on the
+     * loop whatever the dispatch mode, and its stage completes the exchange the same way. Requests over
+     * the concurrency limit get the shared 503 straight away, before routing.
+     */
+    private void dispatch(Exchange exchange) {
+        if (!admission.tryAcquire()) {
+            exchange.response = admission.rejection();
+            return;
+        }
+        HttpRequest req = exchange.request;
+        long start = System.nanoTime();
+        boolean matched = this.router.match(req.getURI(), req.getHttpMethod(), route);
+        metrics.route().record(System.nanoTime() - start);
+        if (!matched) {
+            admission.release(-1);
+            exchange.response = createErrorResponse(HttpStatus.NOT_FOUND);
+            return;
+        }
+        HttpHandler handler = route.getHandler();
+        PathParameters params = route.getPathParameters();
+        ServerMetrics.RouteStats stats = metrics.route(req.getHttpMethod(), route.getRoute());
+        stats.recordRequest();
+        if (handler instanceof ResponseCache cache) {
+            // A hit is sent from the loop as it is, even when handlers run elsewhere
+            String key = cache.key(req);
+            HttpResponse hit = cache.lookup(key);
+            if (hit != null) {
+                admission.release(-1);
+                exchange.response = hit;
+                return;
             }
-        } else {
-            return new Pair<>(HttpStatus.NOT_FOUND, new Pair<>(isAlive, null));
+            // A miss loads with the key it was looked up by
+            runHandler(exchange, (r, p) -> cache.load(key, r, p), params, stats, start);
+            return;
+        }
+        runHandler(exchange, handler, params, stats, start);
+    }
+
+    /**
+     * Runs the routed handler of an admitted request, for {@link #dispatch(Exchange)}.
+     */
+    private void runHandler(Exchange exchange, HttpHandler handler, PathParameters params,
+                            ServerMetrics.RouteStats stats, long start) {
+        HttpRequest req = exchange.request;
+        if (handler instanceof AsyncHttpHandler async) {
+            long handleStart = System.nanoTime();
+            AsyncHttpHandler.invoke(async, req, params).whenComplete((r, e) -> {
+                long now = System.nanoTime();
+                stats.handle().record(now - handleStart);
+                admission.release(now - start);
+                HttpResponse response = r;
+                if (e != null || r == null) {
+                    LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Async handler failed: {}", e);
+                    response = createErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+                }
+                HttpResponse completed = response;
+                ByteBuffer[] encoded = encodeOffloaded(exchange, completed);
+                eventLoop.execute(() -> complete(exchange, completed, encoded));
+            });
+            return;
+        }
+        if (handlerExecutor == null) {
+            exchange.response = invoke(handler, req, params, stats);
+            admission.release(System.nanoTime() - start);
+            return;
+        }
+        try {
+            handlerExecutor.execute(() -> {
+                HttpResponse r = invoke(handler, req, params, stats);
+                admission.release(System.nanoTime() - start);
+                ByteBuffer[] encoded = encodeOffloaded(exchange, r);
+                eventLoop.execute(() -> complete(exchange, r, encoded));
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release(-1);
+            exchange.response = admission.rejection();
+        }
+    }
+
+    private HttpResponse invoke(HttpHandler handler, HttpRequest req, PathParameters params,
+                                ServerMetrics.RouteStats stats) {
+        long start = System.nanoTime();
+        try {
+            HttpResponse r = handler.handle(req, params);
+            return r != null ? r : createErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (Exception e) {
+            LogWrapper.log(e.getMessage());
+            return createErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            stats.handle().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Encodes the response of an offloaded handler on the thread that ran it, so that serializing a JSON
+     * entity and compressing the body happen there rather than on the event loop, and while the handler
+     * is known to be done with the value. Responses of inline handlers are encoded by
+     * {@link #drainCompleted()}.
+     *
+     * @return pooled buffers the loop sends as they are, or null to leave the response to the loop.
+     */
+    private ByteBuffer[] encodeOffloaded(Exchange exchange, HttpResponse response) {
+        if (response.isPreEncoded()) {
+            return null;
+        }
+        try {
+            return compressor.encode(response, exchange.request.getHeader("accept-encoding"), exchange.keepAlive,
+                    bufferPool);
+        } catch (RuntimeException e) {
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Could not encode response: {}", e);
+            return null;
+        }
+    }
+
+    private void complete(Exchange exchange, HttpResponse response, ByteBuffer[] encoded) {
+        exchange.response = response;
+        exchange.encoded = encoded;
+        if (!socketChannel.isOpen()) {
+            discard(exchange);
+            return;
+        }
+        try {
+            drainCompleted();
+        } catch (RuntimeException e) {
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Closing connection after an unexpected error: {}", e);
+            closeChannel();
+        }
+    }
+
+    /**
+     * Drops the request body once the handler is done with it, deleting the temp file of a large one.
+     */
+    private static void closeBody(Exchange exchange) {
+        if (exchange.request != null) {
+            exchange.request.getRequestBody().close();
+        }
+    }
+
+    /**
+     * Drops a completed exchange that will not be sent, because its connection closed.
+     */
+    private void discard(Exchange exchange) {
+        closeBody(exchange);
+        if (exchange.encoded != null) {
+            for (ByteBuffer b : exchange.encoded) {
+                bufferPool.release(b);
+            }
+            exchange.encoded = null;
         }
     }
 
@@ -159,88 +559,334 @@ class ReaderWriter implements Runnable {
     }
 
     private boolean isKeepAliveRequested(HttpRequest req) {
+        // HTTP/1.1 connections are persistent unless the client asks for "Connection: close".
         String connectionHeaders = req.getHeader("connection");
-        return (connectionHeaders != null) && Stream.of(connectionHeaders.split(";")).anyMatch(x -> x.equalsIgnoreCase("Keep-Alive"));
+        return (connectionHeaders == null) || Stream.of(connectionHeaders.split("[,;]")).noneMatch(x -> x.trim().equalsIgnoreCase("close"));
     }
 
     @Override
     public void run() {
         try {
             if (socketChannel.isConnected()) {
-                input.clear();
+                if (input == null) {
+                    input = bufferPool.acquireBuffer();
+                }
                 int bytesRead = socketChannel.read(input);
                 if (bytesRead == -1) {
                     closeChannel();
                     return;
                 }
-                input.flip();
-                String message = StandardCharsets.UTF_8.decode(input).toString();
-                Pair<HttpStatus, Pair<Boolean, HttpResponse>> response;
-                try {
-                    response = requestHandler(message);
-                } catch (Exception e) {
-                    LogWrapper.log("[-] " + e.getMessage());
-                    throw new RuntimeException(e);
-                }
-
-                ByteBuffer responseBuffer;
-                if (response.getValue().getValue() == null) {
-                    responseBuffer = StandardCharsets.UTF_8.encode(createErrorResponse(response.getKey()).toString());
-                } else {
-                    responseBuffer = StandardCharsets.UTF_8.encode(response.getValue().getValue().toString());
-                }
-                writer.prepareWrite(responseBuffer);
+                timeout.onRead(bytesRead);
+                processInput();
+                releaseInputIfEmpty();
             }
         } catch (IOException e) {
             writer.handleError(e);
         }
     }
 
-    void closeChannel() {
+    /**
+     * Dispatches every complete request buffered in {@code input}, in order. A trailing partial request
+     * is kept by the parser until more bytes arrive.
+     */
+    private void processInput() {
+        input.flip();
+        while (!closing && inFlight.size() < MAX_PIPELINED_RESPONSES) {
+            long start = System.nanoTime();
+            IncrementalHttpParser.State state = parser.parse(input);
+            parseNanos += System.nanoTime() - start;
+            if (state != IncrementalHttpParser.State.COMPLETE && state != IncrementalHttpParser.State.ERROR) {
+                // Partial request, keep the parser state and wait for the rest of it.
+                break;
+            }
+            metrics.parse().record(parseNanos);
+            parseNanos = 0;
+
+            Exchange exchange;
+            if (state == IncrementalHttpParser.State.ERROR) {
+                exchange = new Exchange(null, false);
+                exchange.response = createErrorResponse(parser.getStatus());
+            } else {
+                HttpRequest req = parser.getRequest();
+                exchange = new Exchange(req, isKeepAliveRequested(req) && ++requestsServed < config.getMaxRequestsPerConnection());
+            }
+            parser.reset();
+            inFlight.add(exchange);
+            closing = !exchange.keepAlive;
+            if (exchange.response == null) {
+                dispatch(exchange);
+            }
+        }
+        input.compact();
+        drainCompleted();
+    }
+
+    /**
+     * Queues the responses at the head of {@link #inFlight} that are ready, keeping request order, and
+     * flushes them together.
+     */
+    private void drainCompleted() {
+        while (!inFlight.isEmpty() && inFlight.peekFirst().response != null) {
+            Exchange exchange = inFlight.pollFirst();
+            closeBody(exchange);
+            boolean keepAlive = exchange.keepAlive;
+            HttpResponse httpResponse = exchange.response;
+            metrics.recordStatus(httpResponse.getStatusCode());
+            if (httpResponse.isPreEncoded()) {
+                for (ByteBuffer part : httpResponse.preEncodedBuffers(keepAlive)) {
+                    writer.queue(part, keepAlive);
+                }
+                continue;
+            }
+            ByteBuffer[] encoded = exchange.encoded;
+            if (encoded == null) {
+                String acceptEncoding = exchange.request != null ? exchange.request.getHeader("accept-encoding") : null;
+                encoded = compressor.encode(httpResponse, acceptEncoding, keepAlive, bufferPool);
+            }
+            for (ByteBuffer part : encoded) {
+                writer.queuePooled(part, keepAlive);
+            }
+            if (httpResponse.getFileRegion() != null) {
+                writer.queue(httpResponse.getFileRegion());
+            } else if (httpResponse.getChunkedBody() != null) {
+                writer.queue(new ChunkEncoder(httpResponse.getChunkedBody()));
+            }
+        }
+        if (writer.pendingResponses() > 0) {
+            writer.flush();
+        } else {
+            resumeReading();
+        }
+        updateTimeout();
+    }
+
+    /**
+     * Called once nothing is left to write. Reads more requests unless the connection is closing or the
+     * pipeline is full, in which case it waits for the outstanding handlers.
+     */
+    private void resumeReading() {
+        if (closing || inFlight.size() >= MAX_PIPELINED_RESPONSES) {
+            key.interestOps(0);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        key.attach(this);
+        if (input != null && input.position() > 0) {
+            processInput();
+            releaseInputIfEmpty();
+        }
+    }
+
+    private void releaseInputIfEmpty() {
+        if (input != null && input.position() == 0) {
+            bufferPool.release(input);
+            input = null;
+        }
+    }
+
+    @Override
+    public void closeChannel() {
+        if (socketChannel.isOpen()) {
+            eventLoop.connections.decrementAndGet();
+        }
+        timeout.cancel();
         try {
             socketChannel.close();
             key.cancel();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        writer.release();
+        if (input != null) {
+            bufferPool.release(input);
+            input = null;
+        }
+        // Bodies still with an offloaded handler are closed when it completes
+        for (Exchange exchange : inFlight) {
+            if (exchange.response != null) {
+                discard(exchange);
+            }
+        }
+        parser.reset();
     }
 
-    class Writer implements Runnable {
-        private ByteBuffer response = null;
+    class Writer implements EventLoop.Connection {
+        // Chunks sent per flush before yielding to the other connections on the loop
+        private static final int MAX_CHUNKS_PER_FLUSH = 16;
+        // Response headers and entities as ByteBuffers, file bodies as FileRegions, streamed bodies as
+        // ChunkEncoders, in send order
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        // The queued buffers that came from the pool, in the same order, released once written
+        private final ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+        // The chunk of the streamed body at the head of the queue that is being written
+        private ByteBuffer chunk;
+        private ByteBuffer[] batch = new ByteBuffer[8];
+        private boolean keepAlive = true;
 
         @Override
         public void run() {
+            flush();
+            updateTimeout();
+        }
+
+        int pendingResponses() {
+            return pending.size();
+        }
+
+        void queue(ByteBuffer response, boolean keepAlive) {
+            pending.add(response);
+            this.keepAlive = keepAlive;
+        }
+
+        void queuePooled(ByteBuffer response, boolean keepAlive) {
+            queue(response, keepAlive);
+            pooled.add(response);
+        }
+
+        void queue(FileRegion body) {
+            pending.add(body);
+        }
+
+        void queue(ChunkEncoder body) {
+            pending.add(body);
+        }
+
+        /**
+         * Writes queued buffers with gathering writes and file bodies with transferTo, then either waits
+         * for OP_WRITE, closes the connection, or goes back to reading on the same loop.
+         */
+        void flush() {
             try {
-                int bytesWritten = socketChannel.write(response);
-                if (bytesWritten == -1) {
-                    // An error occurred, handle it
-                    handleError(new IOException("Error while writing to socket"));
-                } else if (response.hasRemaining()) {
+                long start = System.nanoTime();
+                while (!pending.isEmpty() && writePending()) {
+                    // Keep going while the socket accepts everything we hand it
+                }
+                metrics.write().record(System.nanoTime() - start);
+
+                if (!pending.isEmpty()) {
                     // There are remaining bytes to be written, register the channel for write readiness
                     key.interestOps(SelectionKey.OP_WRITE);
-                    key.selector().wakeup();
                     key.attach(this);
-                } else {
-                    // All bytes are written, move to the next state
+                } else if (!keepAlive) {
                     closeChannel();
+                } else {
+                    // All bytes are written, go back to reading on the same loop
+                    resumeReading();
                 }
             } catch (IOException e) {
                 handleError(e);
             }
         }
 
-        void prepareWrite(ByteBuffer response) {
-            key.interestOps(SelectionKey.OP_WRITE);
-            key.selector().wakeup();
-            key.attach(this);
-            this.response = response;
+        /**
+         * Writes the run of items at the head of the queue.
+         *
+         * @return false once the socket send buffer is full.
+         */
+        private boolean writePending() throws IOException {
+            if (pending.peekFirst() instanceof ChunkEncoder body) {
+                return writeChunks(body);
+            }
+            if (pending.peekFirst() instanceof FileRegion region) {
+                region.transferTo(socketChannel);
+                if (!region.isDone()) {
+                    return false;
+                }
+                pending.pollFirst();
+                return true;
+            }
+
+            int count = 0;
+            for (Object item : pending) {
+                if (!(item instanceof ByteBuffer buffer)) {
+                    break;
+                }
+                if (count == batch.length) {
+                    batch = Arrays.copyOf(batch, batch.length * 2);
+                }
+                batch[count++] = buffer;
+            }
+            socketChannel.write(batch, 0, count);
+            Arrays.fill(batch, 0, count, null);
+            while (pending.peekFirst() instanceof ByteBuffer buffer && !buffer.hasRemaining()) {
+                pending.pollFirst();
+                if (pooled.peekFirst() == buffer) {
+                    bufferPool.release(pooled.pollFirst());
+                }
+            }
+            return !(pending.peekFirst() instanceof ByteBuffer);
+        }
+
+        /**
+         * Produces and writes chunks of a streamed body only while the socket takes them, so a slow
+         * client holds back the producer and at most one chunk is buffered.
+         *
+         * @return false once the socket send buffer is full or this flush has sent its share of chunks.
+         */
+        private boolean writeChunks(ChunkEncoder body) throws IOException {
+            for (int i = 0; i < MAX_CHUNKS_PER_FLUSH; i++) {
+                if (chunk == null) {
+                    if (body.isDone()) {
+                        pending.pollFirst();
+                        return true;
+                    }
+                    chunk = body.nextChunk(bufferPool);
+                }
+                socketChannel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    return false;
+                }
+                bufferPool.release(chunk);
+                chunk = null;
+            }
+            if (body.isDone()) {
+                pending.pollFirst();
+                return true;
+            }
+            return false;
         }
 
         void handleError(IOException e) {
             e.printStackTrace();
             closeChannel();
-            response = null;
+            release();
+        }
+
+        @Override
+        public void closeChannel() {
+            ReaderWriter.this.closeChannel();
+        }
+
+        void release() {
+            for (Object item : pending) {
+                if (item instanceof FileRegion region) {
+                    region.close();
+                } else if (item instanceof ChunkEncoder body) {
+                    body.close();
+                }
+            }
+            if (chunk != null) {
+                bufferPool.release(chunk);
+                chunk = null;
+            }
+            pending.clear();
+            for (ByteBuffer buffer : pooled) {
+                bufferPool.release(buffer);
+            }
+            pooled.clear();
         }
     }
-}
 
+    private static final class Exchange {
+        final HttpRequest request;
+        final boolean keepAlive;
+        HttpResponse response;
+        // The response as encoded by an offloaded handler's thread, or null if the loop encodes it
+        ByteBuffer[] encoded;
+
+        Exchange(HttpRequest request, boolean keepAlive) {
+            this.request = request;
+            this.keepAlive = keepAlive;
+        }
+    }
+}
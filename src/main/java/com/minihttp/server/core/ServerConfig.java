@@ -0,0 +1,447 @@
+package com.minihttp.server.core;
+
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
+
+/**
+ * Tunables for {@link MiniServer}. Instances are immutable, use {@link Create} to build one.
+ */
+public class ServerConfig {
+    public static final long BODY_RATE_GRACE_MILLIS = 5_000;
+
+    private final int maxRequestsPerConnection;
+    private final DispatchMode dispatchMode;
+    private final int handlerThreads;
+    private final String metricsPath;
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final long maxBodySize;
+    private final int bodySpillThreshold;
+    private final long idleTimeoutMillis;
+    private final long headerTimeoutMillis;
+    private final int minBodyRate;
+    private final long writeTimeoutMillis;
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final long adaptiveLatencyTargetMillis;
+    private final int retryAfterSeconds;
+    private final ConnectionBalancing connectionBalancing;
+    private final int port;
+    private final ListenerMode listenerMode;
+    private final int workerThreads;
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+
+    private ServerConfig(int maxRequestsPerConnection, DispatchMode dispatchMode, int handlerThreads,
+                         String metricsPath, int compressionThreshold, int compressionLevel,
+                         long maxBodySize, int bodySpillThreshold, long idleTimeoutMillis,
+                         long headerTimeoutMillis, int minBodyRate, long writeTimeoutMillis, int maxConnections,
+                         int maxInFlight, long adaptiveLatencyTargetMillis, int retryAfterSeconds,
+                         ConnectionBalancing connectionBalancing, int port, ListenerMode listenerMode,
+                         int workerThreads, int backlog, boolean tcpNoDelay, int receiveBufferSize,
+                         int sendBufferSize) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.dispatchMode = dispatchMode;
+        this.handlerThreads = handlerThreads;
+        this.metricsPath = metricsPath;
+        this.compressionThreshold = compressionThreshold;
+        this.compressionLevel = compressionLevel;
+        this.maxBodySize = maxBodySize;
+        this.bodySpillThreshold = bodySpillThreshold;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.headerTimeoutMillis = headerTimeoutMillis;
+        this.minBodyRate = minBodyRate;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.maxInFlight = maxInFlight;
+        this.adaptiveLatencyTargetMillis = adaptiveLatencyTargetMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.connectionBalancing = connectionBalancing;
+        this.port = port;
+        this.listenerMode = listenerMode;
+        this.workerThreads = workerThreads;
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @return how many requests a persistent connection may serve before the server closes it.
+     */
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * @return the size of the platform thread pool used by {@link DispatchMode#WORKER_POOL}.
+     */
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    /**
+     * @return the GET route serving metrics in the Prometheus text format, or null if it is not mounted.
+     */
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    /**
+     * @return the smallest response body, in characters, that is compressed for clients that accept it.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return the zlib level for compressed responses, 0 when compression is off.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return the largest request body accepted, in bytes. Larger ones are answered with 413.
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * @return the largest request body kept in memory, in bytes. Larger ones are written to a temp file.
+     */
+    public int getBodySpillThreshold() {
+        return bodySpillThreshold;
+    }
+
+    /**
+     * @return how long a persistent connection may wait for its next request, 0 for no limit.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @return how long a client has to send the request line and headers once it started a request, 0 for
+     * no limit.
+     */
+    public long getHeaderTimeoutMillis() {
+        return headerTimeoutMillis;
+    }
+
+    /**
+     * @return the slowest a request body may arrive, in bytes per second after a grace period of
+     * {@link #BODY_RATE_GRACE_MILLIS}, 0 for no limit.
+     */
+    public int getMinBodyRate() {
+        return minBodyRate;
+    }
+
+    /**
+     * @return how long a response may wait for the client to read any of it, 0 for no limit.
+     */
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * @return how many connections may be open at once, 0 for no limit. Connections over the limit are
+     * answered with 503 and closed as soon as they are accepted.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return how many requests may be dispatched and waiting for their handler at once, 0 for no limit.
+     * Requests over the limit are answered with 503 without being routed.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the handler latency the adaptive concurrency limit aims for, 0 when the limit is fixed.
+     */
+    public long getAdaptiveLatencyTargetMillis() {
+        return adaptiveLatencyTargetMillis;
+    }
+
+    /**
+     * @return the Retry-After sent with 503 responses to connections and requests that were shed.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public ConnectionBalancing getConnectionBalancing() {
+        return connectionBalancing;
+    }
+
+    /**
+     * @return the port to listen on, 0 for one picked by the system, see {@link MiniServer#getPort()}.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public ListenerMode getListenerMode() {
+        return listenerMode;
+    }
+
+    /**
+     * @return how many event loops serve connections.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return the length of the queue of connections waiting to be accepted, per listening socket, 0 for
+     * the JDK default of 50. The system caps it, at net.core.somaxconn on Linux.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return whether Nagle's algorithm is turned off on connections, so small responses are sent at once
+     * instead of waiting for the client's delayed ACK.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return SO_RCVBUF for connections in bytes, 0 to leave it to the system. Set on the listening socket,
+     * so the window scale is negotiated for it.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return SO_SNDBUF for connections in bytes, 0 to leave it to the system.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public static class Create {
+        private int maxRequestsPerConnection = 1000;
+        private DispatchMode dispatchMode = DispatchMode.INLINE;
+        private int handlerThreads = Runtime.getRuntime().availableProcessors() * 4;
+        private String metricsPath;
+        private int compressionThreshold = ResponseCompressor.DEFAULT_THRESHOLD;
+        private int compressionLevel = ResponseCompressor.DEFAULT_LEVEL;
+        private long maxBodySize = IncrementalHttpParser.DEFAULT_MAX_BODY_SIZE;
+        private int bodySpillThreshold = IncrementalHttpParser.DEFAULT_SPILL_THRESHOLD;
+        private long idleTimeoutMillis = 30_000;
+        private long headerTimeoutMillis = 10_000;
+        private int minBodyRate = 1024;
+        private long writeTimeoutMillis = 30_000;
+        private int maxConnections = 0;
+        private int maxInFlight = 0;
+        private long adaptiveLatencyTargetMillis = 0;
+        private int retryAfterSeconds = 1;
+        private ConnectionBalancing connectionBalancing = ConnectionBalancing.LEAST_CONNECTIONS;
+        private int port = 8090;
+        private ListenerMode listenerMode = ListenerMode.ACCEPTOR;
+        private int workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1);
+        private int backlog = 1024;
+        private boolean tcpNoDelay = true;
+        private int receiveBufferSize = 0;
+        private int sendBufferSize = 0;
+
+        public Create setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+            if (maxRequestsPerConnection < 1) {
+                throw new IllegalArgumentException("maxRequestsPerConnection must be positive");
+            }
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+            return this;
+        }
+
+        public Create setDispatchMode(DispatchMode dispatchMode) {
+            this.dispatchMode = dispatchMode;
+            return this;
+        }
+
+        public Create setHandlerThreads(int handlerThreads) {
+            if (handlerThreads < 1) {
+                throw new IllegalArgumentException("handlerThreads must be positive");
+            }
+            this.handlerThreads = handlerThreads;
+            return this;
+        }
+
+        /**
+         * Mounts the metrics route on {@code metricsPath}, e.g. "/metrics". It is not mounted by default, since
+         * it exposes route names and pool sizes, and it is added before any route of the application, so it
+         * takes precedence over one on the same path. The metrics are recorded either way, see
+         * {@link MiniServer#getMetrics()}.
+         */
+        public Create setMetricsPath(String metricsPath) {
+            this.metricsPath = metricsPath;
+            return this;
+        }
+
+        public Create setCompressionThreshold(int compressionThreshold) {
+            if (compressionThreshold < 0) {
+                throw new IllegalArgumentException("compressionThreshold must not be negative");
+            }
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * @param compressionLevel 1 (fastest) to 9 (smallest), or 0 to turn response compression off.
+         */
+        public Create setCompressionLevel(int compressionLevel) {
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+            }
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        public Create setMaxBodySize(long maxBodySize) {
+            if (maxBodySize < 0) {
+                throw new IllegalArgumentException("maxBodySize must not be negative");
+            }
+            this.maxBodySize = maxBodySize;
+            return this;
+        }
+
+        /**
+         * @param bodySpillThreshold 0 to write every request body to a temp file.
+         */
+        public Create setBodySpillThreshold(int bodySpillThreshold) {
+            if (bodySpillThreshold < 0) {
+                throw new IllegalArgumentException("bodySpillThreshold must not be negative");
+            }
+            this.bodySpillThreshold = bodySpillThreshold;
+            return this;
+        }
+
+        public Create setIdleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = requireNotNegative(idleTimeoutMillis, "idleTimeoutMillis");
+            return this;
+        }
+
+        public Create setHeaderTimeoutMillis(long headerTimeoutMillis) {
+            this.headerTimeoutMillis = requireNotNegative(headerTimeoutMillis, "headerTimeoutMillis");
+            return this;
+        }
+
+        /**
+         * @param minBodyRate bytes per second, 0 to let request bodies arrive as slowly as they like.
+         */
+        public Create setMinBodyRate(int minBodyRate) {
+            this.minBodyRate = (int) requireNotNegative(minBodyRate, "minBodyRate");
+            return this;
+        }
+
+        public Create setWriteTimeoutMillis(long writeTimeoutMillis) {
+            this.writeTimeoutMillis = requireNotNegative(writeTimeoutMillis, "writeTimeoutMillis");
+            return this;
+        }
+
+        public Create setMaxConnections(int maxConnections) {
+            this.maxConnections = (int) requireNotNegative(maxConnections, "maxConnections");
+            return this;
+        }
+
+        /**
+         * @param maxInFlight the fixed concurrency limit, or the ceiling of the adaptive one.
+         */
+        public Create setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = (int) requireNotNegative(maxInFlight, "maxInFlight");
+            return this;
+        }
+
+        /**
+         * Adapts the concurrency limit to keep handler latency, queueing included, around the target: the
+         * limit grows while requests finish in time and shrinks when they do not.
+         *
+         * @param adaptiveLatencyTargetMillis 0 to keep the limit fixed at {@code maxInFlight}.
+         */
+        public Create setAdaptiveLatencyTargetMillis(long adaptiveLatencyTargetMillis) {
+            this.adaptiveLatencyTargetMillis = requireNotNegative(adaptiveLatencyTargetMillis,
+                    "adaptiveLatencyTargetMillis");
+            return this;
+        }
+
+        public Create setRetryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = (int) requireNotNegative(retryAfterSeconds, "retryAfterSeconds");
+            return this;
+        }
+
+        public Create setConnectionBalancing(ConnectionBalancing connectionBalancing) {
+            this.connectionBalancing = connectionBalancing;
+            return this;
+        }
+
+        public Create setPort(int port) {
+            if (port < 0 || port > 0xFFFF) {
+                throw new IllegalArgumentException("port must be between 0 and 65535");
+            }
+            this.port = port;
+            return this;
+        }
+
+        public Create setListenerMode(ListenerMode listenerMode) {
+            this.listenerMode = listenerMode;
+            return this;
+        }
+
+        public Create setWorkerThreads(int workerThreads) {
+            if (workerThreads < 1) {
+                throw new IllegalArgumentException("workerThreads must be positive");
+            }
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Create setBacklog(int backlog) {
+            this.backlog = (int) requireNotNegative(backlog, "backlog");
+            return this;
+        }
+
+        public Create setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Create setReceiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = (int) requireNotNegative(receiveBufferSize, "receiveBufferSize");
+            return this;
+        }
+
+        public Create setSendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = (int) requireNotNegative(sendBufferSize, "sendBufferSize");
+            return this;
+        }
+
+        private static long requireNotNegative(long value, String name) {
+            if (value < 0) {
+                throw new IllegalArgumentException(name + " must not be negative");
+            }
+            return value;
+        }
+
+        public ServerConfig build() {
+            return new ServerConfig(maxRequestsPerConnection, dispatchMode, handlerThreads, metricsPath,
+                    compressionThreshold, compressionLevel, maxBodySize, bodySpillThreshold, idleTimeoutMillis,
+                    headerTimeoutMillis, minBodyRate, writeTimeoutMillis, maxConnections, maxInFlight,
+                    adaptiveLatencyTargetMillis, retryAfterSeconds, connectionBalancing, port, listenerMode,
+                    workerThreads, backlog, tcpNoDelay, receiveBufferSize, sendBufferSize);
+        }
+    }
+}
@@ -2,11 +2,17 @@ package com.minihttp.server.core;
 
 import com.minihttp.LogWrapper.LogWrapper;
 import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.AsyncHttpHandler.AsyncHttpHandler;
 import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.handlers.ResponseCache.CachePolicy;
 import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
 import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.ChunkEncoder;
 import com.minihttp.http.HttpResponse.HttpResponse;
+import com.minihttp.http.HttpResponse.ResponseCompressor;
 import com.minihttp.http.HttpStatus.HttpStatus;
+import com.minihttp.routing.Router.RouteMatch;
 import com.minihttp.routing.Router.Router;
 import com.minihttp.util.BufferPool.BufferPool;
 import com.minihttp.util.Pair.Pair;
@@ -19,7 +25,10 @@ import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -27,11 +36,16 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 public class Zzz {
+    private static final int MAX_PIPELINED_RESPONSES = 64;
     private final int port;
     private final AsynchronousChannelGroup channelGroup;
     private final ExecutorService executor;
     private final Router router;
+    private final ThreadLocal<RouteMatch> route = ThreadLocal.withInitial(RouteMatch::new);
     private final BufferPool bufferPool;
+    private final ResponseCompressor compressor = new ResponseCompressor();
+    // Idle, header, body and write timeouts, with ServerConfig's default durations
+    private final ServerConfig config = new ServerConfig.Create().build();
     private volatile boolean isRunning;
 
     public Zzz(int port) throws IOException {
@@ -40,7 +54,7 @@ public class Zzz {
         this.channelGroup = AsynchronousChannelGroup.withThreadPool(executor);
         router = new Router();
         bufferPool = new BufferPool();
-        LogWrapper.log("[+] Server on localhost:" + port);
+        LogWrapper.log(LogWrapper.LogLevel.INFO, "[+] Server on localhost:{}", port);
 
     }
 
@@ -48,6 +62,25 @@ public class Zzz {
         this.router.add(uri, method, handler);
     }
 
+    /**
+     * Adds a GET route whose responses are cached as {@code cache} describes.
+     */
+    public void addRoute(String uri, HttpMethod method, HttpHandler handler, CachePolicy cache) throws URISyntaxException {
+        this.router.add(uri, method, handler, cache);
+    }
+
+    public void addAsyncRoute(String uri, HttpMethod method, AsyncHttpHandler handler) throws URISyntaxException {
+        this.router.add(uri, method, handler);
+    }
+
+    public void addStaticRoute(String prefix, Path directory) throws IOException {
+        this.router.addStatic(prefix, directory);
+    }
+
+    public void addStaticRoute(String prefix, Path directory, long cacheBytes) throws IOException {
+        this.router.addStatic(prefix, directory, cacheBytes);
+    }
+
     private HttpResponse createErrorResponse(HttpStatus status) {
         return new HttpResponse.Create()
                 .setStatusCode(status.getCode())
@@ -56,8 +89,9 @@ public class Zzz {
     }
 
     private boolean isKeepAliveRequested(HttpRequest req) {
+        // HTTP/1.1 connections are persistent unless the client asks for "Connection: close".
         String connectionHeaders = req.getHeader("connection");
-        return (connectionHeaders != null) && Stream.of(connectionHeaders.split(";")).anyMatch(x -> x.equalsIgnoreCase("Keep-Alive"));
+        return (connectionHeaders == null) || Stream.of(connectionHeaders.split("[,;]")).noneMatch(x -> x.trim().equalsIgnoreCase("close"));
     }
 
     public void handleAccept(AsynchronousServerSocketChannel listener) {
@@ -66,7 +100,7 @@ public class Zzz {
             public void completed(AsynchronousSocketChannel clientChannel, Void attachment) {
                 if (isRunning) {
                     listener.accept(null, this);
-                    LogWrapper.log("[+] Accepted Connection");
+                    LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[+] Accepted Connection");
                     handleClient(clientChannel);
                 } else {
                     try {
@@ -88,25 +122,28 @@ public class Zzz {
         AsynchronousServerSocketChannel listener = AsynchronousServerSocketChannel.open(channelGroup);
         InetSocketAddress address = new InetSocketAddress("localhost", port);
         listener.bind(address);
+        router.freeze();
         isRunning = true;
         handleAccept(listener);
     }
 
-    public Pair<HttpStatus, Pair<Boolean, HttpResponse>> requestHandler(String reqData) {
-        Pair<HttpStatus, HttpRequest> req_status_handler = HttpRequest.Create.processHttpRequest(reqData);
-        HttpRequest req = req_status_handler.getValue();
+    public Pair<HttpStatus, Pair<Boolean, HttpResponse>> requestHandler(HttpRequest req) {
+        RouteMatch route = this.route.get();
+        return requestHandler(req, this.router.match(req.getURI(), req.getHttpMethod(), route) ? route : null);
+    }
+
+    /**
+     * @param route the match for {@code req}, or null if nothing matched.
+     */
+    private Pair<HttpStatus, Pair<Boolean, HttpResponse>> requestHandler(HttpRequest req, RouteMatch route) {
         Boolean isAlive = isKeepAliveRequested(req);
-        if (req_status_handler.getKey() != HttpStatus.OK) {
-            return new Pair<>(req_status_handler.getKey(), new Pair<>(isAlive, null));
-        }
-        Pair<PathParameters, HttpHandler> xv = this.router.find(req.getURI(), req.getHttpMethod());
-        if (xv != null) {
+        if (route != null) {
 
-            HttpHandler handler = xv.getValue();
-            PathParameters kv = xv.getKey();
+            HttpHandler handler = route.getHandler();
+            PathParameters kv = route.getPathParameters();
             try {
                 HttpResponse r = handler.handle(req, kv);
-                return new Pair<>(req_status_handler.getKey(), new Pair<>(isAlive, r));
+                return new Pair<>(HttpStatus.OK, new Pair<>(isAlive, r));
             } catch (Exception e) {
                 LogWrapper.log(e.getMessage());
                 return new Pair<>(HttpStatus.INTERNAL_SERVER_ERROR, new Pair<>(isAlive, null));
@@ -118,90 +155,226 @@ public class Zzz {
 
     private void handleClient(AsynchronousSocketChannel clientChannel) {
         ByteBuffer buffer = bufferPool.acquireBuffer();
-        handleRead(clientChannel, buffer);
+        handleRead(clientChannel, buffer, new Connection());
     }
 
-    private void handleRead(AsynchronousSocketChannel clientChannel, ByteBuffer buffer) {
-        clientChannel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+    private void handleRead(AsynchronousSocketChannel clientChannel, ByteBuffer buffer, Connection connection) {
+        buffer.clear();
+        clientChannel.read(buffer, connection.readTimeoutMillis(config), TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
 
             @Override
             public void completed(Integer bytesRead, Void attachment) {
-                if (bytesRead > 0) {
-                    buffer.flip();
-                    String message = StandardCharsets.UTF_8.decode(buffer).toString();
-                    Pair<HttpStatus, Pair<Boolean, HttpResponse>> response;
-                    try {
-                        response = requestHandler(message);
-                    } catch (Exception e) {
-                        LogWrapper.log("[-] " + e.getMessage());
-                        throw new RuntimeException(e);
-                    }
-
-                    ByteBuffer responseBuffer;
-                    if (response.getValue().getValue() == null) {
-                        responseBuffer = StandardCharsets.UTF_8.encode(createErrorResponse(response.getKey()).toString());
-                    } else {
-                        responseBuffer = StandardCharsets.UTF_8.encode(response.getValue().getValue().toString());
-                    }
-
-                    Boolean keepAlive = response.getValue().getKey();
-                    handleWrite(clientChannel, responseBuffer, keepAlive, buffer);
-                } else {
-                    // No more data to read, do not close the channel yet
-                    buffer.clear();
+                if (bytesRead < 0) {
+                    closeClient(clientChannel, buffer, connection);
+                    return;
                 }
+                connection.onRead(bytesRead);
+                buffer.flip();
+                processInput(clientChannel, buffer, connection);
             }
 
             @Override
             public void failed(Throwable exc, Void attachment) {
-                LogWrapper.log("Failed to read from client: " + exc.getMessage());
+                if (exc instanceof InterruptedByTimeoutException) {
+                    LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[-] Closing client after {} timeout", connection.phase());
+                } else {
+                    LogWrapper.log("Failed to read from client: " + exc.getMessage());
+                }
+                closeClient(clientChannel, buffer, connection);
+            }
+        });
+    }
+
+    /**
+     * Answers every complete request in {@code buffer}, in order, and sends the responses with one
+     * gathering write. A trailing partial request stays with the parser until the next read. A request for
+     * an {@link AsyncHttpHandler} ends the batch: the write starts from the thread that completes its
+     * stage, and the requests after it wait until then.
+     */
+    private void processInput(AsynchronousSocketChannel clientChannel, ByteBuffer buffer, Connection connection) {
+        IncrementalHttpParser parser = connection.parser;
+        List<ByteBuffer> responses = new ArrayList<>();
+        List<ByteBuffer> pooled = new ArrayList<>();
+        boolean keepAlive = true;
+        // A streamed body ends the batch, the requests after it wait until it has been sent
+        ChunkEncoder stream = null;
+        while (keepAlive && stream == null && responses.size() < MAX_PIPELINED_RESPONSES) {
+            IncrementalHttpParser.State state = parser.parse(buffer);
+            if (state != IncrementalHttpParser.State.COMPLETE && state != IncrementalHttpParser.State.ERROR) {
+                break;
+            }
+
+            Pair<HttpStatus, Pair<Boolean, HttpResponse>> response;
+            String acceptEncoding = null;
+            if (state == IncrementalHttpParser.State.ERROR) {
+                response = new Pair<>(parser.getStatus(), new Pair<>(false, null));
+            } else {
+                HttpRequest req = parser.getRequest();
+                acceptEncoding = req.getHeader("accept-encoding");
+                RouteMatch route = this.route.get();
+                if (!this.router.match(req.getURI(), req.getHttpMethod(), route)) {
+                    route = null;
+                } else if (route.getHandler() instanceof AsyncHttpHandler async) {
+                    parser.reset();
+                    respondAsync(clientChannel, buffer, connection, async, req, route.getPathParameters(),
+                            acceptEncoding, responses, pooled);
+                    return;
+                }
                 try {
-                    bufferPool.release(buffer);
-                    clientChannel.close();
-                } catch (IOException e) {
-                    LogWrapper.log("Failed to close client channel: " + e.getMessage());
+                    response = requestHandler(req, route);
+                } catch (Exception e) {
+                    LogWrapper.log("[-] " + e.getMessage());
+                    throw new RuntimeException(e);
+                } finally {
+                    req.getRequestBody().close();
                 }
             }
+            parser.reset();
+
+            keepAlive = response.getValue().getKey();
+            stream = encode(response.getValue().getValue(), response.getKey(), acceptEncoding, keepAlive, responses, pooled);
+        }
+
+        if (responses.isEmpty()) {
+            // The parser consumed the whole buffer and keeps the partial request until the next read.
+            handleRead(clientChannel, buffer, connection);
+            return;
+        }
+        handleWrite(clientChannel, responses.toArray(new ByteBuffer[0]), pooled, keepAlive, buffer, connection, stream);
+    }
+
+    /**
+     * Starts {@code handler} and sends its response after the ones already in {@code responses} once the
+     * stage completes, on the thread that completes it.
+     */
+    private void respondAsync(AsynchronousSocketChannel clientChannel, ByteBuffer buffer, Connection connection,
+                              AsyncHttpHandler handler, HttpRequest req, PathParameters params, String acceptEncoding,
+                              List<ByteBuffer> responses, List<ByteBuffer> pooled) {
+        boolean keepAlive = isKeepAliveRequested(req);
+        AsyncHttpHandler.invoke(handler, req, params).whenComplete((r, e) -> {
+            req.getRequestBody().close();
+            if (e != null) {
+                LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Async handler failed: {}", e);
+            }
+            ChunkEncoder stream = encode(e == null ? r : null, HttpStatus.INTERNAL_SERVER_ERROR, acceptEncoding,
+                    keepAlive, responses, pooled);
+            handleWrite(clientChannel, responses.toArray(new ByteBuffer[0]), pooled, keepAlive, buffer, connection, stream);
         });
     }
 
-    private void handleWrite(AsynchronousSocketChannel clientChannel, ByteBuffer responseBuffer, boolean keepAlive, ByteBuffer buffer) {
-        clientChannel.write(responseBuffer, null, new CompletionHandler<Integer, Void>() {
+    /**
+     * Adds the buffers of one response to a batch.
+     *
+     * @param status sent as an error response when {@code httpResponse} is null.
+     * @return the streamed body to send after the batch, or null.
+     */
+    private ChunkEncoder encode(HttpResponse httpResponse, HttpStatus status, String acceptEncoding, boolean keepAlive,
+                                List<ByteBuffer> responses, List<ByteBuffer> pooled) {
+        ByteBuffer fileBody = null;
+        if (httpResponse != null && httpResponse.getFileRegion() != null) {
+            // Asynchronous channels cannot take a file directly, so the region is mapped instead
+            try {
+                fileBody = httpResponse.getFileRegion().map();
+            } catch (IOException e) {
+                LogWrapper.log("[-] " + e.getMessage());
+                httpResponse = createErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+        }
+        if (httpResponse == null) {
+            httpResponse = createErrorResponse(status);
+        }
+        if (httpResponse.isPreEncoded()) {
+            responses.addAll(List.of(httpResponse.preEncodedBuffers(keepAlive)));
+            return null;
+        }
+        for (ByteBuffer encoded : compressor.encode(httpResponse, acceptEncoding, keepAlive, bufferPool)) {
+            responses.add(encoded);
+            pooled.add(encoded);
+        }
+        if (fileBody != null) {
+            responses.add(fileBody);
+        }
+        return httpResponse.getChunkedBody() != null ? new ChunkEncoder(httpResponse.getChunkedBody()) : null;
+    }
+
+    /**
+     * Writes {@code responseBuffers} with gathering writes until all are sent, then releases the
+     * {@code pooled} ones and goes on with the connection. A {@code stream} is sent after them one chunk
+     * per write, the next chunk being produced only once the previous one has been written.
+     */
+    private void handleWrite(AsynchronousSocketChannel clientChannel, ByteBuffer[] responseBuffers, List<ByteBuffer> pooled,
+                             boolean keepAlive, ByteBuffer buffer, Connection connection, ChunkEncoder stream) {
+        // Each write that completes has made progress, so the timeout is how long the client may stall
+        clientChannel.write(responseBuffers, 0, responseBuffers.length, config.getWriteTimeoutMillis(), TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Void>() {
             @Override
-            public void completed(Integer bytesWritten, Void attachment) {
-                if (bytesWritten > 0) {
-                    if (responseBuffer.hasRemaining()) {
-                        handleWrite(clientChannel, responseBuffer, keepAlive, buffer);
-                    } else {
-                        if (!keepAlive) {
-                            try {
-                                bufferPool.release(buffer);
-                                clientChannel.close();
-                                LogWrapper.log("Closing client");
-                            } catch (IOException e) {
-                                LogWrapper.log("Failed to close client channel: " + e.getMessage());
-                            }
-                        } else {
-                            buffer.clear();
-                            handleRead(clientChannel, buffer);
-                        }
+            public void completed(Long bytesWritten, Void attachment) {
+                if (hasRemaining(responseBuffers)) {
+                    handleWrite(clientChannel, responseBuffers, pooled, keepAlive, buffer, connection, stream);
+                    return;
+                }
+                pooled.forEach(bufferPool::release);
+                if (stream != null && !stream.isDone()) {
+                    ByteBuffer chunk;
+                    try {
+                        chunk = stream.nextChunk(bufferPool);
+                    } catch (IOException e) {
+                        LogWrapper.log("Failed to stream response: " + e.getMessage());
+                        closeClient(clientChannel, buffer, connection);
+                        return;
                     }
+                    List<ByteBuffer> chunkPooled = new ArrayList<>(1);
+                    chunkPooled.add(chunk);
+                    handleWrite(clientChannel, new ByteBuffer[]{chunk}, chunkPooled, keepAlive, buffer, connection, stream);
+                    return;
+                }
+                if (!keepAlive) {
+                    closeClient(clientChannel, buffer, connection);
+                    LogWrapper.log(LogWrapper.LogLevel.DEBUG, "Closing client");
+                } else if (buffer.hasRemaining()) {
+                    // Bytes of further requests arrived together with these ones.
+                    processInput(clientChannel, buffer, connection);
+                } else {
+                    handleRead(clientChannel, buffer, connection);
                 }
             }
 
             @Override
             public void failed(Throwable exc, Void attachment) {
-                LogWrapper.log("Failed to send response: " + exc.getMessage());
-                try {
-                    bufferPool.release(buffer);
-                    clientChannel.close();
-                } catch (IOException e) {
-                    LogWrapper.log("Failed to close client channel: " + e.getMessage());
+                if (exc instanceof InterruptedByTimeoutException) {
+                    LogWrapper.log(LogWrapper.LogLevel.DEBUG, "[-] Closing client after {} timeout", ConnectionTimeout.Phase.WRITE);
+                } else {
+                    LogWrapper.log("Failed to send response: " + exc.getMessage());
+                }
+                pooled.forEach(bufferPool::release);
+                if (stream != null) {
+                    stream.close();
                 }
+                closeClient(clientChannel, buffer, connection);
             }
         });
     }
 
+    // Checks them all, the last one may be an empty body
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeClient(AsynchronousSocketChannel clientChannel, ByteBuffer buffer, Connection connection) {
+        try {
+            bufferPool.release(buffer);
+            // Drops a request body that was only partly received
+            connection.parser.reset();
+            clientChannel.close();
+        } catch (IOException e) {
+            LogWrapper.log("Failed to close client channel: " + e.getMessage());
+        }
+    }
+
     public void shutdown() throws IOException {
         if (!isRunning) {
             throw new IllegalStateException("Server is not running.");
@@ -216,6 +389,67 @@ public class Zzz {
         } catch (InterruptedException e) {
             LogWrapper.log("Failed to gracefully shutdown: " + e.getMessage());
         }
-        LogWrapper.log("Successfully shutting down");
+        router.close();
+        LogWrapper.log(LogWrapper.LogLevel.INFO, "Successfully shutting down");
+    }
+
+    /**
+     * The state of one connection between reads. There is no selector loop here to drive a timing wheel,
+     * so each read is given the time left in the current phase as its own timeout instead.
+     */
+    private static final class Connection {
+        final IncrementalHttpParser parser = new IncrementalHttpParser();
+        private long headerStart;
+        private long bodyStart;
+        private long bodyBytes;
+
+        void onRead(int bytes) {
+            if (bodyStart != 0) {
+                bodyBytes += bytes;
+            }
+        }
+
+        ConnectionTimeout.Phase phase() {
+            if (parser.isReadingBody()) {
+                return ConnectionTimeout.Phase.BODY;
+            }
+            return parser.isInProgress() ? ConnectionTimeout.Phase.HEADERS : ConnectionTimeout.Phase.IDLE;
+        }
+
+        /**
+         * @return the timeout for the next read, 0 for none.
+         */
+        long readTimeoutMillis(ServerConfig config) {
+            long now = System.nanoTime();
+            switch (phase()) {
+                case BODY -> {
+                    headerStart = 0;
+                    if (bodyStart == 0) {
+                        bodyStart = now;
+                        bodyBytes = 0;
+                    }
+                    if (config.getMinBodyRate() == 0) {
+                        return 0;
+                    }
+                    long allowedMillis = ServerConfig.BODY_RATE_GRACE_MILLIS + bodyBytes * 1000 / config.getMinBodyRate();
+                    return Math.max(1, allowedMillis - TimeUnit.NANOSECONDS.toMillis(now - bodyStart));
+                }
+                case HEADERS -> {
+                    bodyStart = 0;
+                    if (headerStart == 0) {
+                        headerStart = now;
+                    }
+                    if (config.getHeaderTimeoutMillis() == 0) {
+                        return 0;
+                    }
+                    return Math.max(1, config.getHeaderTimeoutMillis() - TimeUnit.NANOSECONDS.toMillis(now - headerStart));
+                }
+                default -> {
+                    headerStart = 0;
+                    bodyStart = 0;
+                    return config.getIdleTimeoutMillis();
+                }
+            }
+        }
     }
 }
@@ -2,34 +2,400 @@ package com.minihttp.util.BufferPool;
 
 import com.minihttp.LogWrapper.LogWrapper;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
+/**
+ * A pool of direct ByteBuffers in a few size classes.
+ * <p>
+ * Each thread keeps a small cache per size class in front of a shared lock-free arena. Buffers are
+ * allocated lazily until the configured memory cap is reached; past that the pool hands out plain heap
+ * buffers instead of failing. Buffers that sat unused in the arena for a whole trim interval are dropped
+ * so the memory can go back to the system. Virtual threads are many and short-lived, so they skip the
+ * thread cache and go to the arena directly. With leak detection on, every buffer that is garbage
+ * collected without being released is reported together with the stack that acquired it, and a buffer
+ * released twice is reported and dropped instead of being handed to two owners.
+ */
 public class BufferPool {
-    private final ConcurrentLinkedDeque<ByteBuffer> buffer;
+    public static final int[] SIZE_CLASSES = {1024, 4096, 16384, 65536};
+    public static final long DEFAULT_MAX_MEMORY = 64L << 20;
+    public static final long DEFAULT_TRIM_INTERVAL_MILLIS = 30_000;
+    private static final int THREAD_CACHE_SIZE = 32;
+    private static final int TRIM_CHECK_MASK = 1023;
+    // Thread.isVirtual, null before JDK 21
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+    // Shared by all virtual threads, holds nothing
+    private static final ThreadCache NO_CACHE = new ThreadCache(null, 0);
+
+    private final long maxMemory;
+    private final long trimIntervalNanos;
+    private final boolean leakDetection;
+    private final Arena[] arenas = new Arena[SIZE_CLASSES.length];
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicInteger releases = new AtomicInteger();
+    private final Map<ThreadCache, Boolean> threadCaches = new ConcurrentHashMap<>();
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(this::newThreadCache);
+    private final ReferenceQueue<ByteBuffer> leaked = new ReferenceQueue<>();
+    private final Map<Integer, LeakTracker> trackers = new ConcurrentHashMap<>();
+    private volatile long lastTrim = System.nanoTime();
+    private volatile int trimEpoch;
+    private volatile boolean capReported;
 
     public BufferPool() {
-        buffer = new ConcurrentLinkedDeque<>();
-        try {
-            int cap = 100024;
-            for (int i = 0; i < cap; ++i)
-                buffer.push(ByteBuffer.allocate(1024));
-        } catch (Exception e) {
-            LogWrapper.log(e.getMessage());
+        this(DEFAULT_MAX_MEMORY, Boolean.getBoolean("minihttp.bufferPool.leakDetection"));
+    }
+
+    public BufferPool(long maxMemory, boolean leakDetection) {
+        this(maxMemory, DEFAULT_TRIM_INTERVAL_MILLIS, leakDetection);
+    }
+
+    public BufferPool(long maxMemory, long trimIntervalMillis, boolean leakDetection) {
+        this.maxMemory = maxMemory;
+        this.trimIntervalNanos = trimIntervalMillis * 1_000_000;
+        this.leakDetection = leakDetection;
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = new Arena();
         }
     }
 
+    /**
+     * @return a buffer of the smallest size class.
+     */
     public ByteBuffer acquireBuffer() {
-        ByteBuffer b = buffer.poll();
+        return acquire(SIZE_CLASSES[0]);
+    }
+
+    /**
+     * @return a cleared buffer with at least {@code minCapacity} bytes of room. Requests larger than the
+     * biggest size class, or made while the pool is at its memory cap, get an unpooled heap buffer.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (leakDetection) {
+            reportLeaks();
+        }
+        int sizeClass = sizeClassOf(minCapacity);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        ByteBuffer b = localCache().poll(sizeClass);
         if (b == null) {
-            LogWrapper.log("[-] Buffer pool exhausted");
-            throw new IllegalStateException("Buffer pool exhausted");
+            b = arenas[sizeClass].poll();
+        }
+        if (b == null) {
+            b = allocate(sizeClass);
+            if (b == null) {
+                if (!capReported) {
+                    capReported = true;
+                    LogWrapper.log(LogWrapper.LogLevel.WARNING, "[-] Buffer pool at its memory cap, using heap buffers");
+                }
+                return ByteBuffer.allocate(SIZE_CLASSES[sizeClass]);
+            }
+        }
+        outstanding.incrementAndGet();
+        if (leakDetection) {
+            track(b);
         }
         return b;
     }
 
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)}. Heap fallbacks are simply dropped, and so are
+     * read-only buffers, which the pool never hands out, e.g. views of a response body sent along with
+     * pooled ones.
+     */
     public void release(ByteBuffer b) {
+        int sizeClass = b.isDirect() && !b.isReadOnly() ? exactSizeClassOf(b.capacity()) : -1;
+        if (sizeClass < 0) {
+            return;
+        }
+        if (leakDetection && !untrack(b)) {
+            LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Pooled buffer released twice, or not acquired from"
+                    + " this pool, at:" + stackOf(new Throwable()));
+            return;
+        }
+        outstanding.decrementAndGet();
         b.clear();
-        buffer.push(b);
+        if (!localCache().offer(sizeClass, b)) {
+            arenas[sizeClass].offer(b);
+        }
+        if ((releases.incrementAndGet() & TRIM_CHECK_MASK) == 0 && System.nanoTime() - lastTrim > trimIntervalNanos) {
+            trim();
+        }
+    }
+
+    /**
+     * Drops buffers that stayed in the arena for the whole interval since the previous trim, and reclaims
+     * the caches of threads that have died. Live threads hand their cached buffers back to the arena on
+     * their next acquire or release, so those become eligible at the following trim.
+     */
+    public void trim() {
+        lastTrim = System.nanoTime();
+        trimEpoch++;
+        capReported = false;
+        for (ThreadCache cache : threadCaches.keySet()) {
+            if (!cache.owner.isAlive()) {
+                threadCaches.remove(cache);
+                cache.drainTo(arenas);
+            }
+        }
+        for (int i = 0; i < arenas.length; i++) {
+            int idle = arenas[i].resetLowWatermark();
+            for (int j = 0; j < idle; j++) {
+                if (arenas[i].poll() == null) {
+                    break;
+                }
+                allocatedBytes.addAndGet(-SIZE_CLASSES[i]);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of direct memory currently owned by the pool, in use or not.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return the number of pooled buffers acquired and not released yet.
+     */
+    public long getOutstandingBuffers() {
+        return outstanding.get();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    private ByteBuffer allocate(int sizeClass) {
+        int size = SIZE_CLASSES[sizeClass];
+        long current;
+        do {
+            current = allocatedBytes.get();
+            if (current + size > maxMemory) {
+                return null;
+            }
+        } while (!allocatedBytes.compareAndSet(current, current + size));
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private ThreadCache localCache() {
+        ThreadCache cache = threadCache.get();
+        int epoch = trimEpoch;
+        if (cache != NO_CACHE && cache.epoch != epoch) {
+            cache.epoch = epoch;
+            cache.drainTo(arenas);
+        }
+        return cache;
+    }
+
+    private ThreadCache newThreadCache() {
+        if (isVirtual(Thread.currentThread())) {
+            return NO_CACHE;
+        }
+        ThreadCache cache = new ThreadCache(Thread.currentThread(), THREAD_CACHE_SIZE);
+        cache.epoch = trimEpoch;
+        threadCaches.put(cache, Boolean.TRUE);
+        return cache;
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether {@code thread} is a virtual thread, always false before JDK 21. Per-thread caches
+     * are skipped on them, since a virtual thread usually serves a single request.
+     */
+    public static boolean isVirtual(Thread thread) {
+        try {
+            return IS_VIRTUAL != null && (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void track(ByteBuffer b) {
+        LeakTracker tracker = new LeakTracker(b, leaked, SIZE_CLASSES[exactSizeClassOf(b.capacity())]);
+        // Buffers whose identity hashes collide are chained
+        trackers.compute(tracker.identity, (identity, head) -> {
+            tracker.next = head;
+            return tracker;
+        });
+    }
+
+    /**
+     * @return false if {@code b} is not an acquired buffer, i.e. it was released already.
+     */
+    private boolean untrack(ByteBuffer b) {
+        LeakTracker[] found = new LeakTracker[1];
+        trackers.computeIfPresent(System.identityHashCode(b),
+                (identity, head) -> unlink(head, t -> t.refersTo(b), found));
+        if (found[0] == null) {
+            return false;
+        }
+        found[0].clear();
+        return true;
+    }
+
+    private boolean untrack(LeakTracker tracker) {
+        LeakTracker[] found = new LeakTracker[1];
+        trackers.computeIfPresent(tracker.identity, (identity, head) -> unlink(head, t -> t == tracker, found));
+        return found[0] != null;
+    }
+
+    // Removes the first tracker matching from the chain into found[0], returns the new head
+    private static LeakTracker unlink(LeakTracker head, Predicate<LeakTracker> match, LeakTracker[] found) {
+        LeakTracker previous = null;
+        for (LeakTracker t = head; t != null; previous = t, t = t.next) {
+            if (match.test(t)) {
+                found[0] = t;
+                if (previous == null) {
+                    return t.next;
+                }
+                previous.next = t.next;
+                return head;
+            }
+        }
+        return head;
+    }
+
+    private void reportLeaks() {
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = leaked.poll()) != null) {
+            LeakTracker tracker = (LeakTracker) ref;
+            if (untrack(tracker)) {
+                allocatedBytes.addAndGet(-tracker.size);
+                outstanding.decrementAndGet();
+                LogWrapper.log(LogWrapper.LogLevel.ERROR, "[-] Leaked pooled buffer of " + tracker.size
+                        + " bytes, acquired at:" + stackOf(tracker.acquiredAt));
+            }
+        }
+    }
+
+    private static String stackOf(Throwable t) {
+        StringBuilder sb = new StringBuilder();
+        for (StackTraceElement e : t.getStackTrace()) {
+            sb.append("\n\tat ").append(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The shared free list of one size class. It remembers the smallest size it had since the last trim,
+     * i.e. how many buffers nobody needed during that interval.
+     */
+    private static final class Arena {
+        private final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger lowWatermark = new AtomicInteger();
+
+        ByteBuffer poll() {
+            ByteBuffer b = free.pollFirst();
+            if (b != null) {
+                lowWatermark.accumulateAndGet(size.decrementAndGet(), Math::min);
+            }
+            return b;
+        }
+
+        void offer(ByteBuffer b) {
+            free.offerFirst(b);
+            size.incrementAndGet();
+        }
+
+        int resetLowWatermark() {
+            return lowWatermark.getAndSet(size.get());
+        }
+    }
+
+    // A stack of up to capacity buffers per size class
+    private static final class ThreadCache {
+        final Thread owner;
+        int epoch;
+        final ByteBuffer[][] buffers;
+        final int[] counts = new int[SIZE_CLASSES.length];
+
+        ThreadCache(Thread owner, int capacity) {
+            this.owner = owner;
+            this.buffers = new ByteBuffer[SIZE_CLASSES.length][capacity];
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            int count = counts[sizeClass];
+            if (count == 0) {
+                return null;
+            }
+            ByteBuffer b = buffers[sizeClass][--count];
+            buffers[sizeClass][count] = null;
+            counts[sizeClass] = count;
+            return b;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer b) {
+            int count = counts[sizeClass];
+            if (count == buffers[sizeClass].length) {
+                return false;
+            }
+            buffers[sizeClass][count] = b;
+            counts[sizeClass] = count + 1;
+            return true;
+        }
+
+        // Called by the owner thread, or once it is dead, so nothing else touches the stacks
+        void drainTo(Arena[] arenas) {
+            for (int i = 0; i < buffers.length; i++) {
+                ByteBuffer b;
+                while ((b = poll(i)) != null) {
+                    arenas[i].offer(b);
+                }
+            }
+        }
+    }
+
+    private static final class LeakTracker extends PhantomReference<ByteBuffer> {
+        final int identity;
+        final int size;
+        final Throwable acquiredAt = new Throwable();
+        // Next tracker with the same identity hash, guarded by the map's bin lock
+        LeakTracker next;
+
+        LeakTracker(ByteBuffer b, ReferenceQueue<ByteBuffer> queue, int size) {
+            super(b, queue);
+            this.identity = System.identityHashCode(b);
+            this.size = size;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package com.minihttp.util.MpscQueue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free queue for many producers and a single consumer, e.g. tasks handed to one event
+ * loop by other threads.
+ * <p>
+ * A producer links its node in with one atomic swap of the tail, without the retry loop of a CAS, and the
+ * consumer follows the next links from a head only it touches. Between a producer's swap and its link the
+ * queue looks empty past that node for a moment; {@link #poll()} then returns null and the consumer picks
+ * the element up on its next poll, which the producer's wake-up guarantees.
+ */
+public final class MpscQueue<T> {
+    private final AtomicReference<Node<T>> tail;
+    // Only used by the consumer, always the node before the next element
+    private Node<T> head;
+
+    public MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Adds {@code value} at the tail. Safe to call from any thread.
+     */
+    public void offer(T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Node<T> node = new Node<>(value);
+        Node<T> previous = tail.getAndSet(node);
+        previous.lazySet(node);
+    }
+
+    /**
+     * @return the element at the head, or null if there is none. Only the consumer thread may call this.
+     */
+    public T poll() {
+        Node<T> next = head.get();
+        if (next == null) {
+            return null;
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * @return whether the queue looks empty. Exact only on the consumer thread.
+     */
+    public boolean isEmpty() {
+        return head.get() == null;
+    }
+
+    // The reference to the next node is the node itself, saving an object per element
+    private static final class Node<T> extends AtomicReference<Node<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private T value;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.minihttp.util.TimingWheel;
+
+/**
+ * A hashed timing wheel for the timeouts of one event loop.
+ * <p>
+ * Time is cut into ticks and each tick maps to one of a power-of-two number of buckets, each a doubly
+ * linked list of {@link Timeout}s. Scheduling links a timeout into the bucket of its deadline and
+ * cancelling unlinks it, both O(1) and without allocating, since every connection reuses its own
+ * Timeout. There is no thread: the owning loop passes {@link #pollTimeoutMillis(long)} to
+ * {@code select} and calls {@link #advance(long)} after every wake-up. Not thread-safe, only the owning
+ * loop may touch a wheel and its timeouts.
+ */
+public final class TimingWheel {
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long origin;
+    // The last tick whose bucket has been expired
+    private long tick;
+    private int size;
+
+    /**
+     * @param tickNanos how precise deadlines are; a timeout fires up to one tick late.
+     * @param wheelSize the number of buckets, rounded up to a power of two. Deadlines further away than
+     *                  one turn of the wheel are fine, they are just skipped on the turns before.
+     */
+    public TimingWheel(long tickNanos, int wheelSize, long now) {
+        if (tickNanos <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickNanos and wheelSize must be positive");
+        }
+        int n = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        this.tickNanos = tickNanos;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            Timeout head = new Timeout(null);
+            head.prev = head;
+            head.next = head;
+            buckets[i] = head;
+        }
+        this.origin = now;
+    }
+
+    /**
+     * Fires {@code timeout} once {@code delayNanos} from {@code now} have passed, replacing any deadline
+     * it already had.
+     */
+    public void schedule(Timeout timeout, long delayNanos, long now) {
+        cancel(timeout);
+        long deadline = (now - origin + Math.max(delayNanos, 0) + tickNanos - 1) / tickNanos;
+        // Never in a bucket that has already been expired
+        timeout.deadline = Math.max(deadline, tick + 1);
+        Timeout head = buckets[(int) (timeout.deadline & mask)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+        size++;
+    }
+
+    public void cancel(Timeout timeout) {
+        if (timeout.next == null) {
+            return;
+        }
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    /**
+     * Fires every timeout whose deadline is at or before {@code now}.
+     *
+     * @return how many fired.
+     */
+    public int advance(long now) {
+        long target = (now - origin) / tickNanos;
+        int fired = 0;
+        while (tick < target) {
+            if (size == 0) {
+                tick = target;
+                break;
+            }
+            tick++;
+            Timeout head = buckets[(int) (tick & mask)];
+            Timeout t = head.next;
+            while (t != head) {
+                Timeout next = t.next;
+                if (t.deadline <= tick) {
+                    cancel(t);
+                    fired++;
+                    t.action.run();
+                    if (next.next == null) {
+                        // The action cancelled the next one, start over from what is left
+                        next = head.next;
+                    }
+                }
+                t = next;
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * @return how long a select may block before the next tick is due, or 0 to block until woken up
+     * when nothing is scheduled.
+     */
+    public long pollTimeoutMillis(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long next = origin + (tick + 1) * tickNanos;
+        return Math.max(1, (next - now + 999_999) / 1_000_000);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A deadline that can be scheduled again and again on one wheel, usually one per connection.
+     */
+    public static final class Timeout {
+        private final Runnable action;
+        private Timeout prev;
+        private Timeout next;
+        private long deadline;
+
+        /**
+         * @param action runs on the loop thread when the timeout fires.
+         */
+        public Timeout(Runnable action) {
+            this.action = action;
+        }
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.minihttp.handlers.ResponseCache;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ResponseCacheTest extends TestCase {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    public void testHitSkipsHandler() {
+        ResponseCache cache = cache(new CachePolicy.Create().build(), text("book"));
+        HttpResponse first = cache.handle(request("/books"), PathParameters.EMPTY);
+        HttpResponse second = cache.handle(request("/books"), PathParameters.EMPTY);
+        assertTrue(first.isPreEncoded());
+        assertSame(first, second);
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testLoadLooksAgainBeforeCallingHandler() {
+        ResponseCache cache = cache(new CachePolicy.Create().build(), text("book"));
+        HttpRequest req = request("/books");
+        String key = cache.key(req);
+        assertNull(cache.lookup(key));
+        HttpResponse stored = cache.handle(req, PathParameters.EMPTY);
+        // As if the request had waited in the executor's queue while another one stored the response
+        assertSame(stored, cache.load(key, req, PathParameters.EMPTY));
+        assertEquals(1, calls.get());
+    }
+
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ResponseCache cache = cache(new CachePolicy.Create().build(),
+                blocking(entered, release, new HttpResponse.Create().setBody("book").build()));
+        HttpResponse[] results = loadConcurrently(cache, entered, release);
+        assertTrue(results[0].isPreEncoded());
+        assertSame(results[0], results[1]);
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testWaitersCallHandlerWhenResponseIsNotCacheable() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpResponse withCookie = new HttpResponse.Create().setBody("book")
+                .setResponseHeader(Map.of("Set-Cookie", List.of("session=1"))).build();
+        ResponseCache cache = cache(new CachePolicy.Create().build(), blocking(entered, release, withCookie));
+        HttpResponse[] results = loadConcurrently(cache, entered, release);
+        assertSame(withCookie, results[0]);
+        assertSame(withCookie, results[1]);
+        assertEquals(2, calls.get());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    public void testNoStoreIsNotCached() {
+        HttpResponse noStore = new HttpResponse.Create().setBody("book")
+                .setResponseHeader(Map.of("Cache-Control", List.of("no-store"))).build();
+        ResponseCache cache = cache(new CachePolicy.Create().build(), (req, param) -> {
+            calls.incrementAndGet();
+            return noStore;
+        });
+        assertSame(noStore, cache.handle(request("/books"), PathParameters.EMPTY));
+        assertSame(noStore, cache.handle(request("/books"), PathParameters.EMPTY));
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    public void testEntryExpiresAfterTtl() throws Exception {
+        ResponseCache cache = cache(new CachePolicy.Create().setTtlMillis(1).build(), text("book"));
+        HttpRequest req = request("/books");
+        cache.handle(req, PathParameters.EMPTY);
+        assertTrue(cache.size() > 0);
+        Thread.sleep(5);
+        assertNull(cache.lookup(cache.key(req)));
+        assertEquals(0, cache.size());
+        cache.handle(req, PathParameters.EMPTY);
+        assertEquals(2, calls.get());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        ResponseCache probe = cache(new CachePolicy.Create().build(), text("book"));
+        probe.handle(request("/p100"), PathParameters.EMPTY);
+        long entry = probe.size();
+        // Room for two entries of this size in each of the 16 segments
+        ResponseCache cache = cache(new CachePolicy.Create().setMaxBytes(16 * (entry * 5 / 2)).build(), text("book"));
+        String[] paths = sameSegment(cache, 3);
+        String a = cache.key(request(paths[0]));
+        String b = cache.key(request(paths[1]));
+        String c = cache.key(request(paths[2]));
+
+        cache.handle(request(paths[0]), PathParameters.EMPTY);
+        cache.handle(request(paths[1]), PathParameters.EMPTY);
+        assertNotNull(cache.lookup(a));
+        cache.handle(request(paths[2]), PathParameters.EMPTY);
+
+        assertNotNull(cache.lookup(a));
+        assertNull(cache.lookup(b));
+        assertNotNull(cache.lookup(c));
+        assertEquals(2 * entry, cache.size());
+    }
+
+    public void testResponseLargerThanSegmentIsNotStored() {
+        ResponseCache cache = cache(new CachePolicy.Create().setMaxBytes(16 * 64).build(), text("x".repeat(512)));
+        assertTrue(cache.handle(request("/books"), PathParameters.EMPTY).isPreEncoded());
+        assertEquals(0, cache.size());
+    }
+
+    public void testKeySelectsQueryParameters() {
+        ResponseCache cache = cache(new CachePolicy.Create().setQueryParameters("id").build(), text("book"));
+        String one = cache.key(request("/books?id=1"));
+        assertEquals(one, cache.key(request("/books?id=1&page=3")));
+        assertFalse(one.equals(cache.key(request("/books?id=2"))));
+        assertFalse(one.equals(cache.key(request("/books"))));
+    }
+
+    public void testKeySelectsVaryHeaders() {
+        ResponseCache cache = cache(new CachePolicy.Create().setVaryHeaders("Accept-Language").build(), text("book"));
+        String en = cache.key(request("/books", "Accept-Language: en"));
+        assertEquals(en, cache.key(request("/books", "Accept-Language: en", "User-Agent: test")));
+        assertFalse(en.equals(cache.key(request("/books", "Accept-Language: fr"))));
+        assertFalse(en.equals(cache.key(request("/books"))));
+    }
+
+    public void testKeySelectsCoding() {
+        ResponseCache cache = cache(new CachePolicy.Create().build(), text("book ".repeat(400)));
+        String gzip = cache.key(request("/books", "Accept-Encoding: gzip"));
+        assertEquals(gzip, cache.key(request("/books", "Accept-Encoding: x-gzip, deflate;q=0.5")));
+        assertFalse(gzip.equals(cache.key(request("/books", "Accept-Encoding: deflate"))));
+        assertFalse(gzip.equals(cache.key(request("/books"))));
+
+        HttpResponse compressed = cache.handle(request("/books", "Accept-Encoding: gzip"), PathParameters.EMPTY);
+        HttpResponse identity = cache.handle(request("/books"), PathParameters.EMPTY);
+        assertTrue(head(compressed).contains("Content-Encoding: gzip"));
+        assertFalse(head(identity).contains("Content-Encoding"));
+        assertEquals(2, calls.get());
+        assertSame(compressed, cache.handle(request("/books", "Accept-Encoding: gzip"), PathParameters.EMPTY));
+        assertSame(identity, cache.handle(request("/books"), PathParameters.EMPTY));
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Starts a request that blocks in the handler, then a second one for the same key, and lets the first
+     * finish once the second is waiting for it.
+     */
+    private HttpResponse[] loadConcurrently(ResponseCache cache, CountDownLatch entered, CountDownLatch release)
+            throws Exception {
+        HttpRequest req = request("/books");
+        AtomicReference<HttpResponse> first = new AtomicReference<>();
+        AtomicReference<HttpResponse> second = new AtomicReference<>();
+        Thread loader = new Thread(() -> first.set(cache.handle(req, PathParameters.EMPTY)));
+        loader.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        Thread waiter = new Thread(() -> second.set(cache.load(cache.key(req), req, PathParameters.EMPTY)));
+        waiter.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (waiter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, waiter.getState());
+        release.countDown();
+        loader.join(5000);
+        waiter.join(5000);
+        return new HttpResponse[]{first.get(), second.get()};
+    }
+
+    private HttpHandler blocking(CountDownLatch entered, CountDownLatch release, HttpResponse response) {
+        return (req, param) -> {
+            if (calls.incrementAndGet() == 1) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return response;
+        };
+    }
+
+    private HttpHandler text(String body) {
+        return (req, param) -> {
+            calls.incrementAndGet();
+            return new HttpResponse.Create().setBody(body).build();
+        };
+    }
+
+    private static ResponseCache cache(CachePolicy policy, HttpHandler handler) {
+        return new ResponseCache(handler, policy);
+    }
+
+    /**
+     * @return {@code n} paths of the same length whose keys fall in the same segment, spread like
+     * ResponseCache does.
+     */
+    private static String[] sameSegment(ResponseCache cache, int n) {
+        List<List<String>> bySegment = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            bySegment.add(new ArrayList<>());
+        }
+        for (int i = 100; ; i++) {
+            String path = "/p" + i;
+            int h = cache.key(request(path)).hashCode();
+            List<String> segment = bySegment.get((h ^ (h >>> 16)) & 15);
+            segment.add(path);
+            if (segment.size() == n) {
+                return segment.toArray(new String[0]);
+            }
+        }
+    }
+
+    private static String head(HttpResponse response) {
+        ByteBuffer head = response.preEncodedBuffers(true)[0];
+        return StandardCharsets.US_ASCII.decode(head.duplicate()).toString();
+    }
+
+    private static HttpRequest request(String target, String... headers) {
+        StringBuilder raw = new StringBuilder("GET ").append(target).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            raw.append(header).append("\r\n");
+        }
+        IncrementalHttpParser parser = new IncrementalHttpParser();
+        ByteBuffer in = ByteBuffer.wrap(raw.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        return parser.getRequest();
+    }
+}
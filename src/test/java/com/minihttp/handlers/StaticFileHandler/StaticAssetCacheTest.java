@@ -0,0 +1,142 @@
+package com.minihttp.handlers.StaticFileHandler;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.http.HttpParser.IncrementalHttpParser;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.DateHeader;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class StaticAssetCacheTest extends TestCase {
+    private static final Instant MODIFIED = Instant.parse("2024-03-01T12:00:00Z");
+    private static final String CSS = "body { color: black; }\n".repeat(100);
+
+    private Path root;
+    private StaticAssetCache cache;
+
+    @Override
+    protected void setUp() throws IOException {
+        root = Files.createTempDirectory("minihttp-static");
+        Path css = Files.writeString(root.resolve("site.css"), CSS);
+        Files.setLastModifiedTime(css, FileTime.from(MODIFIED));
+        cache = new StaticAssetCache(new StaticFileHandler("/static", root), 1 << 20);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        cache.close();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    public void testFirstRequestIsServedWithValidators() {
+        HttpResponse response = get();
+        assertEquals(200, response.getStatusCode());
+        String head = head(response);
+        assertTrue(head.contains("ETag: \""));
+        assertTrue(head.contains("Last-Modified: " + DateHeader.format(MODIFIED)));
+        assertEquals(CSS, body(response));
+        assertSame(response, get());
+    }
+
+    public void testMatchingETagIsNotModified() {
+        String etag = etag(get());
+        HttpResponse response = get("If-None-Match: " + etag);
+        assertEquals(304, response.getStatusCode());
+        assertTrue(head(response).contains("ETag: " + etag));
+        assertFalse(head(response).contains("Content-Length"));
+        assertEquals("", body(response));
+    }
+
+    public void testETagListWeakTagsAndStar() {
+        String etag = etag(get());
+        assertEquals(304, get("If-None-Match: \"other\", " + etag).getStatusCode());
+        assertEquals(304, get("If-None-Match: W/" + etag).getStatusCode());
+        assertEquals(304, get("If-None-Match: *").getStatusCode());
+        assertEquals(200, get("If-None-Match: \"other\"").getStatusCode());
+    }
+
+    public void testIfNoneMatchTakesPrecedenceOverIfModifiedSince() {
+        String later = "If-Modified-Since: " + DateHeader.format(MODIFIED.plusSeconds(3600));
+        assertEquals(200, get("If-None-Match: \"other\"", later).getStatusCode());
+    }
+
+    public void testIfModifiedSince() {
+        assertEquals(304, get("If-Modified-Since: " + DateHeader.format(MODIFIED)).getStatusCode());
+        assertEquals(304, get("If-Modified-Since: " + DateHeader.format(MODIFIED.plusSeconds(60))).getStatusCode());
+        assertEquals(200, get("If-Modified-Since: " + DateHeader.format(MODIFIED.minusSeconds(1))).getStatusCode());
+        assertEquals(200, get("If-Modified-Since: yesterday").getStatusCode());
+    }
+
+    public void testGzipVariantOnlyWhenPreferred() {
+        HttpResponse gzip = get("Accept-Encoding: gzip, deflate");
+        assertTrue(head(gzip).contains("Content-Encoding: gzip"));
+        assertTrue(head(gzip).contains("Vary: Accept-Encoding"));
+        assertFalse(head(get("Accept-Encoding: deflate")).contains("Content-Encoding"));
+        assertFalse(head(get("Accept-Encoding: gzip;q=0.5, deflate")).contains("Content-Encoding"));
+        assertFalse(head(get("Accept-Encoding: gzip;q=0")).contains("Content-Encoding"));
+        assertFalse(head(get()).contains("Content-Encoding"));
+    }
+
+    public void testChangedFileIsReloaded() throws Exception {
+        String etag = etag(get());
+        Files.writeString(root.resolve("site.css"), "body { color: red; }\n");
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        HttpResponse response = get();
+        while (etag.equals(etag(response)) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            response = get();
+        }
+        assertEquals("body { color: red; }\n", body(response));
+        assertEquals(200, get("If-None-Match: " + etag).getStatusCode());
+    }
+
+    public void testMissingFileFallsThroughToHandler() {
+        HttpResponse response = cache.handle(request("/static/missing.css"), PathParameters.EMPTY);
+        assertEquals(404, response.getStatusCode());
+        assertEquals(0, cache.size());
+    }
+
+    private HttpResponse get(String... headers) {
+        return cache.handle(request("/static/site.css", headers), PathParameters.EMPTY);
+    }
+
+    private static String etag(HttpResponse response) {
+        String head = head(response);
+        int start = head.indexOf("ETag: ") + 6;
+        return head.substring(start, head.indexOf("\r\n", start));
+    }
+
+    private static String head(HttpResponse response) {
+        return StandardCharsets.US_ASCII.decode(response.preEncodedBuffers(true)[0]).toString();
+    }
+
+    private static String body(HttpResponse response) {
+        ByteBuffer body = response.preEncodedBuffers(true)[2];
+        return StandardCharsets.UTF_8.decode(body).toString();
+    }
+
+    private static HttpRequest request(String target, String... headers) {
+        StringBuilder raw = new StringBuilder("GET ").append(target).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            raw.append(header).append("\r\n");
+        }
+        IncrementalHttpParser parser = new IncrementalHttpParser();
+        ByteBuffer in = ByteBuffer.wrap(raw.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        return parser.getRequest();
+    }
+}
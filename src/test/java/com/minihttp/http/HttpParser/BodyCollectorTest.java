@@ -0,0 +1,162 @@
+package com.minihttp.http.HttpParser;
+
+import com.google.gson.JsonObject;
+import com.minihttp.http.HttpRequest.RequestBody;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class BodyCollectorTest extends TestCase {
+    private static final int THRESHOLD = 1024;
+
+    public void testSmallBodyStaysInMemory() throws IOException {
+        BodyCollector collector = new BodyCollector(11, THRESHOLD);
+        collector.write(bytes("hello "), 6);
+        collector.write(bytes("world"), 5);
+        assertEquals(11, collector.size());
+        RequestBody body = collector.finish("text/plain");
+        assertFalse(body.isSpilled());
+        assertEquals("hello world", body.asText());
+    }
+
+    public void testUnknownLengthGrowsUpToThreshold() throws IOException {
+        BodyCollector collector = new BodyCollector(-1, THRESHOLD);
+        byte[] data = pattern(THRESHOLD);
+        for (int i = 0; i < data.length; i += 100) {
+            int n = Math.min(100, data.length - i);
+            collector.write(ByteBuffer.wrap(data, i, n), n);
+        }
+        RequestBody body = collector.finish("application/octet-stream");
+        assertFalse(body.isSpilled());
+        assertEquals(ByteBuffer.wrap(data), body.asByteBuffer());
+    }
+
+    public void testLargeBodySpillsToFile() throws IOException {
+        // Past the writer's backlog, so the reading thread has to wait for it at least once
+        byte[] data = pattern(BodyCollector.MAX_BACKLOG * 3 + 12345);
+        RequestBody body = collect(data, 7000);
+        assertTrue(body.isSpilled());
+        assertEquals(data.length, body.length());
+        assertEquals(ByteBuffer.wrap(data), body.asByteBuffer());
+        try (InputStream in = body.asInputStream()) {
+            assertTrue(Arrays.equals(data, in.readAllBytes()));
+        }
+        try (ReadableByteChannel channel = body.asChannel()) {
+            ByteBuffer read = ByteBuffer.allocate(data.length);
+            while (read.hasRemaining() && channel.read(read) >= 0) {
+            }
+            read.flip();
+            assertEquals(ByteBuffer.wrap(data), read);
+        }
+        body.close();
+    }
+
+    public void testWriteOnlyTakesCount() throws IOException {
+        BodyCollector collector = new BodyCollector(-1, 4);
+        ByteBuffer in = bytes("abcdefgh");
+        collector.write(in, 6);
+        assertEquals(2, in.remaining());
+        assertEquals("abcdef", collector.finish("text/plain").asText());
+    }
+
+    public void testCloseDeletesSpilledFile() throws IOException {
+        Set<Path> before = tempFiles();
+        RequestBody body = collect(pattern(THRESHOLD * 4), 1000);
+        Set<Path> added = tempFiles();
+        added.removeAll(before);
+        assertEquals(1, added.size());
+        Path file = added.iterator().next();
+        assertEquals(body.length(), Files.size(file));
+        body.close();
+        assertFalse(Files.exists(file));
+        assertFalse(body.isSpilled());
+        assertEquals(0, body.length());
+    }
+
+    public void testDiscardDeletesSpilledFile() throws Exception {
+        Set<Path> before = tempFiles();
+        BodyCollector collector = new BodyCollector(-1, THRESHOLD);
+        byte[] data = pattern(THRESHOLD * 200);
+        collector.write(ByteBuffer.wrap(data), data.length);
+        collector.discard();
+        // The writer deletes the file once the queued writes are done
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        Set<Path> added = tempFiles();
+        added.removeAll(before);
+        while (!added.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+            added.retainAll(tempFiles());
+        }
+        assertTrue(added.isEmpty());
+    }
+
+    public void testTextViewsUseCharset() throws IOException {
+        byte[] latin1 = "caf\u00e9=cr\u00e8me".getBytes(StandardCharsets.ISO_8859_1);
+        BodyCollector collector = new BodyCollector(latin1.length, THRESHOLD);
+        collector.write(ByteBuffer.wrap(latin1), latin1.length);
+        RequestBody body = collector.finish("text/plain; charset=\"ISO-8859-1\"");
+        assertEquals("caf\u00e9=cr\u00e8me", body.asText());
+        try (Reader reader = body.asReader()) {
+            char[] c = new char[32];
+            assertEquals("caf\u00e9=cr\u00e8me", new String(c, 0, reader.read(c)));
+        }
+    }
+
+    public void testSpilledJsonAndFormViews() throws IOException {
+        StringBuilder json = new StringBuilder("{\"name\":\"minihttp\",\"padding\":\"");
+        json.append("x".repeat(THRESHOLD * 2)).append("\"}");
+        RequestBody body = collect(json.toString().getBytes(StandardCharsets.UTF_8), 300);
+        assertTrue(body.isSpilled());
+        JsonObject parsed = body.asJson();
+        assertEquals("minihttp", parsed.get("name").getAsString());
+        assertSame(parsed, body.asJson());
+        body.close();
+
+        String form = "q=a+b%26c&page=2&pad=" + "y".repeat(THRESHOLD * 2);
+        body = collect(form.getBytes(StandardCharsets.US_ASCII), 500);
+        assertTrue(body.isSpilled());
+        assertEquals("a b&c", body.asFormValues().get("q"));
+        assertEquals("2", body.asFormValues().get("page"));
+        body.close();
+    }
+
+    private static RequestBody collect(byte[] data, int readSize) throws IOException {
+        BodyCollector collector = new BodyCollector(data.length, THRESHOLD);
+        for (int i = 0; i < data.length; i += readSize) {
+            int n = Math.min(readSize, data.length - i);
+            collector.write(ByteBuffer.wrap(data, i, n), n);
+        }
+        assertEquals(data.length, collector.size());
+        return collector.finish("application/octet-stream");
+    }
+
+    private static Set<Path> tempFiles() throws IOException {
+        try (var files = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(f -> f.getFileName().toString().startsWith("minihttp-body"))
+                    .collect(Collectors.toCollection(HashSet::new));
+        }
+    }
+
+    private static byte[] pattern(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) (i * 31 + 7);
+        }
+        return b;
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,161 @@
+package com.minihttp.http.HttpParser;
+
+import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpStatus.HttpStatus;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class IncrementalHttpParserTest extends TestCase {
+    private static final String GET = "GET /books?id=7 HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n";
+    private static final String POST = "POST /books HTTP/1.1\r\nHost: localhost\r\nContent-Length: 11\r\n\r\n"
+            + "hello world";
+    private static final String CHUNKED_POST = "POST /books HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: yes\r\n\r\n";
+
+    private final IncrementalHttpParser parser = new IncrementalHttpParser();
+
+    @Override
+    protected void tearDown() {
+        parser.reset();
+    }
+
+    public void testRequestInOneRead() {
+        ByteBuffer in = bytes(GET);
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        assertFalse(in.hasRemaining());
+        HttpRequest req = parser.getRequest();
+        assertEquals(HttpMethod.GET, req.getHttpMethod());
+        assertEquals("/books", req.getURI());
+        assertEquals("7", req.getParams().get("id"));
+        assertEquals("localhost", req.getHeader("host"));
+    }
+
+    public void testRequestSplitAtEveryByte() {
+        HttpRequest req = parseByteByByte(POST);
+        assertEquals(HttpMethod.POST, req.getHttpMethod());
+        assertEquals("localhost", req.getHeader("host"));
+        assertEquals("hello world", req.getRequestBody().asText());
+    }
+
+    public void testChunkedBodySplitAtEveryByte() {
+        HttpRequest req = parseByteByByte(CHUNKED_POST);
+        assertEquals("hello world", req.getRequestBody().asText());
+        assertNull(req.getHeader("x-trailer"));
+    }
+
+    public void testSplitInsideLineBreak() {
+        String request = GET;
+        int split = request.indexOf("\r\n") + 1;
+        assertEquals(IncrementalHttpParser.State.REQUEST_LINE, parser.parse(bytes(request.substring(0, split))));
+        assertTrue(parser.isInProgress());
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(bytes(request.substring(split))));
+        assertEquals("/books", parser.getRequest().getURI());
+    }
+
+    public void testPipelinedRequestsInOneBuffer() {
+        ByteBuffer in = bytes(GET + POST + CHUNKED_POST);
+
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        assertEquals(HttpMethod.GET, parser.getRequest().getHttpMethod());
+        assertEquals(POST.length() + CHUNKED_POST.length(), in.remaining());
+
+        parser.reset();
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        assertEquals("hello world", parser.getRequest().getRequestBody().asText());
+        assertEquals(CHUNKED_POST.length(), in.remaining());
+
+        parser.reset();
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        assertEquals("hello world", parser.getRequest().getRequestBody().asText());
+        assertFalse(in.hasRemaining());
+    }
+
+    public void testPipelinedRequestSplitAcrossReads() {
+        String both = GET + POST;
+        int split = GET.length() + 10;
+        ByteBuffer first = bytes(both.substring(0, split));
+
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(first));
+        parser.reset();
+        assertEquals(IncrementalHttpParser.State.REQUEST_LINE, parser.parse(first));
+        assertTrue(parser.isInProgress());
+        assertFalse(first.hasRemaining());
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(bytes(both.substring(split))));
+        assertEquals("hello world", parser.getRequest().getRequestBody().asText());
+    }
+
+    public void testContentLengthWithTransferEncodingIsRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "0\r\n\r\n");
+    }
+
+    public void testTransferEncodingWithContentLengthIsRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n"
+                + "0\r\n\r\n");
+    }
+
+    public void testUnsupportedTransferEncodingIsRejected() {
+        assertError(HttpStatus.NOT_IMPLEMENTED, "POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n");
+    }
+
+    public void testDifferentContentLengthsAreRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!");
+    }
+
+    public void testRepeatedEqualContentLengthIsAccepted() {
+        ByteBuffer in = bytes("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(in));
+        assertEquals("hello", parser.getRequest().getRequestBody().asText());
+    }
+
+    public void testMalformedContentLengthIsRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "POST / HTTP/1.1\r\nContent-Length: 5, 5\r\n\r\nhello");
+    }
+
+    public void testHeaderLineWithoutColonIsRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "GET / HTTP/1.1\r\nHost localhost\r\n\r\n");
+    }
+
+    public void testHeaderWithoutNameIsRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "GET / HTTP/1.1\r\n: localhost\r\n\r\n");
+    }
+
+    public void testEscapedQueryIsDecodedOnDemand() {
+        assertEquals(IncrementalHttpParser.State.COMPLETE, parser.parse(bytes("GET /?q=a%20b%2Bc HTTP/1.1\r\n\r\n")));
+        assertEquals("a b+c", parser.getRequest().getParams().get("q"));
+    }
+
+    public void testMalformedQueryEscapeIsRejected() {
+        assertError(HttpStatus.BAD_REQUEST, "GET /?q=100%zz HTTP/1.1\r\n\r\n");
+        parser.reset();
+        assertError(HttpStatus.BAD_REQUEST, "GET /?q=5% HTTP/1.1\r\n\r\n");
+    }
+
+    public void testOversizedHeadersAreRejected() {
+        IncrementalHttpParser small = new IncrementalHttpParser(64, IncrementalHttpParser.DEFAULT_MAX_BODY_SIZE);
+        String request = "GET / HTTP/1.1\r\nX-Padding: " + "a".repeat(100) + "\r\n\r\n";
+        assertEquals(IncrementalHttpParser.State.ERROR, small.parse(bytes(request)));
+        assertEquals(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, small.getStatus());
+    }
+
+    private HttpRequest parseByteByByte(String request) {
+        byte[] b = request.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < b.length; i++) {
+            IncrementalHttpParser.State state = parser.parse(ByteBuffer.wrap(b, i, 1));
+            assertEquals("after byte " + i, i == b.length - 1, state == IncrementalHttpParser.State.COMPLETE);
+        }
+        return parser.getRequest();
+    }
+
+    private void assertError(HttpStatus expected, String request) {
+        assertEquals(IncrementalHttpParser.State.ERROR, parser.parse(bytes(request)));
+        assertEquals(expected, parser.getStatus());
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}
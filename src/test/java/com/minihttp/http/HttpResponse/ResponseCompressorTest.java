@@ -0,0 +1,119 @@
+package com.minihttp.http.HttpResponse;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ResponseCompressorTest extends TestCase {
+    private static final ResponseCompressor.Coding GZIP = ResponseCompressor.Coding.GZIP;
+    private static final ResponseCompressor.Coding DEFLATE = ResponseCompressor.Coding.DEFLATE;
+    private static final String TEXT = "a body worth compressing, ".repeat(200) + "\u00e9\ud83d\ude00";
+
+    private final ResponseCompressor compressor = new ResponseCompressor();
+
+    public void testNoCodingAccepted() {
+        assertNull(ResponseCompressor.negotiate(null));
+        assertNull(ResponseCompressor.negotiate(""));
+        assertNull(ResponseCompressor.negotiate("identity"));
+        assertNull(ResponseCompressor.negotiate("br, zstd"));
+    }
+
+    public void testSingleCoding() {
+        assertEquals(GZIP, ResponseCompressor.negotiate("gzip"));
+        assertEquals(GZIP, ResponseCompressor.negotiate("x-gzip"));
+        assertEquals(GZIP, ResponseCompressor.negotiate("GZip"));
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("deflate"));
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("br, deflate"));
+    }
+
+    public void testTieGoesToGzip() {
+        assertEquals(GZIP, ResponseCompressor.negotiate("gzip, deflate"));
+        assertEquals(GZIP, ResponseCompressor.negotiate("deflate, gzip"));
+        assertEquals(GZIP, ResponseCompressor.negotiate("deflate;q=0.5, gzip;q=0.5"));
+    }
+
+    public void testQValues() {
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("deflate;q=0.9, gzip;q=0.8"));
+        assertEquals(GZIP, ResponseCompressor.negotiate("gzip;q=0.001"));
+        assertEquals(GZIP, ResponseCompressor.negotiate(" gzip ; q=1.0 , deflate ;q=0.5"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0.000, deflate;q=0"));
+    }
+
+    public void testMalformedQValueRefuses() {
+        assertNull(ResponseCompressor.negotiate("gzip;q=abc"));
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("gzip;q=, deflate"));
+    }
+
+    public void testWildcard() {
+        assertEquals(GZIP, ResponseCompressor.negotiate("*"));
+        assertNull(ResponseCompressor.negotiate("*;q=0"));
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("gzip;q=0, *"));
+        assertEquals(DEFLATE, ResponseCompressor.negotiate("deflate, *;q=0"));
+        assertEquals(GZIP, ResponseCompressor.negotiate("deflate;q=0.5, *"));
+    }
+
+    public void testGzipRoundTrip() throws IOException {
+        HttpResponse encoded = compressor.preEncode(text(TEXT), "gzip");
+        assertTrue(head(encoded).contains("Content-Encoding: gzip"));
+        assertTrue(head(encoded).contains("Vary: Accept-Encoding"));
+        assertEquals(TEXT, inflate(new GZIPInputStream(body(encoded))));
+    }
+
+    public void testDeflateRoundTrip() throws IOException {
+        HttpResponse encoded = compressor.preEncode(text(TEXT), "deflate");
+        assertTrue(head(encoded).contains("Content-Encoding: deflate"));
+        assertEquals(TEXT, inflate(new InflaterInputStream(body(encoded))));
+    }
+
+    public void testBinaryEntityRoundTrip() throws IOException {
+        byte[] json = ("{\"items\":[" + "1,".repeat(1000) + "1]}").getBytes(StandardCharsets.UTF_8);
+        HttpResponse response = new HttpResponse.Create().setBody(json).setContentType("application/json").build();
+        HttpResponse encoded = compressor.preEncode(response, "gzip");
+        assertTrue(head(encoded).contains("Content-Encoding: gzip"));
+        assertEquals(new String(json, StandardCharsets.UTF_8), inflate(new GZIPInputStream(body(encoded))));
+    }
+
+    public void testIdentityForClientWithoutCodingStillVaries() {
+        HttpResponse encoded = compressor.preEncode(text(TEXT), null);
+        assertFalse(head(encoded).contains("Content-Encoding"));
+        assertTrue(head(encoded).contains("Vary: Accept-Encoding"));
+        assertEquals(TEXT, StandardCharsets.UTF_8.decode(encoded.preEncodedBuffers(true)[2]).toString());
+    }
+
+    public void testSmallOrIncompressibleBodiesAreNotCompressed() {
+        assertFalse(head(compressor.preEncode(text("short"), "gzip")).contains("Content-Encoding"));
+        HttpResponse png = new HttpResponse.Create().setBody(new byte[4096]).setContentType("image/png").build();
+        assertFalse(head(compressor.preEncode(png, "gzip")).contains("Content-Encoding"));
+        ResponseCompressor off = new ResponseCompressor(ResponseCompressor.DEFAULT_THRESHOLD, 0);
+        assertFalse(head(off.preEncode(text(TEXT), "gzip")).contains("Content-Encoding"));
+    }
+
+    private static HttpResponse text(String body) {
+        return new HttpResponse.Create().setBody(body).build();
+    }
+
+    private static String head(HttpResponse encoded) {
+        return StandardCharsets.US_ASCII.decode(encoded.preEncodedBuffers(true)[0]).toString();
+    }
+
+    private static InputStream body(HttpResponse encoded) {
+        ByteBuffer body = encoded.preEncodedBuffers(true)[2];
+        byte[] b = new byte[body.remaining()];
+        body.get(b);
+        return new ByteArrayInputStream(b);
+    }
+
+    private static String inflate(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
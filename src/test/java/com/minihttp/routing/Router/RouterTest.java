@@ -0,0 +1,122 @@
+package com.minihttp.routing.Router;
+
+import com.minihttp.PathParameters.PathParameters;
+import com.minihttp.handlers.HttpHandler.HttpHandler;
+import com.minihttp.http.HttpMethod.HttpMethod;
+import com.minihttp.http.HttpRequest.HttpRequest;
+import com.minihttp.http.HttpResponse.HttpResponse;
+import junit.framework.TestCase;
+
+import java.io.Closeable;
+
+public class RouterTest extends TestCase {
+    private final Router router = new Router();
+    private final RouteMatch match = new RouteMatch();
+
+    public void testStaticBeatsParamBeatsWildcard() {
+        HttpHandler literal = handler();
+        HttpHandler param = handler();
+        HttpHandler wildcard = handler();
+        router.add("/books/*", HttpMethod.GET, wildcard);
+        router.add("/books/{id}", HttpMethod.GET, param);
+        router.add("/books/new", HttpMethod.GET, literal);
+
+        assertSame(literal, lookup("/books/new"));
+        assertSame(param, lookup("/books/7"));
+        assertEquals("7", match.getPathParameters().get("id"));
+        assertEquals("/books/{id}", match.getRoute());
+        assertSame(wildcard, lookup("/books/7/pages"));
+        assertSame(wildcard, lookup("/books/"));
+    }
+
+    public void testBacktracksWhenPreferredBranchDeadEnds() {
+        HttpHandler literal = handler();
+        HttpHandler param = handler();
+        router.add("/books/new/draft", HttpMethod.GET, literal);
+        router.add("/books/{id}/pages", HttpMethod.GET, param);
+
+        assertSame(param, lookup("/books/new/pages"));
+        assertEquals("new", match.getPathParameters().get("id"));
+        assertSame(literal, lookup("/books/new/draft"));
+    }
+
+    public void testWildcardTakesFewestSegments() {
+        HttpHandler edit = handler();
+        router.add("/files/*/edit", HttpMethod.GET, edit);
+        assertSame(edit, lookup("/files/a/b/edit"));
+        assertNull(lookup("/files/a/b"));
+    }
+
+    public void testFirstRegistrationWins() {
+        HttpHandler first = handler();
+        router.add("/books/{id}", HttpMethod.GET, first);
+        router.add("/books/{name}", HttpMethod.GET, handler());
+        assertSame(first, lookup("/books/7"));
+        assertEquals("7", match.getPathParameters().get("id"));
+        assertNull(match.getPathParameters().get("name"));
+    }
+
+    public void testMethodsAreSeparate() {
+        HttpHandler get = handler();
+        router.add("/books", HttpMethod.GET, get);
+        assertSame(get, lookup("/books"));
+        assertFalse(router.match("/books", HttpMethod.POST, match));
+    }
+
+    public void testQueryAndEmptySegmentsAreIgnored() {
+        HttpHandler books = handler();
+        router.add("/books/{id}", HttpMethod.GET, books);
+        assertSame(books, lookup("//books///7?page=2"));
+        assertEquals("7", match.getPathParameters().get("id"));
+    }
+
+    public void testFreezeRejectsNewRoutes() {
+        router.add("/books", HttpMethod.GET, handler());
+        router.freeze();
+        try {
+            router.add("/authors", HttpMethod.GET, handler());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertNotNull(lookup("/books"));
+    }
+
+    public void testFirstLookupFreezes() {
+        router.add("/books", HttpMethod.GET, handler());
+        assertNull(lookup("/authors"));
+        try {
+            router.add("/authors", HttpMethod.GET, handler());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testCloseablesAreClosedOnce() {
+        int[] closed = new int[1];
+        ClosingHandler h = () -> closed[0]++;
+        router.add("/a", HttpMethod.GET, h);
+        router.add("/b", HttpMethod.GET, h);
+        router.close();
+        router.close();
+        assertEquals(1, closed[0]);
+        assertSame(h, lookup("/a"));
+    }
+
+    private HttpHandler lookup(String uri) {
+        return router.match(uri, HttpMethod.GET, match) ? match.getHandler() : null;
+    }
+
+    private static HttpHandler handler() {
+        return (req, param) -> new HttpResponse.Create().build();
+    }
+
+    private interface ClosingHandler extends HttpHandler, Closeable {
+        @Override
+        default HttpResponse handle(HttpRequest req, PathParameters param) {
+            return new HttpResponse.Create().build();
+        }
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,134 @@
+package com.minihttp.util.BufferPool;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BufferPoolTest extends TestCase {
+    private static final int SMALL = BufferPool.SIZE_CLASSES[0];
+
+    public void testBufferIsReusedOnSameThread() {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        ByteBuffer b = pool.acquire(100);
+        assertTrue(b.isDirect());
+        assertEquals(SMALL, b.capacity());
+        b.put((byte) 1);
+        pool.release(b);
+        ByteBuffer again = pool.acquire(SMALL);
+        assertSame(b, again);
+        assertEquals(0, again.position());
+        assertEquals(SMALL, pool.getAllocatedBytes());
+        assertEquals(1, pool.getOutstandingBuffers());
+    }
+
+    public void testFullThreadCacheSpillsIntoArena() throws Exception {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        // One more than a thread cache holds
+        for (int i = 0; i < 33; i++) {
+            buffers.add(pool.acquire(SMALL));
+        }
+        for (ByteBuffer b : buffers) {
+            pool.release(b);
+        }
+        assertEquals(33L * SMALL, pool.getAllocatedBytes());
+
+        // Another thread finds the spilled buffer in the arena, then has to allocate
+        AtomicReference<ByteBuffer> fromArena = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            fromArena.set(pool.acquire(SMALL));
+            pool.acquire(SMALL);
+        });
+        other.start();
+        other.join();
+        assertTrue(buffers.contains(fromArena.get()));
+        assertEquals(34L * SMALL, pool.getAllocatedBytes());
+    }
+
+    public void testHeapBuffersPastMemoryCap() {
+        BufferPool pool = new BufferPool(2 * SMALL, false);
+        ByteBuffer first = pool.acquire(SMALL);
+        ByteBuffer second = pool.acquire(SMALL);
+        ByteBuffer third = pool.acquire(SMALL);
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        assertFalse(third.isDirect());
+        assertEquals(SMALL, third.capacity());
+        assertEquals(2L * SMALL, pool.getAllocatedBytes());
+        assertEquals(2, pool.getOutstandingBuffers());
+
+        pool.release(third);
+        assertEquals(2, pool.getOutstandingBuffers());
+        pool.release(first);
+        assertSame(first, pool.acquire(SMALL));
+    }
+
+    public void testOversizedRequestGetsHeapBuffer() {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        int size = BufferPool.SIZE_CLASSES[BufferPool.SIZE_CLASSES.length - 1] + 1;
+        ByteBuffer b = pool.acquire(size);
+        assertFalse(b.isDirect());
+        assertEquals(size, b.capacity());
+        assertEquals(0, pool.getAllocatedBytes());
+    }
+
+    public void testDoubleReleaseIsDropped() {
+        BufferPool pool = new BufferPool(1 << 20, true);
+        ByteBuffer b = pool.acquire(SMALL);
+        pool.release(b);
+        pool.release(b);
+        assertEquals(0, pool.getOutstandingBuffers());
+        ByteBuffer first = pool.acquire(SMALL);
+        ByteBuffer second = pool.acquire(SMALL);
+        assertNotSame(first, second);
+    }
+
+    public void testReadOnlyViewIsNotPooled() {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        ByteBuffer b = pool.acquire(SMALL);
+        pool.release(b.asReadOnlyBuffer());
+        assertEquals(1, pool.getOutstandingBuffers());
+        assertNotSame(b, pool.acquire(SMALL));
+    }
+
+    public void testTrimDropsIdleBuffersOfDeadThreads() throws Exception {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        Thread worker = new Thread(() -> pool.release(pool.acquire(SMALL)));
+        worker.start();
+        worker.join();
+        assertEquals(SMALL, pool.getAllocatedBytes());
+        // The first trim moves the dead thread's cache to the arena, the next drops what stayed there
+        pool.trim();
+        assertEquals(SMALL, pool.getAllocatedBytes());
+        pool.trim();
+        assertEquals(0, pool.getAllocatedBytes());
+    }
+
+    public void testVirtualThreadsSkipThreadCache() throws Exception {
+        assertFalse(BufferPool.isVirtual(Thread.currentThread()));
+        Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            // Before JDK 21 there is nothing more to check
+            return;
+        }
+        BufferPool pool = new BufferPool(1 << 20, false);
+        AtomicReference<ByteBuffer> released = new AtomicReference<>();
+        AtomicReference<Boolean> virtual = new AtomicReference<>();
+        Thread thread = (Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+            virtual.set(BufferPool.isVirtual(Thread.currentThread()));
+            ByteBuffer b = pool.acquire(SMALL);
+            released.set(b);
+            pool.release(b);
+        });
+        thread.join();
+        assertTrue(virtual.get());
+        // Released straight into the arena, where this thread finds it
+        assertSame(released.get(), pool.acquire(SMALL));
+    }
+}
@@ -0,0 +1,138 @@
+package com.minihttp.util.TimingWheel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingWheelTest extends TestCase {
+    private static final long MS = 1_000_000;
+
+    // 8 buckets of 1 ms, starting at time 0
+    private final TimingWheel wheel = new TimingWheel(MS, 8, 0);
+    private final List<String> fired = new ArrayList<>();
+
+    public void testFiresAtDeadline() {
+        TimingWheel.Timeout t = timeout("t");
+        wheel.schedule(t, 3 * MS, 0);
+        assertEquals(0, wheel.advance(2 * MS));
+        assertTrue(t.isScheduled());
+        assertEquals(1, wheel.advance(3 * MS));
+        assertFalse(t.isScheduled());
+        assertEquals(List.of("t"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    public void testDeadlineRoundsUpToTick() {
+        wheel.schedule(timeout("t"), MS / 2, 0);
+        assertEquals(0, wheel.advance(MS / 2));
+        assertEquals(1, wheel.advance(MS));
+    }
+
+    public void testDeadlineAcrossLaps() {
+        wheel.schedule(timeout("far"), 20 * MS, 0);
+        wheel.schedule(timeout("near"), 4 * MS, 0);
+        // 4 and 20 share a bucket; the far one is skipped on the earlier turns
+        assertEquals(1, wheel.advance(4 * MS));
+        assertEquals(0, wheel.advance(12 * MS));
+        assertEquals(0, wheel.advance(19 * MS));
+        assertEquals(1, wheel.advance(20 * MS));
+        assertEquals(List.of("near", "far"), fired);
+    }
+
+    public void testLateAdvanceFiresEverythingDue() {
+        wheel.schedule(timeout("a"), MS, 0);
+        wheel.schedule(timeout("b"), 5 * MS, 0);
+        wheel.schedule(timeout("c"), 30 * MS, 0);
+        assertEquals(2, wheel.advance(25 * MS));
+        assertEquals(List.of("a", "b"), fired);
+        assertEquals(1, wheel.size());
+    }
+
+    public void testPastDeadlineFiresOnNextTick() {
+        wheel.advance(10 * MS);
+        wheel.schedule(timeout("t"), 0, 10 * MS);
+        assertEquals(0, wheel.advance(10 * MS));
+        assertEquals(1, wheel.advance(11 * MS));
+    }
+
+    public void testCancel() {
+        TimingWheel.Timeout t = timeout("t");
+        wheel.schedule(t, 3 * MS, 0);
+        wheel.cancel(t);
+        assertFalse(t.isScheduled());
+        assertEquals(0, wheel.size());
+        wheel.cancel(t);
+        assertEquals(0, wheel.size());
+        assertEquals(0, wheel.advance(10 * MS));
+        assertTrue(fired.isEmpty());
+    }
+
+    public void testScheduleReplacesDeadline() {
+        TimingWheel.Timeout t = timeout("t");
+        wheel.schedule(t, 3 * MS, 0);
+        wheel.schedule(t, 6 * MS, MS);
+        assertEquals(1, wheel.size());
+        assertEquals(0, wheel.advance(6 * MS));
+        assertEquals(1, wheel.advance(7 * MS));
+    }
+
+    public void testActionMayCancelAnotherDueTimeout() {
+        TimingWheel.Timeout second = timeout("second");
+        TimingWheel.Timeout first = new TimingWheel.Timeout(() -> {
+            fired.add("first");
+            wheel.cancel(second);
+        });
+        wheel.schedule(first, 2 * MS, 0);
+        wheel.schedule(second, 2 * MS, 0);
+        assertEquals(1, wheel.advance(2 * MS));
+        assertEquals(List.of("first"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    public void testActionMayRescheduleItself() {
+        TimingWheel.Timeout[] self = new TimingWheel.Timeout[1];
+        self[0] = new TimingWheel.Timeout(() -> {
+            fired.add("tick");
+            if (fired.size() < 3) {
+                wheel.schedule(self[0], 2 * MS, 2 * MS * fired.size());
+            }
+        });
+        wheel.schedule(self[0], 2 * MS, 0);
+        assertEquals(3, wheel.advance(2 * MS) + wheel.advance(4 * MS) + wheel.advance(6 * MS));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testPollTimeout() {
+        assertEquals(0, wheel.pollTimeoutMillis(0));
+        wheel.schedule(timeout("t"), 5 * MS, 0);
+        assertEquals(1, wheel.pollTimeoutMillis(0));
+        assertEquals(1, wheel.pollTimeoutMillis(MS / 4));
+        // Overdue, but a select must not be told to block forever
+        assertEquals(1, wheel.pollTimeoutMillis(3 * MS));
+        wheel.advance(3 * MS);
+        assertEquals(1, wheel.pollTimeoutMillis(3 * MS));
+
+        TimingWheel coarse = new TimingWheel(10 * MS, 8, 0);
+        coarse.schedule(timeout("t"), 50 * MS, 0);
+        assertEquals(10, coarse.pollTimeoutMillis(0));
+        assertEquals(7, coarse.pollTimeoutMillis(3 * MS));
+    }
+
+    public void testRejectsNonPositiveSizes() {
+        try {
+            new TimingWheel(0, 8, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new TimingWheel(MS, 0, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private TimingWheel.Timeout timeout(String name) {
+        return new TimingWheel.Timeout(() -> fired.add(name));
+    }
+}